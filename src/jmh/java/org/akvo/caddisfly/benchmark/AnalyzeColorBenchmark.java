@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) Stichting Akvo (Akvo Foundation)
+ *
+ * This file is part of Akvo Caddisfly
+ *
+ * Akvo Caddisfly is free software: you can redistribute it and modify it under the terms of
+ * the GNU Affero General Public License (AGPL) as published by the Free Software Foundation,
+ * either version 3 of the License or any later version.
+ *
+ * Akvo Caddisfly is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License included below for more details.
+ *
+ * The full license text can also be seen at <http://www.gnu.org/licenses/agpl.html>.
+ */
+
+package org.akvo.caddisfly.benchmark;
+
+import org.akvo.caddisfly.helper.CompiledCalibration;
+import org.akvo.caddisfly.helper.SwatchHelper;
+import org.akvo.caddisfly.model.ColorInfo;
+import org.akvo.caddisfly.model.ResultDetail;
+import org.akvo.caddisfly.model.Swatch;
+import org.akvo.caddisfly.model.SwatchTable;
+import org.akvo.caddisfly.util.ColorUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of analyzing a photo color against a calibration
+ * <p>
+ * Exact hits match a calibrated swatch directly. The other colors lie between the swatches
+ * so the analysis falls back to the generated gradient, either cached as in steady use or
+ * generated afresh for every color.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+@State(Scope.Thread)
+public class AnalyzeColorBenchmark {
+
+    @Param({"2", "5", "8"})
+    public int swatchCount;
+
+    private ArrayList<Swatch> swatches;
+    private SwatchTable swatchTable;
+    private ColorInfo[] exactColors;
+    private ColorInfo[] gradientColors;
+    private int index;
+
+    @Setup
+    public void setUp() {
+        swatches = CalibrationFixtures.createSwatches(swatchCount);
+        swatchTable = SwatchTable.fromSwatches(swatches);
+
+        exactColors = new ColorInfo[swatches.size()];
+        for (int i = 0; i < exactColors.length; i++) {
+            exactColors[i] = new ColorInfo(swatches.get(i).getColor(), 0);
+        }
+
+        ArrayList<ColorInfo> colors = new ArrayList<>();
+        for (Swatch swatch : ColorUtil.generateGradient(swatches, ColorUtil.ColorModel.RGB, 0.01)) {
+            if (isAwayFromSwatches(swatch.getColor())) {
+                colors.add(new ColorInfo(swatch.getColor(), 0));
+            }
+        }
+        gradientColors = colors.toArray(new ColorInfo[colors.size()]);
+    }
+
+    @Benchmark
+    public ResultDetail exactHit() {
+        return SwatchHelper.analyzeColor(exactColors[next(exactColors.length)], swatches,
+                ColorUtil.ColorModel.RGB);
+    }
+
+    @Benchmark
+    public ResultDetail gradientFallback() {
+        return SwatchHelper.analyzeColor(gradientColors[next(gradientColors.length)], swatches,
+                ColorUtil.ColorModel.RGB);
+    }
+
+    @Benchmark
+    public ResultDetail exactHitTable() {
+        return SwatchHelper.analyzeColor(exactColors[next(exactColors.length)], swatchTable,
+                ColorUtil.ColorModel.RGB);
+    }
+
+    @Benchmark
+    public ResultDetail gradientFallbackTable() {
+        return SwatchHelper.analyzeColor(gradientColors[next(gradientColors.length)], swatchTable,
+                ColorUtil.ColorModel.RGB);
+    }
+
+    @Benchmark
+    public ResultDetail gradientFallbackUncached() {
+        SwatchHelper.getGradientCache().clear();
+        return SwatchHelper.analyzeColor(gradientColors[next(gradientColors.length)], swatches,
+                ColorUtil.ColorModel.RGB);
+    }
+
+    @Benchmark
+    public ResultDetail compiledLookup(Compiled compiled) {
+        return SwatchHelper.analyzeColor(gradientColors[next(gradientColors.length)], compiled.calibration);
+    }
+
+    private int next(int length) {
+        if (++index >= length) {
+            index = 0;
+        }
+        return index;
+    }
+
+    private boolean isAwayFromSwatches(int color) {
+        for (Swatch swatch : swatches) {
+            if (ColorUtil.getColorDistance(color, swatch.getColor()) < ColorUtil.getMinDistance()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The compiled calibration, kept apart so that only the compiled lookup pays for building it
+     */
+    @State(Scope.Thread)
+    public static class Compiled {
+
+        private CompiledCalibration calibration;
+
+        @Setup
+        public void setUp(AnalyzeColorBenchmark benchmark) {
+            calibration = SwatchHelper.compileCalibration(benchmark.swatches, ColorUtil.ColorModel.RGB);
+        }
+    }
+}
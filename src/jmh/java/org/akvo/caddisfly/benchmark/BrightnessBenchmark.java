@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) Stichting Akvo (Akvo Foundation)
+ *
+ * This file is part of Akvo Caddisfly
+ *
+ * Akvo Caddisfly is free software: you can redistribute it and modify it under the terms of
+ * the GNU Affero General Public License (AGPL) as published by the Free Software Foundation,
+ * either version 3 of the License or any later version.
+ *
+ * Akvo Caddisfly is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License included below for more details.
+ *
+ * The full license text can also be seen at <http://www.gnu.org/licenses/agpl.html>.
+ */
+
+package org.akvo.caddisfly.benchmark;
+
+import org.akvo.caddisfly.util.Brightness;
+import org.akvo.caddisfly.util.ColorUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of the brightness of a row of photo pixels, one color at a time, in bulk and as a
+ * mask of the pixels brighter than the threshold used to find the circle
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BrightnessBenchmark {
+
+    private static final int ROW_LENGTH = 4096;
+    private static final int THRESHOLD = 75;
+
+    private int[] row;
+    private int[] brightness;
+    private boolean[] bright;
+
+    @Setup
+    public void setUp() {
+        row = CalibrationFixtures.createColors(ROW_LENGTH);
+        brightness = new int[ROW_LENGTH];
+        bright = new boolean[ROW_LENGTH];
+    }
+
+    @Benchmark
+    public int[] brightness() {
+        for (int i = 0; i < ROW_LENGTH; i++) {
+            brightness[i] = ColorUtil.getBrightness(row[i]);
+        }
+        return brightness;
+    }
+
+    @Benchmark
+    public int[] brightnessBulk() {
+        Brightness.get(row, 0, ROW_LENGTH, brightness, 0);
+        return brightness;
+    }
+
+    @Benchmark
+    public boolean[] brighterThan() {
+        for (int i = 0; i < ROW_LENGTH; i++) {
+            bright[i] = ColorUtil.getBrightness(row[i]) > THRESHOLD;
+        }
+        return bright;
+    }
+
+    @Benchmark
+    public int threshold() {
+        return Brightness.threshold(row, 0, ROW_LENGTH, THRESHOLD, bright, 0);
+    }
+}
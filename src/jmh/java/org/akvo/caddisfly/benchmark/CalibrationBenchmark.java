@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) Stichting Akvo (Akvo Foundation)
+ *
+ * This file is part of Akvo Caddisfly
+ *
+ * Akvo Caddisfly is free software: you can redistribute it and modify it under the terms of
+ * the GNU Affero General Public License (AGPL) as published by the Free Software Foundation,
+ * either version 3 of the License or any later version.
+ *
+ * Akvo Caddisfly is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License included below for more details.
+ *
+ * The full license text can also be seen at <http://www.gnu.org/licenses/agpl.html>.
+ */
+
+package org.akvo.caddisfly.benchmark;
+
+import org.akvo.caddisfly.helper.SwatchHelper;
+import org.akvo.caddisfly.helper.SwatchValidator;
+import org.akvo.caddisfly.model.Swatch;
+import org.akvo.caddisfly.model.SwatchValidation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of loading and validating a calibration
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CalibrationBenchmark {
+
+    @Param({"2", "5", "8", "256"})
+    public int swatchCount;
+
+    private File file;
+    private ArrayList<Swatch> swatches;
+
+    @Setup
+    public void setUp() throws IOException {
+        swatches = CalibrationFixtures.createSwatches(swatchCount);
+        file = File.createTempFile("calibration", ".txt");
+        CalibrationFixtures.writeCalibrationFile(swatches, file);
+    }
+
+    @TearDown
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    @Benchmark
+    public ArrayList<Swatch> loadCalibrationFromFile() throws Exception {
+        return SwatchHelper.loadCalibrationFromFile(file);
+    }
+
+    @Benchmark
+    public boolean isSwatchListValid() {
+        return SwatchHelper.isSwatchListValid(swatches);
+    }
+
+    @Benchmark
+    public SwatchValidation validate() {
+        return SwatchValidator.validate(swatches);
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) Stichting Akvo (Akvo Foundation)
+ *
+ * This file is part of Akvo Caddisfly
+ *
+ * Akvo Caddisfly is free software: you can redistribute it and modify it under the terms of
+ * the GNU Affero General Public License (AGPL) as published by the Free Software Foundation,
+ * either version 3 of the License or any later version.
+ *
+ * Akvo Caddisfly is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License included below for more details.
+ *
+ * The full license text can also be seen at <http://www.gnu.org/licenses/agpl.html>.
+ */
+
+package org.akvo.caddisfly.benchmark;
+
+import org.akvo.caddisfly.model.Swatch;
+import org.akvo.caddisfly.util.Color;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Reproducible synthetic calibrations for the benchmarks
+ * <p>
+ * The swatches run from pink to orange like a real fluoride calibration, with a little seeded
+ * noise so that every swatch count gives the same calibration on every run.
+ */
+final class CalibrationFixtures {
+
+    static final long SEED = 0x5EED;
+
+    /**
+     * The range of the swatch values
+     */
+    static final double MAX_VALUE = 2.0;
+
+    private static final int[] START_COLOR = {255, 87, 181};
+    private static final int[] END_COLOR = {245, 185, 122};
+    private static final int NOISE = 3;
+
+    private CalibrationFixtures() {
+    }
+
+    /**
+     * Create a calibration with swatches evenly spread from zero to MAX_VALUE
+     *
+     * @param count the number of swatches, at least two
+     * @return the swatches
+     */
+    static ArrayList<Swatch> createSwatches(int count) {
+        Random random = new Random(SEED + count);
+        ArrayList<Swatch> swatches = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            double fraction = (double) i / (count - 1);
+            int[] rgb = new int[3];
+            for (int c = 0; c < 3; c++) {
+                int value = (int) Math.round(START_COLOR[c] + (END_COLOR[c] - START_COLOR[c]) * fraction);
+                rgb[c] = Math.max(0, Math.min(255, value + random.nextInt(2 * NOISE + 1) - NOISE));
+            }
+            swatches.add(new Swatch(fraction * MAX_VALUE, Color.rgb(rgb[0], rgb[1], rgb[2]), Color.TRANSPARENT));
+        }
+        return swatches;
+    }
+
+    /**
+     * Create random opaque colors
+     *
+     * @param count the number of colors
+     * @return the colors
+     */
+    static int[] createColors(int count) {
+        Random random = new Random(SEED);
+        int[] colors = new int[count];
+        for (int i = 0; i < count; i++) {
+            colors[i] = 0xFF000000 | random.nextInt(0x1000000);
+        }
+        return colors;
+    }
+
+    /**
+     * Create colors near the given colors, as a photo of a calibrated color would be
+     *
+     * @param colors the colors to vary
+     * @param count  the number of colors
+     * @param spread the most each channel differs from the color it was based on
+     * @return the colors
+     */
+    static int[] createNearbyColors(int[] colors, int count, int spread) {
+        Random random = new Random(SEED);
+        int[] nearby = new int[count];
+        for (int i = 0; i < count; i++) {
+            int color = colors[random.nextInt(colors.length)];
+            nearby[i] = Color.rgb(vary(Color.red(color), spread, random), vary(Color.green(color), spread, random),
+                    vary(Color.blue(color), spread, random));
+        }
+        return nearby;
+    }
+
+    /**
+     * Write a calibration in the text format saved by the app
+     *
+     * @param swatches the swatches
+     * @param file     the file to write to
+     * @throws IOException if the file could not be written
+     */
+    static void writeCalibrationFile(ArrayList<Swatch> swatches, File file) throws IOException {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            for (Swatch swatch : swatches) {
+                int color = swatch.getColor();
+                writer.write(String.format(Locale.US, "%.2f=%d  %d  %d%n", swatch.getValue(),
+                        Color.red(color), Color.green(color), Color.blue(color)));
+            }
+            writer.write(String.format("Calibrated:2015-07-01 10:30%nReagentExpiry:2016-01-01%nReagentBatch:B1234%n"));
+        }
+    }
+
+    private static int vary(int component, int spread, Random random) {
+        return Math.max(0, Math.min(255, component + random.nextInt(2 * spread + 1) - spread));
+    }
+}
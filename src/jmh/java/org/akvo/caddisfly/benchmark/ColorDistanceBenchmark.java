@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) Stichting Akvo (Akvo Foundation)
+ *
+ * This file is part of Akvo Caddisfly
+ *
+ * Akvo Caddisfly is free software: you can redistribute it and modify it under the terms of
+ * the GNU Affero General Public License (AGPL) as published by the Free Software Foundation,
+ * either version 3 of the License or any later version.
+ *
+ * Akvo Caddisfly is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License included below for more details.
+ *
+ * The full license text can also be seen at <http://www.gnu.org/licenses/agpl.html>.
+ */
+
+package org.akvo.caddisfly.benchmark;
+
+import org.akvo.caddisfly.model.LabColor;
+import org.akvo.caddisfly.util.ColorUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of comparing two colors and of converting a color to Lab
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ColorDistanceBenchmark {
+
+    private static final int COLOR_COUNT = 1024;
+    private static final int MASK = COLOR_COUNT - 1;
+
+    private int[] colors;
+    private LabColor[] labColors;
+    private double[] lab;
+    private int index;
+
+    @Setup
+    public void setUp() {
+        colors = CalibrationFixtures.createColors(COLOR_COUNT);
+        labColors = new LabColor[COLOR_COUNT];
+        for (int i = 0; i < COLOR_COUNT; i++) {
+            labColors[i] = ColorUtil.colorToLab(colors[i]);
+        }
+        lab = new double[3];
+    }
+
+    @Benchmark
+    public double colorDistance() {
+        int i = index++ & MASK;
+        return ColorUtil.getColorDistance(colors[i], colors[(i + 1) & MASK]);
+    }
+
+    @Benchmark
+    public int colorDistanceRgbSquared() {
+        int i = index++ & MASK;
+        return ColorUtil.getColorDistanceRgbSquared(colors[i], colors[(i + 1) & MASK]);
+    }
+
+    @Benchmark
+    public double colorDistanceLab() {
+        int i = index++ & MASK;
+        return ColorUtil.getColorDistanceLab(labColors[i], labColors[(i + 1) & MASK]);
+    }
+
+    @Benchmark
+    public LabColor colorToLab() {
+        return ColorUtil.colorToLab(colors[index++ & MASK]);
+    }
+
+    @Benchmark
+    public double[] colorToLabArray() {
+        ColorUtil.colorToLab(colors[index++ & MASK], lab, 0);
+        return lab;
+    }
+}
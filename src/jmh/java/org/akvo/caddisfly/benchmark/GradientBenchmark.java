@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) Stichting Akvo (Akvo Foundation)
+ *
+ * This file is part of Akvo Caddisfly
+ *
+ * Akvo Caddisfly is free software: you can redistribute it and modify it under the terms of
+ * the GNU Affero General Public License (AGPL) as published by the Free Software Foundation,
+ * either version 3 of the License or any later version.
+ *
+ * Akvo Caddisfly is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License included below for more details.
+ *
+ * The full license text can also be seen at <http://www.gnu.org/licenses/agpl.html>.
+ */
+
+package org.akvo.caddisfly.benchmark;
+
+import org.akvo.caddisfly.model.Gradient;
+import org.akvo.caddisfly.model.Swatch;
+import org.akvo.caddisfly.util.ColorUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of generating a gradient from a calibration
+ * <p>
+ * The HSV gradient always has the same number of steps whatever the increment.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GradientBenchmark {
+
+    @Param({"RGB", "LAB", "HSV"})
+    public ColorUtil.ColorModel model;
+
+    @Param({"2", "5", "8"})
+    public int swatchCount;
+
+    @Param({"0.01", "0.001"})
+    public double increment;
+
+    private ArrayList<Swatch> swatches;
+
+    @Setup
+    public void setUp() {
+        swatches = CalibrationFixtures.createSwatches(swatchCount);
+    }
+
+    @Benchmark
+    public ArrayList<Swatch> generateGradient() {
+        return ColorUtil.generateGradient(swatches, model, increment);
+    }
+
+    @Benchmark
+    public Gradient createGradient() {
+        return ColorUtil.createGradient(swatches, model, increment);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) Stichting Akvo (Akvo Foundation)
+ *
+ * This file is part of Akvo Caddisfly
+ *
+ * Akvo Caddisfly is free software: you can redistribute it and modify it under the terms of
+ * the GNU Affero General Public License (AGPL) as published by the Free Software Foundation,
+ * either version 3 of the License or any later version.
+ *
+ * Akvo Caddisfly is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License included below for more details.
+ *
+ * The full license text can also be seen at <http://www.gnu.org/licenses/agpl.html>.
+ */
+
+package org.akvo.caddisfly.benchmark;
+
+import org.akvo.caddisfly.model.Gradient;
+import org.akvo.caddisfly.util.Ciede2000;
+import org.akvo.caddisfly.util.ColorKdTree;
+import org.akvo.caddisfly.util.ColorUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of finding the nearest color in a gradient by scanning, through the k-d tree and
+ * with CIEDE2000
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NearestColorBenchmark {
+
+    private static final int QUERY_COUNT = 1024;
+    private static final int MASK = QUERY_COUNT - 1;
+
+    @Param({"5"})
+    public int swatchCount;
+
+    @Param({"0.01", "0.001"})
+    public double increment;
+
+    private int[] colors;
+    private ColorKdTree colorIndex;
+    private double[] labTerms;
+    private int[] queries;
+    private double[] queryTerms;
+    private int index;
+
+    @Setup
+    public void setUp() {
+        Gradient gradient = Gradient.fromSwatches(ColorUtil.generateGradient(
+                CalibrationFixtures.createSwatches(swatchCount), ColorUtil.ColorModel.RGB, increment));
+        colors = gradient.getColors();
+        colorIndex = new ColorKdTree(colors);
+        labTerms = Ciede2000.computeTerms(colors);
+
+        queries = CalibrationFixtures.createNearbyColors(colors, QUERY_COUNT, 8);
+        queryTerms = Ciede2000.computeTerms(queries);
+    }
+
+    @Benchmark
+    public int linearScan() {
+        int color = queries[index++ & MASK];
+        int nearest = -1;
+        int nearestDistance = Integer.MAX_VALUE;
+        for (int i = 0; i < colors.length; i++) {
+            int distance = ColorUtil.getColorDistanceRgbSquared(color, colors[i]);
+            if (distance < nearestDistance) {
+                nearestDistance = distance;
+                nearest = i;
+            }
+        }
+        return nearest;
+    }
+
+    @Benchmark
+    public int kdTree() {
+        return colorIndex.nearest(queries[index++ & MASK]);
+    }
+
+    @Benchmark
+    public int ciede2000() {
+        int query = index++ & MASK;
+        return Ciede2000.nearest(queryTerms, query * Ciede2000.STRIDE, labTerms, colors.length);
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) Stichting Akvo (Akvo Foundation)
+ *
+ * This file is part of Akvo Caddisfly
+ *
+ * Akvo Caddisfly is free software: you can redistribute it and modify it under the terms of
+ * the GNU Affero General Public License (AGPL) as published by the Free Software Foundation,
+ * either version 3 of the License or any later version.
+ *
+ * Akvo Caddisfly is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License included below for more details.
+ *
+ * The full license text can also be seen at <http://www.gnu.org/licenses/agpl.html>.
+ */
+
+package org.akvo.caddisfly.helper;
+
+import org.akvo.caddisfly.model.BatchEvaluation;
+import org.akvo.caddisfly.model.Calibration;
+import org.akvo.caddisfly.model.CalibrationEvaluation;
+import org.akvo.caddisfly.model.ColorInfo;
+import org.akvo.caddisfly.model.Gradient;
+import org.akvo.caddisfly.model.ResultDetail;
+import org.akvo.caddisfly.model.Swatch;
+import org.akvo.caddisfly.model.SwatchTable;
+import org.akvo.caddisfly.util.ColorUtil;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Evaluates a batch of calibration files against a reference calibration in parallel
+ * <p>
+ * Each calibration's gradient is sampled at regular intervals and the samples are analyzed
+ * against the reference. When no reference is given the average of the batch is used.
+ * Results are returned in the order of the given files regardless of scheduling.
+ */
+public final class BatchEvaluator {
+
+    /**
+     * The increment of the gradient generated from each calibration
+     */
+    public static final double GRADIENT_INCREMENT = 0.01;
+
+    /**
+     * Every PROBE_INTERVAL'th gradient color is analyzed against the reference
+     */
+    public static final int PROBE_INTERVAL = 10;
+
+    /**
+     * Gradient colors from this index on are not analyzed
+     */
+    public static final int PROBE_LIMIT = 201;
+
+    /**
+     * The value step between the swatches of an averaged reference calibration
+     */
+    public static final double REFERENCE_VALUE_STEP = 0.5;
+
+    /**
+     * The number of files below which a task is not split any further
+     */
+    private static final int BATCH_SIZE = 16;
+
+    private final ForkJoinPool pool;
+    private final CalibrationLoader loader;
+
+    public BatchEvaluator() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public BatchEvaluator(ForkJoinPool pool) {
+        this(pool, new CalibrationLoader(pool));
+    }
+
+    public BatchEvaluator(ForkJoinPool pool, CalibrationLoader loader) {
+        this.pool = pool;
+        this.loader = loader;
+    }
+
+    /**
+     * Evaluate the calibration files
+     *
+     * @param files     the calibration files
+     * @param reference the reference calibration or an empty list to use the average of the files
+     * @return the evaluation of each file in the order given
+     * @throws InterruptedException if interrupted while loading the files
+     */
+    public BatchEvaluation evaluate(List<Path> files, ArrayList<Swatch> reference) throws InterruptedException {
+        final Path[] fileArray = files.toArray(new Path[files.size()]);
+        final List<ArrayList<Swatch>> calibrations = new ArrayList<>(Collections.nCopies(fileArray.length, null));
+        final Exception[] errors = new Exception[fileArray.length];
+
+        loader.load(files, new CalibrationLoader.Listener() {
+            @Override
+            public void onLoaded(int index, Path path, Calibration calibration) {
+                calibrations.set(index, calibration.getSwatches());
+            }
+
+            @Override
+            public void onError(int index, Path path, Exception error) {
+                errors[index] = error;
+            }
+        });
+
+        final ArrayList<Swatch> referenceSwatches = reference != null && reference.size() > 0
+                ? reference : averageCalibration(calibrations, fileArray.length);
+
+        final CalibrationEvaluation[] evaluations = new CalibrationEvaluation[fileArray.length];
+        pool.invoke(new RangeTask(0, fileArray.length) {
+            @Override
+            void compute(int index) {
+                String name = fileArray[index].getFileName().toString();
+                if (calibrations.get(index) == null) {
+                    evaluations[index] = new CalibrationEvaluation(name, errors[index]);
+                } else {
+                    evaluations[index] = evaluateCalibration(name, calibrations.get(index), referenceSwatches);
+                }
+            }
+        });
+
+        return new BatchEvaluation(referenceSwatches, Arrays.asList(evaluations));
+    }
+
+    /**
+     * Analyze samples of the calibration's gradient against the reference calibration
+     *
+     * @param name              the name of the calibration
+     * @param swatches          the calibrated swatches
+     * @param referenceSwatches the reference calibration
+     * @return the evaluation
+     */
+    public static CalibrationEvaluation evaluateCalibration(String name, ArrayList<Swatch> swatches,
+                                                            ArrayList<Swatch> referenceSwatches) {
+        Gradient gradient = ColorUtil.createGradient(swatches, ColorUtil.ColorModel.RGB, GRADIENT_INCREMENT);
+        return evaluateCalibration(name, swatches, gradient, referenceSwatches);
+    }
+
+    /**
+     * Analyze samples of the calibration's gradient against the reference calibration
+     *
+     * @param name              the name of the calibration
+     * @param swatches          the calibrated swatches
+     * @param gradient          the gradient previously generated from the swatches
+     * @param referenceSwatches the reference calibration
+     * @return the evaluation
+     */
+    public static CalibrationEvaluation evaluateCalibration(String name, ArrayList<Swatch> swatches,
+                                                            Gradient gradient,
+                                                            ArrayList<Swatch> referenceSwatches) {
+        int limit = Math.min(PROBE_LIMIT, gradient.size());
+        int count = (limit + PROBE_INTERVAL - 1) / PROBE_INTERVAL;
+        ResultDetail[] results = new ResultDetail[count];
+        double[] expectedResults = new double[count];
+        SwatchTable reference = SwatchTable.fromSwatches(referenceSwatches);
+
+        for (int i = 0; i < count; i++) {
+            int index = i * PROBE_INTERVAL;
+            ColorInfo colorInfo = new ColorInfo(gradient.getColor(index), 0);
+            results[i] = SwatchHelper.analyzeColor(colorInfo, reference, ColorUtil.ColorModel.RGB);
+            expectedResults[i] = index * GRADIENT_INCREMENT;
+        }
+
+        return new CalibrationEvaluation(name, swatches, gradient, results, expectedResults);
+    }
+
+    /**
+     * Average the colors of each swatch position over all the calibrations
+     *
+     * @param calibrations the calibrations, null for those that failed to load
+     * @param divisor      the number of calibrations to divide the totals by
+     * @return the averaged calibration
+     */
+    private static ArrayList<Swatch> averageCalibration(List<ArrayList<Swatch>> calibrations, int divisor) {
+        CalibrationAccumulator accumulator = new CalibrationAccumulator();
+        for (ArrayList<Swatch> swatches : calibrations) {
+            if (swatches != null) {
+                accumulator.add(swatches);
+            }
+        }
+        return accumulator.average(divisor);
+    }
+
+    /**
+     * Splits a range of indexes until it is small enough to process directly
+     */
+    abstract static class RangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int start;
+        private final int end;
+
+        RangeTask(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        abstract void compute(int index);
+
+        @Override
+        protected void compute() {
+            if (end - start <= BATCH_SIZE) {
+                for (int i = start; i < end; i++) {
+                    compute(i);
+                }
+            } else {
+                final RangeTask parent = this;
+                int middle = (start + end) >>> 1;
+                invokeAll(new RangeTask(start, middle) {
+                    @Override
+                    void compute(int index) {
+                        parent.compute(index);
+                    }
+                }, new RangeTask(middle, end) {
+                    @Override
+                    void compute(int index) {
+                        parent.compute(index);
+                    }
+                });
+            }
+        }
+    }
+}
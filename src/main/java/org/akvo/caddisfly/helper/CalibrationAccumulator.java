@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) Stichting Akvo (Akvo Foundation)
+ *
+ * This file is part of Akvo Caddisfly
+ *
+ * Akvo Caddisfly is free software: you can redistribute it and modify it under the terms of
+ * the GNU Affero General Public License (AGPL) as published by the Free Software Foundation,
+ * either version 3 of the License or any later version.
+ *
+ * Akvo Caddisfly is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License included below for more details.
+ *
+ * The full license text can also be seen at <http://www.gnu.org/licenses/agpl.html>.
+ */
+
+package org.akvo.caddisfly.helper;
+
+import org.akvo.caddisfly.model.Swatch;
+import org.akvo.caddisfly.util.Color;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Accumulates the swatch colors of many calibrations to average them
+ * <p>
+ * The channels of each swatch position are summed into longs along with a histogram of their
+ * values, from which the exact average, the variance and the median are read. Adding or
+ * removing a calibration does not allocate once the accumulator holds as many swatch
+ * positions as the calibration, and accumulators filled on separate threads can be merged.
+ * <p>
+ * Not thread safe.
+ */
+public final class CalibrationAccumulator {
+
+    public static final int RED = 0;
+    public static final int GREEN = 1;
+    public static final int BLUE = 2;
+
+    private static final int CHANNELS = 3;
+    private static final int VALUES = 256;
+
+    private int count;
+    private int capacity;
+    private int[] positionCounts = new int[0];
+    // Indexed by position * CHANNELS + channel
+    private long[] sums = new long[0];
+    // Indexed by (position * CHANNELS + channel) * VALUES + value
+    private int[] histograms = new int[0];
+
+    /**
+     * Add the swatches of a calibration
+     *
+     * @param swatches the swatches of the calibration
+     */
+    public void add(List<Swatch> swatches) {
+        ensureCapacity(swatches.size());
+        for (int i = 0; i < swatches.size(); i++) {
+            int color = swatches.get(i).getColor();
+            positionCounts[i]++;
+            accumulate(i, RED, Color.red(color), 1);
+            accumulate(i, GREEN, Color.green(color), 1);
+            accumulate(i, BLUE, Color.blue(color), 1);
+        }
+        count++;
+    }
+
+    /**
+     * Remove the swatches of a calibration that was added before
+     *
+     * @param swatches the swatches of the calibration
+     * @throws IllegalArgumentException if the swatch colors were not added
+     */
+    public void remove(List<Swatch> swatches) {
+        if (count == 0 || swatches.size() > capacity) {
+            throw new IllegalArgumentException("The calibration was not added");
+        }
+        for (int i = 0; i < swatches.size(); i++) {
+            int color = swatches.get(i).getColor();
+            if (histograms[bin(i, RED, Color.red(color))] == 0
+                    || histograms[bin(i, GREEN, Color.green(color))] == 0
+                    || histograms[bin(i, BLUE, Color.blue(color))] == 0) {
+                throw new IllegalArgumentException("The calibration was not added");
+            }
+        }
+        for (int i = 0; i < swatches.size(); i++) {
+            int color = swatches.get(i).getColor();
+            positionCounts[i]--;
+            accumulate(i, RED, Color.red(color), -1);
+            accumulate(i, GREEN, Color.green(color), -1);
+            accumulate(i, BLUE, Color.blue(color), -1);
+        }
+        count--;
+    }
+
+    /**
+     * Add everything accumulated by another accumulator
+     *
+     * @param other the other accumulator
+     */
+    public void merge(CalibrationAccumulator other) {
+        ensureCapacity(other.capacity);
+        for (int i = 0; i < other.capacity; i++) {
+            positionCounts[i] += other.positionCounts[i];
+        }
+        for (int i = 0; i < other.capacity * CHANNELS; i++) {
+            sums[i] += other.sums[i];
+        }
+        for (int i = 0; i < other.capacity * CHANNELS * VALUES; i++) {
+            histograms[i] += other.histograms[i];
+        }
+        count += other.count;
+    }
+
+    public void clear() {
+        count = 0;
+        Arrays.fill(positionCounts, 0);
+        Arrays.fill(sums, 0);
+        Arrays.fill(histograms, 0);
+    }
+
+    /**
+     * Gets the number of calibrations added
+     *
+     * @return the number of calibrations
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Gets the number of swatch positions, which is that of the longest calibration added
+     *
+     * @return the number of swatch positions
+     */
+    public int getSize() {
+        int size = capacity;
+        while (size > 0 && positionCounts[size - 1] == 0) {
+            size--;
+        }
+        return size;
+    }
+
+    /**
+     * Gets the number of calibrations that have a swatch at a position
+     *
+     * @param position the index of the swatch
+     * @return the number of swatches
+     */
+    public int getSwatchCount(int position) {
+        return position < capacity ? positionCounts[position] : 0;
+    }
+
+    /**
+     * Average the colors of each swatch position over all the calibrations added
+     *
+     * @return the averaged calibration
+     */
+    public ArrayList<Swatch> average() {
+        return average(count);
+    }
+
+    /**
+     * Average the colors of each swatch position, rounding half up
+     * <p>
+     * Calibrations that failed to load can be counted in the divisor so that they weigh the
+     * average towards black, as the report has always done.
+     *
+     * @param divisor the number of calibrations to divide the totals by
+     * @return the averaged calibration
+     */
+    public ArrayList<Swatch> average(int divisor) {
+        int size = getSize();
+        if (size > 0 && divisor <= 0) {
+            throw new IllegalArgumentException("Divisor must be positive");
+        }
+        ArrayList<Swatch> average = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            int color = Color.rgb(divide(sums[i * CHANNELS + RED], divisor),
+                    divide(sums[i * CHANNELS + GREEN], divisor), divide(sums[i * CHANNELS + BLUE], divisor));
+            average.add(new Swatch(i * BatchEvaluator.REFERENCE_VALUE_STEP, color, Color.TRANSPARENT));
+        }
+        return average;
+    }
+
+    /**
+     * Gets the mean of a channel over the calibrations that have a swatch at the position
+     *
+     * @param position the index of the swatch
+     * @param channel  {@link #RED}, {@link #GREEN} or {@link #BLUE}
+     * @return the mean or NaN if no calibration has a swatch at the position
+     */
+    public double getMean(int position, int channel) {
+        int n = getSwatchCount(position);
+        return n == 0 ? Double.NaN : (double) sums[position * CHANNELS + channel] / n;
+    }
+
+    /**
+     * Gets the population variance of a channel over the calibrations that have a swatch at the
+     * position
+     *
+     * @param position the index of the swatch
+     * @param channel  {@link #RED}, {@link #GREEN} or {@link #BLUE}
+     * @return the variance or NaN if no calibration has a swatch at the position
+     */
+    public double getVariance(int position, int channel) {
+        int n = getSwatchCount(position);
+        if (n == 0) {
+            return Double.NaN;
+        }
+        double mean = (double) sums[position * CHANNELS + channel] / n;
+        int offset = bin(position, channel, 0);
+        double sum = 0;
+        for (int value = 0; value < VALUES; value++) {
+            int frequency = histograms[offset + value];
+            if (frequency != 0) {
+                double difference = value - mean;
+                sum += frequency * difference * difference;
+            }
+        }
+        return sum / n;
+    }
+
+    /**
+     * Gets the median of a channel over the calibrations that have a swatch at the position,
+     * which is the mean of the two middle values when there is an even number of them
+     *
+     * @param position the index of the swatch
+     * @param channel  {@link #RED}, {@link #GREEN} or {@link #BLUE}
+     * @return the median or NaN if no calibration has a swatch at the position
+     */
+    public double getMedian(int position, int channel) {
+        int n = getSwatchCount(position);
+        if (n == 0) {
+            return Double.NaN;
+        }
+        int lower = valueAtRank(position, channel, (n - 1) / 2);
+        int upper = n % 2 == 1 ? lower : valueAtRank(position, channel, n / 2);
+        return (lower + upper) / 2.0;
+    }
+
+    private int valueAtRank(int position, int channel, int rank) {
+        int offset = bin(position, channel, 0);
+        int seen = 0;
+        for (int value = 0; value < VALUES; value++) {
+            seen += histograms[offset + value];
+            if (seen > rank) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("Histogram holds fewer values than the swatch count");
+    }
+
+    private void accumulate(int position, int channel, int value, int direction) {
+        sums[position * CHANNELS + channel] += direction * value;
+        histograms[bin(position, channel, value)] += direction;
+    }
+
+    private static int bin(int position, int channel, int value) {
+        return (position * CHANNELS + channel) * VALUES + value;
+    }
+
+    private void ensureCapacity(int size) {
+        if (size > capacity) {
+            positionCounts = Arrays.copyOf(positionCounts, size);
+            sums = Arrays.copyOf(sums, size * CHANNELS);
+            histograms = Arrays.copyOf(histograms, size * CHANNELS * VALUES);
+            capacity = size;
+        }
+    }
+
+    /**
+     * Divide a non-negative total rounding half up as BigDecimal does
+     */
+    private static int divide(long dividend, int divisor) {
+        return (int) ((2 * dividend + divisor) / (2L * divisor));
+    }
+}
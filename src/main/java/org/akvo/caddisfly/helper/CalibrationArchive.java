@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) Stichting Akvo (Akvo Foundation)
+ *
+ * This file is part of Akvo Caddisfly
+ *
+ * Akvo Caddisfly is free software: you can redistribute it and modify it under the terms of
+ * the GNU Affero General Public License (AGPL) as published by the Free Software Foundation,
+ * either version 3 of the License or any later version.
+ *
+ * Akvo Caddisfly is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License included below for more details.
+ *
+ * The full license text can also be seen at <http://www.gnu.org/licenses/agpl.html>.
+ */
+
+package org.akvo.caddisfly.helper;
+
+import org.akvo.caddisfly.model.Calibration;
+import org.akvo.caddisfly.util.ColorUtil;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Many binary calibrations packed into one memory mapped file with random access by index
+ * <p>
+ * The file starts with a header holding the number of records and the offset of the index. Each
+ * record is the name of the calibration followed by a {@link CalibrationFormat} record and the
+ * index lists the offset of every record, so reading all the calibrations is one sequential
+ * pass over the file and any one of them can be read without reading the others.
+ */
+public final class CalibrationArchive {
+
+    private static final int MAGIC = 0x43434152; // CCAR
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+
+    private final ByteBuffer buffer;
+    private final long[] offsets;
+    private final String source;
+
+    private CalibrationArchive(ByteBuffer buffer, long[] offsets, String source) {
+        this.buffer = buffer;
+        this.offsets = offsets;
+        this.source = source;
+    }
+
+    /**
+     * Open an archive by memory mapping a file written by a {@link Writer}
+     *
+     * @param file the file
+     * @return the archive
+     * @throws IOException if the file could not be read or is not a calibration archive
+     */
+    public static CalibrationArchive open(File file) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+             FileChannel channel = randomAccessFile.getChannel()) {
+
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Calibration archive too large to map: " + file.getAbsolutePath());
+            }
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                    .order(ByteOrder.LITTLE_ENDIAN);
+
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Not a calibration archive: " + file.getAbsolutePath());
+            }
+            int count = buffer.getInt();
+            buffer.getInt();
+            long indexOffset = buffer.getLong();
+            if (count < 0 || indexOffset < HEADER_SIZE || indexOffset + count * 8L != buffer.limit()) {
+                throw new IOException("Truncated calibration archive: " + file.getAbsolutePath());
+            }
+
+            long[] offsets = new long[count];
+            buffer.position((int) indexOffset);
+            buffer.asLongBuffer().get(offsets);
+
+            return new CalibrationArchive(buffer, offsets, file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Convert calibration text files into an archive
+     * <p>
+     * Files that cannot be loaded are reported and left out of the archive.
+     *
+     * @param textFiles     the calibration text files
+     * @param file          the archive file to write to
+     * @param gradientModel the color model of the gradients to save with the calibrations or null for none
+     * @param increment     the increment of the gradients
+     * @return the number of calibrations written
+     * @throws IOException          if the archive could not be written
+     * @throws InterruptedException if interrupted while loading the text files
+     */
+    public static int convert(List<Path> textFiles, File file, ColorUtil.ColorModel gradientModel,
+                              double increment) throws IOException, InterruptedException {
+        final Calibration[] calibrations = new Calibration[textFiles.size()];
+        new CalibrationLoader().load(textFiles, new CalibrationLoader.Listener() {
+            @Override
+            public void onLoaded(int index, Path path, Calibration calibration) {
+                calibrations[index] = calibration;
+            }
+
+            @Override
+            public void onError(int index, Path path, Exception error) {
+                error.printStackTrace();
+            }
+        });
+
+        try (Writer writer = new Writer(file)) {
+            for (int i = 0; i < calibrations.length; i++) {
+                if (calibrations[i] != null) {
+                    CalibrationFormat.addGradient(calibrations[i], gradientModel, increment);
+                    writer.add(textFiles.get(i).getFileName().toString(), calibrations[i]);
+                    calibrations[i] = null;
+                }
+            }
+            return writer.size();
+        }
+    }
+
+    public int size() {
+        return offsets.length;
+    }
+
+    /**
+     * Get the name a calibration was added with
+     *
+     * @param index the index of the calibration
+     * @return the name
+     * @throws IOException if the record is corrupt
+     */
+    public String getName(int index) throws IOException {
+        ByteBuffer record = getRecord(index);
+        int length = record.getInt();
+        if (length < 0 || length > record.remaining()) {
+            throw new IOException("Corrupt calibration archive: " + source);
+        }
+        byte[] bytes = new byte[length];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Read a calibration
+     *
+     * @param index the index of the calibration
+     * @return the calibration
+     * @throws IOException if the record is corrupt
+     */
+    public Calibration get(int index) throws IOException {
+        ByteBuffer record = getRecord(index);
+        int length = record.getInt();
+        if (length < 0 || length > record.remaining()) {
+            throw new IOException("Corrupt calibration archive: " + source);
+        }
+        record.position(record.position() + length);
+        return CalibrationFormat.read(record, source + "#" + index);
+    }
+
+    /**
+     * Read all the calibrations in order
+     *
+     * @return the calibrations
+     * @throws IOException if a record is corrupt
+     */
+    public List<Calibration> getAll() throws IOException {
+        List<Calibration> calibrations = new ArrayList<>(offsets.length);
+        for (int i = 0; i < offsets.length; i++) {
+            calibrations.add(get(i));
+        }
+        return calibrations;
+    }
+
+    private ByteBuffer getRecord(int index) throws IOException {
+        long offset = offsets[index];
+        if (offset < HEADER_SIZE || offset >= buffer.limit()) {
+            throw new IOException("Corrupt calibration archive: " + source);
+        }
+        ByteBuffer record = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        record.position((int) offset);
+        return record;
+    }
+
+    /**
+     * Writes calibrations to a new archive one after the other
+     */
+    public static final class Writer implements Closeable {
+        private static final int BUFFER_SIZE = 64 * 1024;
+
+        private final RandomAccessFile randomAccessFile;
+        private final FileChannel channel;
+        private long[] offsets = new long[64];
+        private int count;
+        private long position = HEADER_SIZE;
+        private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        /**
+         * @param file the archive file, replaced if it exists
+         * @throws IOException if the file could not be created
+         */
+        public Writer(File file) throws IOException {
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            channel = randomAccessFile.getChannel();
+            channel.truncate(0);
+            channel.position(HEADER_SIZE);
+        }
+
+        /**
+         * Add a calibration to the end of the archive
+         *
+         * @param name        the name of the calibration
+         * @param calibration the calibration
+         * @throws IOException if the calibration could not be written
+         */
+        public void add(String name, Calibration calibration) throws IOException {
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            int size = 4 + nameBytes.length + CalibrationFormat.getRecordSize(calibration);
+            if (buffer.remaining() < size) {
+                flush();
+                if (buffer.capacity() < size) {
+                    buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+                }
+            }
+
+            buffer.putInt(nameBytes.length).put(nameBytes);
+            CalibrationFormat.write(calibration, buffer);
+
+            if (count == offsets.length) {
+                long[] grown = new long[count * 2];
+                System.arraycopy(offsets, 0, grown, 0, count);
+                offsets = grown;
+            }
+            offsets[count++] = position;
+            position += size;
+        }
+
+        public int size() {
+            return count;
+        }
+
+        /**
+         * Write the index and header, completing the archive
+         *
+         * @throws IOException if the archive could not be written
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+
+                ByteBuffer index = ByteBuffer.allocate(count * 8).order(ByteOrder.LITTLE_ENDIAN);
+                index.asLongBuffer().put(offsets, 0, count);
+                write(index);
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(0).putLong(position);
+                header.flip();
+                channel.position(0);
+                write(header);
+            } finally {
+                channel.close();
+                randomAccessFile.close();
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            write(buffer);
+            buffer.clear();
+        }
+
+        private void write(ByteBuffer data) throws IOException {
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) Stichting Akvo (Akvo Foundation)
+ *
+ * This file is part of Akvo Caddisfly
+ *
+ * Akvo Caddisfly is free software: you can redistribute it and modify it under the terms of
+ * the GNU Affero General Public License (AGPL) as published by the Free Software Foundation,
+ * either version 3 of the License or any later version.
+ *
+ * Akvo Caddisfly is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License included below for more details.
+ *
+ * The full license text can also be seen at <http://www.gnu.org/licenses/agpl.html>.
+ */
+
+package org.akvo.caddisfly.helper;
+
+import org.akvo.caddisfly.model.Calibration;
+import org.akvo.caddisfly.model.Gradient;
+import org.akvo.caddisfly.model.Swatch;
+import org.akvo.caddisfly.util.Color;
+import org.akvo.caddisfly.util.ColorUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Reads and writes calibrations in a compact binary form
+ * <p>
+ * A calibration record holds, in little endian order:
+ * <pre>
+ * long     calibrated date, or -1
+ * long     reagent expiry date, or -1
+ * string   test code
+ * string   reagent batch
+ * int      swatch count, followed by the swatch values as doubles and then their colors as ints
+ * int      gradient color model ordinal, or -1 if the record has no gradient
+ * double   gradient increment, then the gradient size, values and colors as for the swatches
+ * </pre>
+ * Strings are an int byte length, or -1 for null, followed by UTF-8 bytes. The default color of
+ * the swatches is not kept, as with the text format.
+ */
+public final class CalibrationFormat {
+
+    private static final int MAGIC = 0x4343414C; // CCAL
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+
+    private static final int NO_GRADIENT = -1;
+
+    private CalibrationFormat() {
+    }
+
+    /**
+     * Load a calibration from a file written by save
+     *
+     * @param file the file
+     * @return the calibration
+     * @throws IOException if the file could not be read or is not a binary calibration
+     */
+    public static Calibration load(File file) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+             FileChannel channel = randomAccessFile.getChannel()) {
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // read until the buffer is full or the end of the file
+            }
+            buffer.flip();
+
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Not a binary calibration: " + file.getAbsolutePath());
+            }
+            return read(buffer, file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Save a calibration to a file
+     *
+     * @param calibration the calibration
+     * @param file        the file to write to
+     * @throws IOException if the file could not be written
+     */
+    public static void save(Calibration calibration, File file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + getRecordSize(calibration))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION);
+        write(calibration, buffer);
+        buffer.flip();
+
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+             FileChannel channel = randomAccessFile.getChannel()) {
+            channel.truncate(0);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Convert a calibration text file to a binary calibration file
+     *
+     * @param textFile      the calibration text file
+     * @param file          the file to write to
+     * @param gradientModel the color model of the gradient to save with the calibration or null for none
+     * @param increment     the increment of the gradient
+     * @return the calibration that was saved
+     * @throws Exception if the text file could not be loaded or the file could not be written
+     */
+    public static Calibration convert(File textFile, File file, ColorUtil.ColorModel gradientModel,
+                                      double increment) throws Exception {
+        Calibration calibration = SwatchHelper.loadCalibration(textFile);
+        addGradient(calibration, gradientModel, increment);
+        save(calibration, file);
+        return calibration;
+    }
+
+    /**
+     * Generate and set the gradient of a calibration
+     *
+     * @param calibration the calibration
+     * @param colorModel  the color model of the gradient or null for none
+     * @param increment   the increment of the gradient
+     */
+    static void addGradient(Calibration calibration, ColorUtil.ColorModel colorModel, double increment) {
+        if (colorModel != null) {
+            calibration.setGradient(ColorUtil.createGradient(calibration.getSwatches(), colorModel, increment),
+                    colorModel, increment);
+        }
+    }
+
+    /**
+     * Get the number of bytes write puts for a calibration
+     *
+     * @param calibration the calibration
+     * @return the size of the record in bytes
+     */
+    public static int getRecordSize(Calibration calibration) {
+        int size = 16 + getStringSize(calibration.getTestCode()) + getStringSize(calibration.getReagentBatch())
+                + 4 + calibration.getSwatches().size() * 12 + 4;
+        if (calibration.getGradient() != null) {
+            size += 12 + calibration.getGradient().size() * 12;
+        }
+        return size;
+    }
+
+    /**
+     * Put a calibration record at the position of a little endian buffer
+     *
+     * @param calibration the calibration
+     * @param buffer      the buffer with at least getRecordSize bytes remaining
+     */
+    public static void write(Calibration calibration, ByteBuffer buffer) {
+        buffer.putLong(calibration.getCalibratedDate());
+        buffer.putLong(calibration.getReagentExpiry());
+        putString(buffer, calibration.getTestCode());
+        putString(buffer, calibration.getReagentBatch());
+
+        ArrayList<Swatch> swatches = calibration.getSwatches();
+        buffer.putInt(swatches.size());
+        for (Swatch swatch : swatches) {
+            buffer.putDouble(swatch.getValue());
+        }
+        for (Swatch swatch : swatches) {
+            buffer.putInt(swatch.getColor());
+        }
+
+        Gradient gradient = calibration.getGradient();
+        if (gradient == null) {
+            buffer.putInt(NO_GRADIENT);
+        } else {
+            buffer.putInt(calibration.getGradientColorModel().ordinal());
+            buffer.putDouble(calibration.getGradientIncrement());
+            buffer.putInt(gradient.size());
+            for (double value : gradient.getValues()) {
+                buffer.putDouble(value);
+            }
+            for (int color : gradient.getColors()) {
+                buffer.putInt(color);
+            }
+        }
+    }
+
+    /**
+     * Get a calibration record from the position of a little endian buffer
+     *
+     * @param buffer the buffer
+     * @param source the name of the calibration used in the exception message
+     * @return the calibration
+     * @throws IOException if the record is truncated or corrupt
+     */
+    public static Calibration read(ByteBuffer buffer, String source) throws IOException {
+        try {
+            long calibratedDate = buffer.getLong();
+            long reagentExpiry = buffer.getLong();
+            String testCode = getString(buffer);
+            String reagentBatch = getString(buffer);
+
+            int count = getCount(buffer);
+            double[] values = new double[count];
+            int[] colors = new int[count];
+            buffer.asDoubleBuffer().get(values);
+            buffer.position(buffer.position() + count * 8);
+            buffer.asIntBuffer().get(colors);
+            buffer.position(buffer.position() + count * 4);
+
+            ArrayList<Swatch> swatches = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                swatches.add(new Swatch(values[i], colors[i], Color.TRANSPARENT));
+            }
+
+            Calibration calibration = new Calibration(swatches);
+            calibration.setCalibratedDate(calibratedDate);
+            calibration.setReagentExpiry(reagentExpiry);
+            calibration.setTestCode(testCode);
+            calibration.setReagentBatch(reagentBatch);
+
+            int model = buffer.getInt();
+            if (model != NO_GRADIENT) {
+                ColorUtil.ColorModel colorModel = ColorUtil.ColorModel.values()[model];
+                double increment = buffer.getDouble();
+                int size = getCount(buffer);
+                double[] gradientValues = new double[size];
+                int[] gradientColors = new int[size];
+                buffer.asDoubleBuffer().get(gradientValues);
+                buffer.position(buffer.position() + size * 8);
+                buffer.asIntBuffer().get(gradientColors);
+                buffer.position(buffer.position() + size * 4);
+                calibration.setGradient(new Gradient(gradientValues, gradientColors), colorModel, increment);
+            }
+            return calibration;
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new IOException("Corrupt binary calibration: " + source, e);
+        }
+    }
+
+    private static int getCount(ByteBuffer buffer) {
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining() / 12) {
+            throw new BufferUnderflowException();
+        }
+        return count;
+    }
+
+    private static int getStringSize(String text) {
+        return 4 + (text == null ? 0 : text.getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    private static void putString(ByteBuffer buffer, String text) {
+        if (text == null) {
+            buffer.putInt(-1);
+        } else {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) Stichting Akvo (Akvo Foundation)
+ *
+ * This file is part of Akvo Caddisfly
+ *
+ * Akvo Caddisfly is free software: you can redistribute it and modify it under the terms of
+ * the GNU Affero General Public License (AGPL) as published by the Free Software Foundation,
+ * either version 3 of the License or any later version.
+ *
+ * Akvo Caddisfly is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License included below for more details.
+ *
+ * The full license text can also be seen at <http://www.gnu.org/licenses/agpl.html>.
+ */
+
+package org.akvo.caddisfly.helper;
+
+import org.akvo.caddisfly.model.Calibration;
+import org.akvo.caddisfly.util.ByteBufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Loads calibration files from disk in bulk
+ * <p>
+ * The calling thread reads the files one after the other into pooled direct buffers and hands
+ * them to the pool to be parsed. Reading waits once all the buffers are waiting to be parsed, so
+ * the memory held by read ahead files stays bounded however many files are loaded. Files too
+ * large for a pooled buffer are memory mapped instead.
+ */
+public final class CalibrationLoader {
+
+    /**
+     * The capacity of each pooled buffer, larger than any calibration file in practice
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * The most files that are read but not yet parsed
+     */
+    public static final int DEFAULT_READ_AHEAD = 256;
+
+    private static final String CALIBRATION_FILE_EXTENSION = ".txt";
+
+    private static final ThreadLocal<CalibrationParser> parsers = ThreadLocal.withInitial(CalibrationParser::new);
+
+    private final ForkJoinPool pool;
+    private final ByteBufferPool bufferPool;
+
+    public CalibrationLoader() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public CalibrationLoader(ForkJoinPool pool) {
+        this(pool, DEFAULT_READ_AHEAD, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param pool       the pool the files are parsed in
+     * @param readAhead  the most files that are read but not yet parsed
+     * @param bufferSize the size from which files are memory mapped instead of read into a pooled buffer
+     */
+    public CalibrationLoader(ForkJoinPool pool, int readAhead, int bufferSize) {
+        this.pool = pool;
+        this.bufferPool = new ByteBufferPool(readAhead, bufferSize);
+    }
+
+    /**
+     * Receives the calibrations as they are loaded, possibly from several threads at once
+     */
+    public interface Listener {
+
+        /**
+         * @param index       the index of the file in the list being loaded
+         * @param path        the file
+         * @param calibration the calibration loaded from the file
+         */
+        void onLoaded(int index, Path path, Calibration calibration);
+
+        /**
+         * @param index the index of the file in the list being loaded
+         * @param path  the file
+         * @param error the reason the file could not be loaded
+         */
+        void onError(int index, Path path, Exception error);
+    }
+
+    /**
+     * List the calibration files in a directory and all of its subdirectories
+     *
+     * @param directory the directory
+     * @return the calibration files in sorted order
+     * @throws IOException if the directory could not be read
+     */
+    public static List<Path> listCalibrationFiles(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            return paths.filter(path -> isCalibrationFile(path) && Files.isRegularFile(path))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * @param path the path of a file
+     * @return true if the name of the file is that of a calibration file
+     */
+    static boolean isCalibrationFile(Path path) {
+        Path name = path.getFileName();
+        return name != null && name.toString().toLowerCase(Locale.US).endsWith(CALIBRATION_FILE_EXTENSION);
+    }
+
+    /**
+     * Load calibration files, returning once every file has been passed to the listener
+     *
+     * @param paths    the calibration files
+     * @param listener receives each calibration or the reason it could not be loaded
+     * @throws InterruptedException if interrupted while waiting for the files to be parsed
+     */
+    public void load(List<Path> paths, Listener listener) throws InterruptedException {
+        CountDownLatch remaining = new CountDownLatch(paths.size());
+
+        for (int i = 0; i < paths.size(); i++) {
+            Path path = paths.get(i);
+            ByteBuffer buffer = null;
+            boolean pooled = false;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size > bufferPool.getBufferSize()) {
+                    buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                } else {
+                    buffer = bufferPool.acquire();
+                    pooled = true;
+                    while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                        // read until the buffer is full or the end of the file
+                    }
+                    buffer.flip();
+                }
+            } catch (NoSuchFileException e) {
+                release(buffer, pooled);
+                listener.onError(i, path, new Exception(path.toAbsolutePath().toString()));
+                remaining.countDown();
+                continue;
+            } catch (IOException e) {
+                release(buffer, pooled);
+                listener.onError(i, path, e);
+                remaining.countDown();
+                continue;
+            }
+
+            pool.execute(new ParseTask(i, path, buffer, pooled, listener, remaining));
+        }
+
+        remaining.await();
+    }
+
+    private void release(ByteBuffer buffer, boolean pooled) {
+        if (pooled) {
+            bufferPool.release(buffer);
+        }
+    }
+
+    private final class ParseTask implements Runnable {
+        private final int index;
+        private final Path path;
+        private final ByteBuffer buffer;
+        private final boolean pooled;
+        private final Listener listener;
+        private final CountDownLatch remaining;
+
+        ParseTask(int index, Path path, ByteBuffer buffer, boolean pooled, Listener listener,
+                  CountDownLatch remaining) {
+            this.index = index;
+            this.path = path;
+            this.buffer = buffer;
+            this.pooled = pooled;
+            this.listener = listener;
+            this.remaining = remaining;
+        }
+
+        @Override
+        public void run() {
+            Calibration calibration = null;
+            Exception error = null;
+            try {
+                calibration = parsers.get().parse(buffer, path.toAbsolutePath().toString());
+            } catch (Exception e) {
+                error = e;
+            } finally {
+                release(buffer, pooled);
+            }
+
+            try {
+                if (error == null) {
+                    listener.onLoaded(index, path, calibration);
+                } else {
+                    listener.onError(index, path, error);
+                }
+            } finally {
+                remaining.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * Copyright (C) Stichting Akvo (Akvo Foundation)
+ *
+ * This file is part of Akvo Caddisfly
+ *
+ * Akvo Caddisfly is free software: you can redistribute it and modify it under the terms of
+ * the GNU Affero General Public License (AGPL) as published by the Free Software Foundation,
+ * either version 3 of the License or any later version.
+ *
+ * Akvo Caddisfly is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License included below for more details.
+ *
+ * The full license text can also be seen at <http://www.gnu.org/licenses/agpl.html>.
+ */
+
+package org.akvo.caddisfly.helper;
+
+import org.akvo.caddisfly.model.Calibration;
+import org.akvo.caddisfly.model.Swatch;
+import org.akvo.caddisfly.util.Color;
+import org.akvo.caddisfly.util.ColorUtil;
+import org.akvo.caddisfly.util.DateUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.text.NumberFormat;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Parses calibration files in a single pass over their bytes
+ * <p>
+ * Swatch lines are of the form {@code value=red green blue} and every other line may hold one of
+ * the calibration details {@code Calibrated:}, {@code ReagentExpiry:} or {@code ReagentBatch:}.
+ * Well formed lines are tokenized in place. Any other line is decoded and parsed the way the
+ * line based loader did, so unusual files give the same swatches or the same exception as before.
+ * When a detail appears more than once the first one is used.
+ * <p>
+ * A parser is not thread safe but may be reused for any number of files.
+ */
+public final class CalibrationParser {
+
+    private static final String CALIBRATED_DATE_FORMAT = "yyyy-MM-dd HH:mm";
+    private static final String REAGENT_EXPIRY_FORMAT = "yyyy-MM-dd";
+
+    private static final byte[] CALIBRATED = ascii("Calibrated:");
+    private static final byte[] REAGENT_EXPIRY = ascii("ReagentExpiry:");
+    private static final byte[] REAGENT_BATCH = ascii("ReagentBatch:");
+
+    /**
+     * The most digits of a value that are guaranteed to be exact in a long and a double
+     */
+    private static final int MAX_EXACT_DIGITS = 15;
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15
+    };
+
+    private final Charset charset;
+    private Calendar calendar;
+
+    public CalibrationParser() {
+        this(Charset.defaultCharset());
+    }
+
+    /**
+     * @param charset the charset used to decode the reagent batch and lines that are not well formed
+     */
+    public CalibrationParser(Charset charset) {
+        this.charset = charset;
+    }
+
+    /**
+     * Parse a calibration file
+     *
+     * @param file the calibration file
+     * @return the calibration, without swatches if the file could not be read
+     * @throws Exception if the file does not exist or has no swatches
+     */
+    public Calibration parse(File file) throws Exception {
+        if (!file.exists()) {
+            throw new Exception(file.getAbsolutePath());
+        }
+
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(file.toPath());
+        } catch (IOException e) {
+            return new Calibration(new ArrayList<>());
+        }
+        return parse(ByteBuffer.wrap(bytes), file.getAbsolutePath());
+    }
+
+    /**
+     * Parse a calibration from the remaining bytes of a buffer without changing its position
+     *
+     * @param buffer the calibration file content
+     * @param source the name of the calibration used in the exception message
+     * @return the calibration
+     * @throws Exception if there are no swatches
+     */
+    public Calibration parse(ByteBuffer buffer, String source) throws Exception {
+        Calibration calibration = new Calibration(new ArrayList<>());
+
+        int end = buffer.limit();
+        int lineStart = buffer.position();
+        while (lineStart < end) {
+            int lineEnd = lineStart;
+            int separator = -1;
+            while (lineEnd < end) {
+                byte b = buffer.get(lineEnd);
+                if (b == '\n' || b == '\r') {
+                    break;
+                }
+                if (b == '=' && separator < 0) {
+                    separator = lineEnd;
+                }
+                lineEnd++;
+            }
+
+            if (separator < 0) {
+                parseDetail(buffer, lineStart, lineEnd, calibration);
+            } else {
+                parseSwatch(buffer, lineStart, separator, lineEnd, calibration.getSwatches());
+            }
+
+            lineStart = lineEnd;
+            if (lineStart < end && buffer.get(lineStart++) == '\r' && lineStart < end
+                    && buffer.get(lineStart) == '\n') {
+                lineStart++;
+            }
+        }
+
+        if (calibration.getSwatches().size() == 0) {
+            throw new Exception(source);
+        }
+        return calibration;
+    }
+
+    private void parseSwatch(ByteBuffer buffer, int start, int separator, int end, ArrayList<Swatch> swatches) {
+        int colorEnd = indexOf(buffer, (byte) '=', separator + 1, end);
+        if (colorEnd < 0) {
+            colorEnd = end;
+        }
+
+        double value = parseValue(buffer, start, separator);
+        int rgb = value == value ? parseRgb(buffer, separator + 1, colorEnd) : -1;
+
+        if (rgb < 0) {
+            String line = decode(buffer, start, end);
+            String[] values = line.split("=");
+            swatches.add(new Swatch(stringToDouble(values[0].replace(',', '.')),
+                    ColorUtil.getColorFromRgb(values[1].trim()), Color.TRANSPARENT));
+        } else {
+            swatches.add(new Swatch(value, Color.rgb(rgb >> 16, (rgb >> 8) & 0xff, rgb & 0xff),
+                    Color.TRANSPARENT));
+        }
+    }
+
+    private void parseDetail(ByteBuffer buffer, int start, int end, Calibration calibration) {
+        if (contains(buffer, start, end, CALIBRATED) && calibration.getCalibratedDate() == Calibration.NO_DATE) {
+            calibration.setCalibratedDate(parseDate(buffer, valueStart(buffer, start, end), end, true));
+        }
+        if (contains(buffer, start, end, REAGENT_EXPIRY) && calibration.getReagentExpiry() == Calibration.NO_DATE) {
+            calibration.setReagentExpiry(parseDate(buffer, valueStart(buffer, start, end), end, false));
+        }
+        if (contains(buffer, start, end, REAGENT_BATCH) && calibration.getReagentBatch() == null) {
+            calibration.setReagentBatch(decode(buffer, valueStart(buffer, start, end), end).trim());
+        }
+    }
+
+    /**
+     * Parse an unsigned decimal with an optional minus sign and a point or comma as decimal separator
+     *
+     * @return the value or NaN if the text is not in that form or is too long to convert exactly
+     */
+    private static double parseValue(ByteBuffer buffer, int start, int end) {
+        int i = start;
+        boolean negative = i < end && buffer.get(i) == '-';
+        if (negative) {
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        int digit;
+        while (i < end && (digit = buffer.get(i) - '0') >= 0 && digit <= 9) {
+            mantissa = mantissa * 10 + digit;
+            digits++;
+            i++;
+        }
+        if (digits == 0) {
+            return Double.NaN;
+        }
+
+        if (i < end && (buffer.get(i) == '.' || buffer.get(i) == ',')) {
+            i++;
+            while (i < end && (digit = buffer.get(i) - '0') >= 0 && digit <= 9) {
+                mantissa = mantissa * 10 + digit;
+                scale++;
+                i++;
+            }
+            if (scale == 0) {
+                return Double.NaN;
+            }
+        }
+
+        if (digits + scale > MAX_EXACT_DIGITS || (i < end && !isBlank(buffer.get(i)))) {
+            return Double.NaN;
+        }
+
+        double value = mantissa / POWERS_OF_TEN[scale];
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parse three blank separated color components of at most 255
+     *
+     * @return the components packed as 0xRRGGBB or -1 if the text is not in that form
+     */
+    private static int parseRgb(ByteBuffer buffer, int start, int end) {
+        int i = start;
+        while (i < end && isBlank(buffer.get(i))) {
+            i++;
+        }
+
+        int rgb = 0;
+        for (int component = 0; component < 3; component++) {
+            if (component > 0) {
+                int blankStart = i;
+                while (i < end && isBlank(buffer.get(i))) {
+                    i++;
+                }
+                if (i == blankStart) {
+                    return -1;
+                }
+            }
+
+            int digitStart = i;
+            int value = 0;
+            int digit;
+            while (i < end && (digit = buffer.get(i) - '0') >= 0 && digit <= 9) {
+                value = value * 10 + digit;
+                if (value > 255) {
+                    return -1;
+                }
+                i++;
+            }
+            if (i == digitStart) {
+                return -1;
+            }
+            rgb = (rgb << 8) | value;
+        }
+
+        return i == end || isBlank(buffer.get(i)) ? rgb : -1;
+    }
+
+    private long parseDate(ByteBuffer buffer, int start, int end, boolean withTime) {
+        while (start < end && (buffer.get(start) & 0xff) <= ' ') {
+            start++;
+        }
+        while (end > start && (buffer.get(end - 1) & 0xff) <= ' ') {
+            end--;
+        }
+
+        // yyyy-MM-dd HH:mm or yyyy-MM-dd
+        if (end - start == (withTime ? 16 : 10)
+                && buffer.get(start + 4) == '-' && buffer.get(start + 7) == '-'
+                && (!withTime || (buffer.get(start + 10) == ' ' && buffer.get(start + 13) == ':'))) {
+            int year = parseDigits(buffer, start, 4);
+            int month = parseDigits(buffer, start + 5, 2);
+            int day = parseDigits(buffer, start + 8, 2);
+            int hour = withTime ? parseDigits(buffer, start + 11, 2) : 0;
+            int minute = withTime ? parseDigits(buffer, start + 14, 2) : 0;
+            if ((year | month | day | hour | minute) >= 0) {
+                if (calendar == null) {
+                    calendar = Calendar.getInstance(Locale.US);
+                }
+                calendar.clear();
+                calendar.set(year, month - 1, day, hour, minute);
+                return calendar.getTimeInMillis();
+            }
+        }
+
+        Date date = DateUtil.convertStringToDate(decode(buffer, start, end),
+                withTime ? CALIBRATED_DATE_FORMAT : REAGENT_EXPIRY_FORMAT);
+        return date == null ? Calibration.NO_DATE : date.getTime();
+    }
+
+    /**
+     * @return the value of the digits or -1 if any of them is not a digit
+     */
+    private static int parseDigits(ByteBuffer buffer, int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * Convert a string number into a double value
+     *
+     * @param text the text to be converted to number
+     * @return the double value
+     */
+    private static double stringToDouble(String text) {
+
+        text = text.replaceAll(",", ".");
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+        try {
+            return nf.parse(text).doubleValue();
+        } catch (ParseException e) {
+            e.printStackTrace();
+            return 0.0;
+        }
+    }
+
+    private static int valueStart(ByteBuffer buffer, int start, int end) {
+        return indexOf(buffer, (byte) ':', start, end) + 1;
+    }
+
+    private static int indexOf(ByteBuffer buffer, byte value, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (buffer.get(i) == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean contains(ByteBuffer buffer, int start, int end, byte[] text) {
+        int last = end - text.length;
+        for (int i = start; i <= last; i++) {
+            int j = 0;
+            while (j < text.length && buffer.get(i + j) == text[j]) {
+                j++;
+            }
+            if (j == text.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isBlank(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private String decode(ByteBuffer buffer, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(start + i);
+        }
+        return new String(bytes, charset);
+    }
+
+    private static byte[] ascii(String text) {
+        byte[] bytes = new byte[text.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) text.charAt(i);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) Stichting Akvo (Akvo Foundation)
+ *
+ * This file is part of Akvo Caddisfly
+ *
+ * Akvo Caddisfly is free software: you can redistribute it and modify it under the terms of
+ * the GNU Affero General Public License (AGPL) as published by the Free Software Foundation,
+ * either version 3 of the License or any later version.
+ *
+ * Akvo Caddisfly is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License included below for more details.
+ *
+ * The full license text can also be seen at <http://www.gnu.org/licenses/agpl.html>.
+ */
+
+package org.akvo.caddisfly.helper;
+
+import org.akvo.caddisfly.model.Gradient;
+import org.akvo.caddisfly.model.Swatch;
+import org.akvo.caddisfly.util.ColorUtil;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Calibrations registered once and then referred to by id
+ * <p>
+ * The id is the SHA-256 hash of the swatch values and colors in order, so registering the same
+ * calibration again returns the same id without redoing any work. The gradients of every color
+ * model are generated when a calibration is registered. The least recently used calibrations are
+ * evicted once the estimated memory held by the registry passes its limit. The size of the
+ * gradients is worked out from the swatch values before they are generated, and a calibration
+ * whose gradients would be too large is refused.
+ */
+public final class CalibrationRegistry {
+
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * The increment of the generated gradients, the same as used by the analysis
+     */
+    public static final double GRADIENT_INCREMENT = 0.01;
+
+    /**
+     * The estimated bytes held for each gradient color: its value and color, Lab terms and index
+     */
+    private static final int BYTES_PER_COLOR = 8 + 4 + 8 * 4 + 4;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final long maxBytes;
+    private long byteSize;
+
+    public CalibrationRegistry() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxBytes the estimated memory above which calibrations are evicted
+     */
+    public CalibrationRegistry(long maxBytes) {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("maxBytes must be at least 1");
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Register a calibration, generating its gradients unless it is already registered
+     *
+     * @param swatches the calibrated swatches
+     * @return the registered calibration
+     * @throws IllegalArgumentException if a gradient would have more than
+     *                                  {@link ColorUtil#MAX_GRADIENT_SIZE} colors or the calibration
+     *                                  would take more than the memory limit of the registry
+     */
+    public Entry register(ArrayList<Swatch> swatches) {
+        long gradientSize = ColorUtil.getGradientSize(swatches, GRADIENT_INCREMENT);
+        if (gradientSize > ColorUtil.MAX_GRADIENT_SIZE) {
+            throw new IllegalArgumentException("The swatch values are too far apart, the gradient between them "
+                    + "would have more than " + ColorUtil.MAX_GRADIENT_SIZE + " colors");
+        }
+        long entrySize = estimateByteSize(swatches.size(), gradientSize);
+        if (entrySize > maxBytes) {
+            throw new IllegalArgumentException("The calibration would take " + entrySize
+                    + " bytes, more than the registry limit of " + maxBytes);
+        }
+
+        Gradient calibration = Gradient.fromSwatches(swatches);
+        String id = computeId(calibration);
+
+        synchronized (this) {
+            Entry entry = entries.get(id);
+            if (entry != null) {
+                return entry;
+            }
+        }
+
+        // generate outside the lock, a concurrent registration of the same calibration just builds it twice
+        ColorUtil.ColorModel[] colorModels = ColorUtil.ColorModel.values();
+        Gradient[] gradients = new Gradient[colorModels.length];
+        for (ColorUtil.ColorModel colorModel : colorModels) {
+            gradients[colorModel.ordinal()] = ColorUtil.createGradient(swatches, colorModel, GRADIENT_INCREMENT);
+        }
+        Entry entry = new Entry(id, calibration, gradients);
+
+        synchronized (this) {
+            Entry existing = entries.get(id);
+            if (existing != null) {
+                return existing;
+            }
+            entries.put(id, entry);
+            byteSize += entry.getByteSize();
+            evict();
+        }
+        return entry;
+    }
+
+    /**
+     * Get a registered calibration
+     *
+     * @param id the id returned when the calibration was registered
+     * @return the calibration or null if it is not registered or has been evicted
+     */
+    public synchronized Entry get(String id) {
+        return entries.get(id);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the estimated memory held by the registered calibrations in bytes
+     */
+    public synchronized long getByteSize() {
+        return byteSize;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        byteSize = 0;
+    }
+
+    /**
+     * Estimate the memory held for a calibration from the size of its RGB and LAB gradients,
+     * the HSV gradient always having the same size
+     */
+    private static long estimateByteSize(int swatchCount, long gradientSize) {
+        long colors = swatchCount;
+        for (ColorUtil.ColorModel colorModel : ColorUtil.ColorModel.values()) {
+            colors += colorModel == ColorUtil.ColorModel.HSV ? ColorUtil.HSV_GRADIENT_STEPS : gradientSize;
+        }
+        return colors * BYTES_PER_COLOR;
+    }
+
+    private void evict() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        // the calibration just registered is used last and fits within the limit, so it is never evicted
+        while (byteSize > maxBytes) {
+            byteSize -= iterator.next().getByteSize();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Compute the id of a calibration from the SHA-256 hash of its values and colors
+     *
+     * @param calibration the calibrated values and colors
+     * @return the hash as lower case hexadecimal
+     */
+    public static String computeId(Gradient calibration) {
+        ByteBuffer content = ByteBuffer.allocate(calibration.size() * 12);
+        for (int i = 0; i < calibration.size(); i++) {
+            content.putLong(Double.doubleToLongBits(calibration.getValue(i))).putInt(calibration.getColor(i));
+        }
+
+        byte[] hash;
+        try {
+            hash = MessageDigest.getInstance("SHA-256").digest(content.array());
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+
+        StringBuilder id = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            id.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return id.toString();
+    }
+
+    /**
+     * A registered calibration with its generated gradients
+     */
+    public static final class Entry {
+        private final String id;
+        private final Gradient swatches;
+        private final Gradient[] gradients;
+        private final long byteSize;
+
+        Entry(String id, Gradient swatches, Gradient[] gradients) {
+            this.id = id;
+            this.swatches = swatches;
+            this.gradients = gradients;
+
+            long colors = swatches.size();
+            for (Gradient gradient : gradients) {
+                colors += gradient.size();
+            }
+            byteSize = colors * BYTES_PER_COLOR;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public Gradient getSwatches() {
+            return swatches;
+        }
+
+        /**
+         * @param colorModel the color model
+         * @return the gradient generated in the color model
+         */
+        public Gradient getGradient(ColorUtil.ColorModel colorModel) {
+            return gradients[colorModel.ordinal()];
+        }
+
+        long getByteSize() {
+            return byteSize;
+        }
+    }
+}
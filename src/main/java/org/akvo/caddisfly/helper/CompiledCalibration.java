@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) Stichting Akvo (Akvo Foundation)
+ *
+ * This file is part of Akvo Caddisfly
+ *
+ * Akvo Caddisfly is free software: you can redistribute it and modify it under the terms of
+ * the GNU Affero General Public License (AGPL) as published by the Free Software Foundation,
+ * either version 3 of the License or any later version.
+ *
+ * Akvo Caddisfly is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License included below for more details.
+ *
+ * The full license text can also be seen at <http://www.gnu.org/licenses/agpl.html>.
+ */
+
+package org.akvo.caddisfly.helper;
+
+import org.akvo.caddisfly.model.ColorCompareInfo;
+import org.akvo.caddisfly.model.Gradient;
+import org.akvo.caddisfly.util.ColorKdTree;
+import org.akvo.caddisfly.util.ColorUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.stream.IntStream;
+
+/**
+ * A calibration compiled into a lookup table holding the analysis result for every 24 bit color
+ * <p>
+ * The candidate colors are the calibrated swatches followed by the entries of their gradient.
+ * Each table entry is the index of the matched candidate with the top bit set when the match
+ * is too far away to give a result. Entries are two bytes wide when the candidates allow it and
+ * four bytes otherwise, held off heap or memory mapped from a file.
+ */
+public final class CompiledCalibration {
+
+    private static final int TABLE_SIZE = 1 << 24;
+    private static final int MAGIC = 0x43434C54; // CCLT
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+
+    private final double[] values;
+    private final int[] colors;
+    private final double[] exactMatchDistances;
+    private final int swatchCount;
+    private final ColorUtil.ColorModel colorModel;
+    private final int entrySize;
+    private final ByteBuffer table;
+
+    private CompiledCalibration(double[] values, int[] colors, double[] exactMatchDistances,
+                                int swatchCount, ColorUtil.ColorModel colorModel, int entrySize,
+                                ByteBuffer table) {
+        this.values = values;
+        this.colors = colors;
+        this.exactMatchDistances = exactMatchDistances;
+        this.swatchCount = swatchCount;
+        this.colorModel = colorModel;
+        this.entrySize = entrySize;
+        this.table = table;
+    }
+
+    /**
+     * Compile the lookup table for the calibrated swatches
+     *
+     * @param swatches   the calibrated swatches
+     * @param gradient   the gradient generated from the swatches
+     * @param colorModel the color model the gradient was generated in
+     * @return the compiled calibration
+     */
+    static CompiledCalibration compile(Gradient swatches, Gradient gradient, ColorUtil.ColorModel colorModel) {
+        if (!ColorUtil.isColorDistanceRgb()) {
+            throw new UnsupportedOperationException("Calibration can only be compiled for RGB distance");
+        }
+
+        int swatchCount = swatches.size();
+        int count = swatchCount + gradient.size();
+        if (swatchCount == 0 || gradient.size() == 0) {
+            throw new IllegalArgumentException("Calibration has no colors");
+        }
+
+        double[] values = new double[count];
+        int[] colors = new int[count];
+        System.arraycopy(swatches.getValues(), 0, values, 0, swatchCount);
+        System.arraycopy(swatches.getColors(), 0, colors, 0, swatchCount);
+        System.arraycopy(gradient.getValues(), 0, values, swatchCount, gradient.size());
+        System.arraycopy(gradient.getColors(), 0, colors, swatchCount, gradient.size());
+
+        final ColorKdTree swatchIndex = new ColorKdTree(swatches.getColors());
+        final ColorKdTree gradientIndex = gradient.getColorIndex();
+        final int[] swatchColors = swatches.getColors();
+        final int[] gradientColors = gradient.getColors();
+        final double minDistance = ColorUtil.getMinDistance();
+        final double maxDistance = ColorUtil.getMaxDistance();
+
+        // the distance reported for a color that exactly matches a candidate
+        double[] exactMatchDistances = new double[count];
+        for (int i = 0; i < count; i++) {
+            boolean isSwatch = i < swatchCount;
+            ColorKdTree index = isSwatch ? swatchIndex : gradientIndex;
+            int[] indexColors = isSwatch ? swatchColors : gradientColors;
+            double distance = isSwatch ? minDistance : maxDistance;
+            int previous = index.nearest(colors[i], isSwatch ? i : i - swatchCount);
+            if (previous > -1) {
+                distance = Math.min(distance, ColorUtil.getColorDistance(indexColors[previous], colors[i]));
+            }
+            exactMatchDistances[i] = distance;
+        }
+
+        final int entrySize = count < 0x8000 ? 2 : 4;
+        final ByteBuffer table = ByteBuffer.allocateDirect(TABLE_SIZE * entrySize)
+                .order(ByteOrder.LITTLE_ENDIAN);
+
+        IntStream.range(0, 256).parallel().forEach(red -> {
+            for (int rgb = red << 16, end = rgb + 0x10000; rgb < end; rgb++) {
+                int entry;
+                int index = swatchIndex.nearest(rgb);
+                if (ColorUtil.getColorDistance(swatchColors[index], rgb) < minDistance) {
+                    entry = index;
+                } else {
+                    index = gradientIndex.nearest(rgb);
+                    entry = swatchCount + index;
+                    if (ColorUtil.getColorDistance(gradientColors[index], rgb) >= maxDistance) {
+                        entry |= entrySize == 2 ? 0x8000 : 0x80000000;
+                    }
+                }
+                if (entrySize == 2) {
+                    table.putShort(rgb * 2, (short) entry);
+                } else {
+                    table.putInt(rgb * 4, entry);
+                }
+            }
+        });
+
+        return new CompiledCalibration(values, colors, exactMatchDistances, swatchCount, colorModel,
+                entrySize, table);
+    }
+
+    /**
+     * Load a compiled calibration by memory mapping a file written by save
+     *
+     * @param file the file
+     * @return the compiled calibration
+     * @throws IOException if the file could not be read or is not a compiled calibration
+     */
+    public static CompiledCalibration load(File file) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+             FileChannel channel = randomAccessFile.getChannel()) {
+
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                    .order(ByteOrder.LITTLE_ENDIAN);
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Not a compiled calibration: " + file.getAbsolutePath());
+            }
+            int entrySize = buffer.getInt();
+            int swatchCount = buffer.getInt();
+            int count = buffer.getInt();
+            ColorUtil.ColorModel colorModel = ColorUtil.ColorModel.values()[buffer.getInt()];
+            buffer.position(HEADER_SIZE);
+
+            double[] values = new double[count];
+            int[] colors = new int[count];
+            double[] exactMatchDistances = new double[count];
+            buffer.asDoubleBuffer().get(values);
+            buffer.position(buffer.position() + count * 8);
+            buffer.asIntBuffer().get(colors);
+            buffer.position(buffer.position() + count * 4);
+            buffer.asDoubleBuffer().get(exactMatchDistances);
+            buffer.position(buffer.position() + count * 8);
+
+            ByteBuffer table = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+            if (table.remaining() != TABLE_SIZE * entrySize) {
+                throw new IOException("Truncated compiled calibration: " + file.getAbsolutePath());
+            }
+
+            return new CompiledCalibration(values, colors, exactMatchDistances, swatchCount, colorModel,
+                    entrySize, table);
+        }
+    }
+
+    /**
+     * Save the compiled calibration so that it can be memory mapped by load
+     *
+     * @param file the file to write to
+     * @throws IOException if the file could not be written
+     */
+    public void save(File file) throws IOException {
+        int count = colors.length;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + count * 20).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(entrySize).putInt(swatchCount).putInt(count)
+                .putInt(colorModel.ordinal());
+        header.position(HEADER_SIZE);
+        for (double value : values) {
+            header.putDouble(value);
+        }
+        for (int color : colors) {
+            header.putInt(color);
+        }
+        for (double distance : exactMatchDistances) {
+            header.putDouble(distance);
+        }
+        header.flip();
+
+        ByteBuffer entries = table.duplicate();
+        entries.clear();
+
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+             FileChannel channel = randomAccessFile.getChannel()) {
+            channel.truncate(0);
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            while (entries.hasRemaining()) {
+                channel.write(entries);
+            }
+        }
+    }
+
+    /**
+     * Look up the nearest calibrated color
+     *
+     * @param colorToFind the color to find
+     * @return the compare info, identical to what the analysis would find
+     */
+    public ColorCompareInfo getNearestColor(int colorToFind) {
+        int rgb = colorToFind & 0xFFFFFF;
+        int entry = entrySize == 2 ? table.getShort(rgb * 2) & 0xFFFF : table.getInt(rgb * 4);
+        boolean noResult = (entry & (entrySize == 2 ? 0x8000 : 0x80000000)) != 0;
+        int index = entry & (entrySize == 2 ? 0x7FFF : 0x7FFFFFFF);
+
+        int matchedColor = colors[index];
+        double distance;
+        if ((matchedColor & 0xFFFFFF) == rgb) {
+            distance = exactMatchDistances[index];
+        } else {
+            distance = ColorUtil.getColorDistance(matchedColor, colorToFind);
+        }
+
+        return new ColorCompareInfo(noResult ? -1 : values[index], colorToFind, matchedColor, distance);
+    }
+
+    public int getSwatchCount() {
+        return swatchCount;
+    }
+
+    public ColorUtil.ColorModel getColorModel() {
+        return colorModel;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) Stichting Akvo (Akvo Foundation)
+ *
+ * This file is part of Akvo Caddisfly
+ *
+ * Akvo Caddisfly is free software: you can redistribute it and modify it under the terms of
+ * the GNU Affero General Public License (AGPL) as published by the Free Software Foundation,
+ * either version 3 of the License or any later version.
+ *
+ * Akvo Caddisfly is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License included below for more details.
+ *
+ * The full license text can also be seen at <http://www.gnu.org/licenses/agpl.html>.
+ */
+
+package org.akvo.caddisfly.helper;
+
+import org.akvo.caddisfly.model.Gradient;
+import org.akvo.caddisfly.model.Swatch;
+import org.akvo.caddisfly.model.SwatchTable;
+import org.akvo.caddisfly.util.ColorUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded least recently used cache of generated gradients keyed by the calibration content
+ */
+public final class GradientCache {
+
+    public static final int DEFAULT_CAPACITY = 64;
+
+    private final LinkedHashMap<Key, Gradient> gradients;
+    private long hitCount;
+    private long missCount;
+
+    public GradientCache(final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        gradients = new LinkedHashMap<Key, Gradient>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Gradient> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Gets the gradient for the calibrated swatches, generating it if it is not already cached
+     *
+     * @param swatches   the calibrated swatches
+     * @param colorModel the color model to interpolate in
+     * @param increment  the value increment between gradient entries
+     * @return the gradient
+     */
+    public Gradient get(ArrayList<Swatch> swatches, ColorUtil.ColorModel colorModel, double increment) {
+        Key key = new Key(Gradient.fromSwatches(swatches), colorModel, increment);
+        Gradient gradient = lookup(key);
+        if (gradient != null) {
+            return gradient;
+        }
+
+        // generate outside the lock, a concurrent miss on the same key just builds it twice
+        return store(key, ColorUtil.createGradient(swatches, colorModel, increment));
+    }
+
+    /**
+     * Gets the gradient for a table of calibrated swatches, generating it if it is not already cached.
+     * Shares entries with the same swatches held in a list
+     *
+     * @param swatches   the calibrated swatches
+     * @param colorModel the color model to interpolate in
+     * @param increment  the value increment between gradient entries
+     * @return the gradient
+     */
+    public Gradient get(SwatchTable swatches, ColorUtil.ColorModel colorModel, double increment) {
+        Key key = new Key(swatches.toGradient(), colorModel, increment);
+        Gradient gradient = lookup(key);
+        if (gradient != null) {
+            return gradient;
+        }
+        return store(key, ColorUtil.createGradient(swatches, colorModel, increment));
+    }
+
+    private synchronized Gradient lookup(Key key) {
+        Gradient gradient = gradients.get(key);
+        if (gradient != null) {
+            hitCount++;
+        } else {
+            missCount++;
+        }
+        return gradient;
+    }
+
+    private synchronized Gradient store(Key key, Gradient gradient) {
+        Gradient existing = gradients.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        gradients.put(key, gradient);
+        return gradient;
+    }
+
+    public synchronized int size() {
+        return gradients.size();
+    }
+
+    public synchronized void clear() {
+        gradients.clear();
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    private static final class Key {
+        private final Gradient calibration;
+        private final ColorUtil.ColorModel colorModel;
+        private final double increment;
+        private final int hash;
+
+        Key(Gradient calibration, ColorUtil.ColorModel colorModel, double increment) {
+            this.calibration = calibration;
+            this.colorModel = colorModel;
+            this.increment = increment;
+
+            int h = Arrays.hashCode(calibration.getValues());
+            h = 31 * h + Arrays.hashCode(calibration.getColors());
+            h = 31 * h + colorModel.hashCode();
+            h = 31 * h + Double.hashCode(increment);
+            hash = h;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash
+                    && colorModel == other.colorModel
+                    && Double.compare(increment, other.increment) == 0
+                    && Arrays.equals(calibration.getColors(), other.calibration.getColors())
+                    && Arrays.equals(calibration.getValues(), other.calibration.getValues());
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) Stichting Akvo (Akvo Foundation)
+ *
+ * This file is part of Akvo Caddisfly
+ *
+ * Akvo Caddisfly is free software: you can redistribute it and modify it under the terms of
+ * the GNU Affero General Public License (AGPL) as published by the Free Software Foundation,
+ * either version 3 of the License or any later version.
+ *
+ * Akvo Caddisfly is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License included below for more details.
+ *
+ * The full license text can also be seen at <http://www.gnu.org/licenses/agpl.html>.
+ */
+
+package org.akvo.caddisfly.helper;
+
+import org.akvo.caddisfly.model.BatchEvaluation;
+import org.akvo.caddisfly.model.Calibration;
+import org.akvo.caddisfly.model.CalibrationEvaluation;
+import org.akvo.caddisfly.model.Gradient;
+import org.akvo.caddisfly.model.Swatch;
+import org.akvo.caddisfly.util.ColorUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Keeps the evaluation of a directory of calibration files up to date as files change
+ * <p>
+ * The content hash, swatches, gradient and evaluation of every file are kept along with a
+ * {@link CalibrationAccumulator} of the swatch colors that the average reference is computed from. An update
+ * reads only the files that are new or changed, parses only those whose content changed and
+ * analyzes only those calibrations, unless the change moved the rounded average reference in
+ * which case every calibration is analyzed again from its kept gradient. Unchanged calibrations
+ * keep the same evaluation objects from one update to the next.
+ * <p>
+ * The evaluations equal those of {@link BatchEvaluator} for the same files.
+ */
+public final class IncrementalEvaluator {
+
+    private static final ThreadLocal<CalibrationParser> parsers = ThreadLocal.withInitial(CalibrationParser::new);
+
+    private static final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final Path directory;
+    private final ArrayList<Swatch> reference;
+    private final ForkJoinPool pool;
+    private final TreeMap<Path, FileState> files = new TreeMap<>();
+
+    private final CalibrationAccumulator accumulator = new CalibrationAccumulator();
+
+    private ArrayList<Swatch> referenceSwatches = new ArrayList<>();
+    private BatchEvaluation evaluation = new BatchEvaluation(referenceSwatches, new ArrayList<>());
+    private int analyzedCount;
+
+    /**
+     * @param directory the directory of calibration files
+     * @param reference the reference calibration or an empty list to use the average of the files
+     */
+    public IncrementalEvaluator(Path directory, ArrayList<Swatch> reference) {
+        this(directory, reference, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param directory the directory of calibration files
+     * @param reference the reference calibration or an empty list to use the average of the files
+     * @param pool      the pool the files are loaded and analyzed in
+     */
+    public IncrementalEvaluator(Path directory, ArrayList<Swatch> reference, ForkJoinPool pool) {
+        this.directory = directory;
+        this.reference = reference;
+        this.pool = pool;
+    }
+
+    /**
+     * Gets the evaluation as of the last update
+     *
+     * @return the evaluation of the files in sorted order
+     */
+    public synchronized BatchEvaluation getEvaluation() {
+        return evaluation;
+    }
+
+    /**
+     * Gets the number of calibrations that were analyzed by the last update
+     *
+     * @return the number of calibrations analyzed
+     */
+    public synchronized int getAnalyzedCount() {
+        return analyzedCount;
+    }
+
+    /**
+     * Compare every file in the directory with when it was last read, reading again those with a
+     * different size or modification time
+     *
+     * @return the evaluation of the files in sorted order
+     * @throws IOException if the directory could not be read
+     */
+    public synchronized BatchEvaluation refresh() throws IOException {
+        Set<Path> removed = new HashSet<>(files.keySet());
+        List<Path> candidates = new ArrayList<>();
+        for (Path path : CalibrationLoader.listCalibrationFiles(directory)) {
+            removed.remove(path);
+            FileState state = files.get(path);
+            if (state == null || state.isModified(path)) {
+                candidates.add(path);
+            }
+        }
+        return update(candidates, removed);
+    }
+
+    /**
+     * Read again the given files and the files in the given directories
+     *
+     * @param changed the files and directories that were created, changed or deleted
+     * @return the evaluation of the files in sorted order
+     * @throws IOException if a changed directory could not be read
+     */
+    public synchronized BatchEvaluation update(Collection<Path> changed) throws IOException {
+        Set<Path> candidates = new TreeSet<>();
+        Set<Path> removed = new HashSet<>();
+        for (Path path : changed) {
+            if (Files.isDirectory(path)) {
+                for (Path file : CalibrationLoader.listCalibrationFiles(path)) {
+                    FileState state = files.get(file);
+                    if (state == null || state.isModified(file)) {
+                        candidates.add(file);
+                    }
+                }
+            } else if (Files.exists(path)) {
+                if (CalibrationLoader.isCalibrationFile(path) && Files.isRegularFile(path)) {
+                    candidates.add(path);
+                }
+            } else {
+                // Either a file or a directory of files was deleted. The paths under it sort together
+                // with siblings such as "name.txt" or "name-2" that share its text, so stop at the first
+                // key that does not and skip the siblings
+                String prefix = path.toString();
+                for (Path file : files.tailMap(path, true).keySet()) {
+                    if (!file.toString().startsWith(prefix)) {
+                        break;
+                    }
+                    if (file.startsWith(path)) {
+                        removed.add(file);
+                    }
+                }
+            }
+        }
+        return update(candidates, removed);
+    }
+
+    private BatchEvaluation update(Collection<Path> candidates, Collection<Path> removed) {
+        final Path[] paths = candidates.toArray(new Path[candidates.size()]);
+        final FileState[] loaded = new FileState[paths.length];
+        pool.invoke(new BatchEvaluator.RangeTask(0, paths.length) {
+            @Override
+            void compute(int index) {
+                loaded[index] = load(paths[index], files.get(paths[index]));
+            }
+        });
+
+        for (Path path : removed) {
+            FileState state = files.remove(path);
+            if (state != null) {
+                subtract(state);
+            }
+        }
+
+        List<FileState> changed = new ArrayList<>();
+        for (int i = 0; i < paths.length; i++) {
+            FileState previous = files.get(paths[i]);
+            FileState state = loaded[i];
+            if (state == previous) {
+                continue;
+            }
+            if (previous != null) {
+                files.remove(paths[i]);
+                subtract(previous);
+            }
+            if (state != null) {
+                files.put(paths[i], state);
+                add(state);
+                changed.add(state);
+            }
+        }
+
+        ArrayList<Swatch> newReference = reference != null && reference.size() > 0 ? reference : average();
+        final FileState[] analyze;
+        if (hasSameColors(newReference, referenceSwatches)) {
+            analyze = changed.toArray(new FileState[changed.size()]);
+        } else {
+            referenceSwatches = newReference;
+            analyze = files.values().toArray(new FileState[files.size()]);
+        }
+
+        final ArrayList<Swatch> analyzeReference = referenceSwatches;
+        pool.invoke(new BatchEvaluator.RangeTask(0, analyze.length) {
+            @Override
+            void compute(int index) {
+                analyze[index].analyze(analyzeReference);
+            }
+        });
+        analyzedCount = analyze.length;
+
+        ArrayList<CalibrationEvaluation> evaluations = new ArrayList<>(files.size());
+        for (FileState state : files.values()) {
+            evaluations.add(state.evaluation);
+        }
+        evaluation = new BatchEvaluation(referenceSwatches, evaluations);
+        return evaluation;
+    }
+
+    /**
+     * Read a file and parse it unless its content is the same as when it was last read
+     *
+     * @return the state of the file, the previous state if the content is unchanged or null if
+     * the file no longer exists
+     */
+    private static FileState load(Path path, FileState previous) {
+        String name = path.getFileName().toString();
+        BasicFileAttributes attributes;
+        byte[] content;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            content = Files.readAllBytes(path);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            return new FileState(name, -1, -1, null, null, e);
+        }
+
+        long size = attributes.size();
+        long modified = attributes.lastModifiedTime().toMillis();
+        MessageDigest digest = digests.get();
+        digest.reset();
+        byte[] hash = digest.digest(content);
+        if (previous != null && Arrays.equals(hash, previous.hash)) {
+            previous.size = size;
+            previous.modified = modified;
+            return previous;
+        }
+
+        try {
+            Calibration calibration = parsers.get().parse(ByteBuffer.wrap(content), path.toAbsolutePath().toString());
+            return new FileState(name, size, modified, hash, calibration.getSwatches(), null);
+        } catch (Exception e) {
+            return new FileState(name, size, modified, hash, null, e);
+        }
+    }
+
+    private void add(FileState state) {
+        if (state.swatches != null) {
+            accumulator.add(state.swatches);
+        }
+    }
+
+    private void subtract(FileState state) {
+        if (state.swatches != null) {
+            accumulator.remove(state.swatches);
+        }
+    }
+
+    /**
+     * Average the totals over every file, including those that failed to load, as
+     * {@link BatchEvaluator} does
+     */
+    private ArrayList<Swatch> average() {
+        return accumulator.average(files.size());
+    }
+
+    private static boolean hasSameColors(ArrayList<Swatch> swatches, ArrayList<Swatch> other) {
+        if (swatches.size() != other.size()) {
+            return false;
+        }
+        for (int i = 0; i < swatches.size(); i++) {
+            if (swatches.get(i).getColor() != other.get(i).getColor()
+                    || Double.compare(swatches.get(i).getValue(), other.get(i).getValue()) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * What is known of a file as of when it was last read
+     */
+    private static final class FileState {
+        private final String name;
+        private final byte[] hash;
+        private final ArrayList<Swatch> swatches;
+        private final Gradient gradient;
+        private long size;
+        private long modified;
+        private CalibrationEvaluation evaluation;
+
+        FileState(String name, long size, long modified, byte[] hash, ArrayList<Swatch> swatches, Exception error) {
+            this.name = name;
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+            this.swatches = swatches;
+            if (swatches == null) {
+                gradient = null;
+                evaluation = new CalibrationEvaluation(name, error);
+            } else {
+                gradient = ColorUtil.createGradient(swatches, ColorUtil.ColorModel.RGB,
+                        BatchEvaluator.GRADIENT_INCREMENT);
+            }
+        }
+
+        boolean isModified(Path path) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                return attributes.size() != size || attributes.lastModifiedTime().toMillis() != modified;
+            } catch (IOException e) {
+                return true;
+            }
+        }
+
+        void analyze(ArrayList<Swatch> referenceSwatches) {
+            if (swatches != null) {
+                evaluation = BatchEvaluator.evaluateCalibration(name, swatches, gradient, referenceSwatches);
+            }
+        }
+    }
+}
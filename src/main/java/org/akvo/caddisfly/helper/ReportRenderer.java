@@ -0,0 +1,450 @@
+/*
+ * Copyright (C) Stichting Akvo (Akvo Foundation)
+ *
+ * This file is part of Akvo Caddisfly
+ *
+ * Akvo Caddisfly is free software: you can redistribute it and modify it under the terms of
+ * the GNU Affero General Public License (AGPL) as published by the Free Software Foundation,
+ * either version 3 of the License or any later version.
+ *
+ * Akvo Caddisfly is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License included below for more details.
+ *
+ * The full license text can also be seen at <http://www.gnu.org/licenses/agpl.html>.
+ */
+
+package org.akvo.caddisfly.helper;
+
+import org.akvo.caddisfly.model.BatchEvaluation;
+import org.akvo.caddisfly.model.CalibrationEvaluation;
+import org.akvo.caddisfly.model.Gradient;
+import org.akvo.caddisfly.model.Swatch;
+import org.akvo.caddisfly.util.Color;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.DecimalFormatSymbols;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Renders the HTML report of a batch evaluation in chunks rather than as one string
+ * <p>
+ * The report is written a section at a time into a fixed size chunk that is handed to an
+ * {@link Output} whenever it fills, so only the evaluation results are held in memory and never
+ * the HTML. The fixed parts of the markup and the color components are encoded to bytes once.
+ * The calibrations can be split into pages, each of which is a complete document that repeats
+ * the average calibration and links to the other pages.
+ * <p>
+ * Numbers are written the same as {@code String.format("%.2f")} so a report rendered in one
+ * page is identical to the one previously built with a StringBuilder.
+ */
+public class ReportRenderer {
+
+    public static final int DEFAULT_PAGE_SIZE = 100;
+
+    /**
+     * The size of the chunks handed to the output
+     */
+    public static final int CHUNK_SIZE = 8192;
+
+    /**
+     * The variance above which a result is highlighted
+     */
+    private static final double VARIANCE_LIMIT = 0.2;
+
+    private static final double REFERENCE_VALUE_STEP = 0.5;
+
+    private static final byte[] HEADER = ascii("<html><head><style>ul{\n"
+            + "     list-style:none;padding:0\n"
+            + "}</style></head><body>");
+    private static final byte[] AVERAGE_START = ascii("<div style=\"font-size:15px;font-weight:bold\">"
+            + "Average Calibration</div><ul style=\"width:200px\">");
+    private static final byte[] AVERAGE_END = ascii("</ul><br/>");
+    private static final byte[] LIST_ITEM_START = ascii("<li style=\"background-color:rgb(");
+    private static final byte[] LIST_ITEM_TEXT = ascii(")\">");
+    private static final byte[] LIST_ITEM_END = ascii("</li>");
+    private static final byte[] SECTION_START = ascii("<div style=\"width:130px;float:left\">"
+            + "<div style=\"font-size:15px;font-weight:bold\">");
+    private static final byte[] GRADIENT_START = ascii("</div><ul>");
+    private static final byte[] RESULTS_START = ascii("</ul><div style=\"font-size:15px;font-weight:bold\">"
+            + "Result (Error Diff)</div>");
+    private static final byte[] HIGHLIGHT_START = ascii(" <span style=\"background-color:orange\">");
+    private static final byte[] HIGHLIGHT_END = ascii(")</span><br/>");
+    private static final byte[] RESULT_END = ascii(")<br/>");
+    private static final byte[] SECTION_END = ascii("</div>");
+    private static final byte[] PAGES_START = ascii("<div style=\"clear:both\"></div><div>Page");
+    private static final byte[] PAGE_LINK_START = ascii(" <a href=\"?page=");
+    private static final byte[] PAGE_LINK_END = ascii("</a>");
+    private static final byte[] CURRENT_PAGE_START = ascii(" <b>");
+    private static final byte[] CURRENT_PAGE_END = ascii("</b>");
+    private static final byte[] FOOTER = ascii("<div style=\"clear:both\"></div><br/><br/><br/><br/><br/><br/>"
+            + "</body></html>");
+
+    /**
+     * The decimal text of each color component
+     */
+    private static final byte[][] COMPONENTS = new byte[256][];
+
+    static {
+        for (int i = 0; i < COMPONENTS.length; i++) {
+            COMPONENTS[i] = ascii(Integer.toString(i));
+        }
+    }
+
+    private final ArrayList<Swatch> referenceSwatches;
+    private final CalibrationEvaluation[] evaluations;
+    private final int pageSize;
+    private final byte decimalSeparator;
+
+    /**
+     * @param batch the evaluation to report, of which calibrations that failed to load are left out
+     */
+    public ReportRenderer(BatchEvaluation batch) {
+        this(batch, DEFAULT_PAGE_SIZE);
+    }
+
+    /**
+     * @param batch    the evaluation to report, of which calibrations that failed to load are left out
+     * @param pageSize the number of calibrations on each page
+     */
+    public ReportRenderer(BatchEvaluation batch, int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Page size must be positive");
+        }
+        this.referenceSwatches = batch.getReferenceSwatches();
+        this.pageSize = pageSize;
+
+        List<CalibrationEvaluation> evaluated = new ArrayList<>();
+        for (CalibrationEvaluation evaluation : batch.getEvaluations()) {
+            if (!evaluation.hasError()) {
+                evaluated.add(evaluation);
+            }
+        }
+        this.evaluations = evaluated.toArray(new CalibrationEvaluation[evaluated.size()]);
+
+        char separator = DecimalFormatSymbols.getInstance(Locale.getDefault(Locale.Category.FORMAT))
+                .getDecimalSeparator();
+        this.decimalSeparator = separator < 0x80 ? (byte) separator : (byte) '.';
+    }
+
+    /**
+     * Receives the rendered report a chunk at a time
+     */
+    public interface Output {
+
+        /**
+         * @param bytes  the chunk, which is reused once this returns
+         * @param offset the index of the first byte of the chunk
+         * @param length the number of bytes in the chunk
+         * @throws IOException if the chunk could not be written
+         */
+        void write(byte[] bytes, int offset, int length) throws IOException;
+    }
+
+    /**
+     * Gets an output that writes to a channel such as a file
+     *
+     * @param channel the channel to write to
+     * @return the output
+     */
+    public static Output toChannel(WritableByteChannel channel) {
+        return (bytes, offset, length) -> {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        };
+    }
+
+    public int getPageCount() {
+        return Math.max(1, (evaluations.length + pageSize - 1) / pageSize);
+    }
+
+    /**
+     * Check whether a page would render the same as the page of another report, which is the case
+     * when the pages hold the same evaluation objects against the same reference
+     *
+     * @param page  the index of the page
+     * @param other the other report
+     * @return true if the page is the same in both reports
+     */
+    public boolean hasSamePage(int page, ReportRenderer other) {
+        if (other.pageSize != pageSize || other.getPageCount() != getPageCount()
+                || other.decimalSeparator != decimalSeparator || page < 0 || page >= getPageCount()) {
+            return false;
+        }
+        if (other.referenceSwatches.size() != referenceSwatches.size()) {
+            return false;
+        }
+        for (int i = 0; i < referenceSwatches.size(); i++) {
+            if (other.referenceSwatches.get(i).getColor() != referenceSwatches.get(i).getColor()) {
+                return false;
+            }
+        }
+        int start = page * pageSize;
+        int end = Math.min(evaluations.length, start + pageSize);
+        if (Math.min(other.evaluations.length, start + pageSize) != end) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (other.evaluations[i] != evaluations[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Start rendering a page of the report
+     *
+     * @param page the index of the page
+     * @return the page to render
+     * @throws IndexOutOfBoundsException if there is no such page
+     */
+    public Page open(int page) {
+        if (page < 0 || page >= getPageCount()) {
+            throw new IndexOutOfBoundsException("No page " + page + " of " + getPageCount());
+        }
+        int start = page * pageSize;
+        return new Page(page, start, Math.min(evaluations.length, start + pageSize));
+    }
+
+    /**
+     * Start rendering the whole report as a single page
+     *
+     * @return the page to render
+     */
+    public Page openAll() {
+        return new Page(-1, 0, evaluations.length);
+    }
+
+    /**
+     * Render a page of the report
+     *
+     * @param page   the index of the page
+     * @param output receives the rendered page
+     * @throws IOException if the output failed
+     */
+    public void render(int page, Output output) throws IOException {
+        Page rendering = open(page);
+        while (rendering.renderNext(output)) {
+            // Keep rendering until the page is complete
+        }
+    }
+
+    /**
+     * Render the whole report as a single page
+     *
+     * @param output receives the rendered report
+     * @throws IOException if the output failed
+     */
+    public void render(Output output) throws IOException {
+        Page rendering = openAll();
+        while (rendering.renderNext(output)) {
+            // Keep rendering until the report is complete
+        }
+    }
+
+    /**
+     * A page of the report that is rendered a section at a time, so the caller can stop between
+     * sections while the output catches up
+     * <p>
+     * Not thread safe.
+     */
+    public final class Page {
+        private final int page;
+        private final int end;
+        private final byte[] chunk = new byte[CHUNK_SIZE];
+        private int length;
+        private int next;
+        private boolean started;
+        private boolean finished;
+
+        private Page(int page, int start, int end) {
+            this.page = page;
+            this.next = start;
+            this.end = end;
+        }
+
+        /**
+         * Render the next section of the page
+         * <p>
+         * Each full chunk is handed to the output as it is rendered and the last chunk once the
+         * page is complete.
+         *
+         * @param output receives the rendered chunks
+         * @return true if there is more of the page to render
+         * @throws IOException if the output failed
+         */
+        public boolean renderNext(Output output) throws IOException {
+            if (finished) {
+                return false;
+            }
+            if (!started) {
+                started = true;
+                writeHeader(output);
+            } else if (next < end) {
+                writeSection(evaluations[next++], output);
+            } else {
+                finished = true;
+                writeFooter(output);
+                flush(output);
+            }
+            return !finished;
+        }
+
+        private void writeHeader(Output output) throws IOException {
+            write(HEADER, output);
+            write(AVERAGE_START, output);
+            for (int i = 0; i < referenceSwatches.size(); i++) {
+                int color = referenceSwatches.get(i).getColor();
+                write(LIST_ITEM_START, output);
+                writeRgb(color, ',', 0, output);
+                write(LIST_ITEM_TEXT, output);
+                writeFixed(i * REFERENCE_VALUE_STEP, output);
+                write('=', output);
+                writeRgb(color, ' ', 2, output);
+                write(LIST_ITEM_END, output);
+            }
+            write(AVERAGE_END, output);
+        }
+
+        private void writeSection(CalibrationEvaluation evaluation, Output output) throws IOException {
+            write(SECTION_START, output);
+            write(String.valueOf(evaluation.getName()).getBytes(StandardCharsets.UTF_8), output);
+            write(GRADIENT_START, output);
+            Gradient gradient = evaluation.getGradient();
+            for (int i = 0; i < gradient.size(); i++) {
+                int color = gradient.getColor(i);
+                write(LIST_ITEM_START, output);
+                writeRgb(color, ',', 2, output);
+                write(LIST_ITEM_TEXT, output);
+                writeRgb(color, ',', 2, output);
+                write(LIST_ITEM_END, output);
+            }
+            write(RESULTS_START, output);
+            for (int i = 0; i < evaluation.getResultCount(); i++) {
+                double variance = evaluation.getVariance(i);
+                boolean highlight = Math.abs(variance) > VARIANCE_LIMIT;
+                if (highlight) {
+                    write(HIGHLIGHT_START, output);
+                }
+                writeFixed(evaluation.getResult(i).getResult(), output);
+                write(' ', output);
+                write('(', output);
+                writeFixed(variance, output);
+                write(highlight ? HIGHLIGHT_END : RESULT_END, output);
+            }
+            write(SECTION_END, output);
+        }
+
+        private void writeFooter(Output output) throws IOException {
+            int pageCount = getPageCount();
+            if (page >= 0 && pageCount > 1) {
+                write(PAGES_START, output);
+                for (int i = 0; i < pageCount; i++) {
+                    if (i == page) {
+                        write(CURRENT_PAGE_START, output);
+                        writeInt(i + 1, output);
+                        write(CURRENT_PAGE_END, output);
+                    } else {
+                        write(PAGE_LINK_START, output);
+                        writeInt(i, output);
+                        write('"', output);
+                        write('>', output);
+                        writeInt(i + 1, output);
+                        write(PAGE_LINK_END, output);
+                    }
+                }
+                write(SECTION_END, output);
+            }
+            write(FOOTER, output);
+        }
+
+        /**
+         * Write the components of a color separated by a character and a number of spaces
+         */
+        private void writeRgb(int color, char separator, int spaces, Output output) throws IOException {
+            write(COMPONENTS[Color.red(color)], output);
+            writeSeparator(separator, spaces, output);
+            write(COMPONENTS[Color.green(color)], output);
+            writeSeparator(separator, spaces, output);
+            write(COMPONENTS[Color.blue(color)], output);
+        }
+
+        private void writeSeparator(char separator, int spaces, Output output) throws IOException {
+            if (separator != ' ') {
+                write(separator, output);
+            }
+            for (int i = 0; i < spaces; i++) {
+                write(' ', output);
+            }
+        }
+
+        private void writeInt(int value, Output output) throws IOException {
+            write(ascii(Integer.toString(value)), output);
+        }
+
+        /**
+         * Write a number rounded to two decimal places as String.format("%.2f") does, which
+         * rounds half up the shortest decimal that identifies the double
+         */
+        private void writeFixed(double value, Output output) throws IOException {
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                write(ascii(String.format("%.2f", value)), output);
+                return;
+            }
+            String text = new BigDecimal(Double.toString(Math.abs(value)))
+                    .setScale(2, RoundingMode.HALF_UP).toPlainString();
+            if (Double.doubleToRawLongBits(value) < 0) {
+                write('-', output);
+            }
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                write(c == '.' ? decimalSeparator : (byte) c, output);
+            }
+        }
+
+        private void write(char c, Output output) throws IOException {
+            write((byte) c, output);
+        }
+
+        private void write(byte b, Output output) throws IOException {
+            if (length == chunk.length) {
+                flush(output);
+            }
+            chunk[length++] = b;
+        }
+
+        private void write(byte[] bytes, Output output) throws IOException {
+            int offset = 0;
+            while (offset < bytes.length) {
+                if (length == chunk.length) {
+                    flush(output);
+                }
+                int count = Math.min(bytes.length - offset, chunk.length - length);
+                System.arraycopy(bytes, offset, chunk, length, count);
+                length += count;
+                offset += count;
+            }
+        }
+
+        private void flush(Output output) throws IOException {
+            if (length > 0) {
+                output.write(chunk, 0, length);
+                length = 0;
+            }
+        }
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,477 @@
+/*
+ * Copyright (C) Stichting Akvo (Akvo Foundation)
+ *
+ * This file is part of Akvo Caddisfly
+ *
+ * Akvo Caddisfly is free software: you can redistribute it and modify it under the terms of
+ * the GNU Affero General Public License (AGPL) as published by the Free Software Foundation,
+ * either version 3 of the License or any later version.
+ *
+ * Akvo Caddisfly is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License included below for more details.
+ *
+ * The full license text can also be seen at <http://www.gnu.org/licenses/agpl.html>.
+ */
+
+package org.akvo.caddisfly.helper;
+
+import org.akvo.caddisfly.model.Result;
+import org.akvo.caddisfly.model.ResultDetail;
+import org.akvo.caddisfly.util.Color;
+import org.akvo.caddisfly.util.ColorUtil;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Combines the results of the photos taken of a test as they are analyzed
+ * <p>
+ * The averages give the same verdicts as {@link SwatchHelper#getAverageColor} and
+ * {@link SwatchHelper#getAverageResult}: the colors must all be close to each other and the
+ * values must all be close to the most frequent value, otherwise the average is rejected.
+ * <p>
+ * Each new color is first checked against the bounding box of the colors so far. When the
+ * diagonal of the box is within the sampling distance then so is every pair of colors, and
+ * when a side of the box is longer than it then the two colors at its ends are too far apart.
+ * Only in between is the new color compared with each distinct color seen before. The values
+ * are counted as they arrive, so the mode is known without sorting or boxing.
+ * <p>
+ * Not thread safe.
+ */
+public final class ResultAggregator {
+
+    /**
+     * How far a result may be from the most frequent result for the results to be averaged
+     */
+    private static final double MAX_RESULT_DIFFERENCE = 0.21;
+
+    /**
+     * The largest scaled value rounded without BigDecimal, where the error of scaling is far
+     * below {@link #ROUNDING_MARGIN}
+     */
+    private static final double MAX_FAST_ROUND = 1e6;
+
+    /**
+     * How far from a half the scaled value must be to be rounded without BigDecimal
+     */
+    private static final double ROUNDING_MARGIN = 1e-9;
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private final boolean isColorDistanceRgb = ColorUtil.isColorDistanceRgb();
+    private final double maxColorDistance = ColorUtil.getMaxSamplingDistance();
+
+    private final ColorSet colors = new ColorSet();
+    private final ValueCounter counter = new ValueCounter();
+    private double[] values = new double[INITIAL_CAPACITY];
+    private int count;
+
+    private long red;
+    private long green;
+    private long blue;
+    private boolean hasInvalidColor;
+    private boolean hasDissimilarColors;
+    private int minRed = 255;
+    private int minGreen = 255;
+    private int minBlue = 255;
+    private int maxRed;
+    private int maxGreen;
+    private int maxBlue;
+
+    private double sum;
+    private double minValue = Double.POSITIVE_INFINITY;
+    private double maxValue = Double.NEGATIVE_INFINITY;
+    private boolean hasNaN;
+
+    /**
+     * Combine a list of results
+     *
+     * @param results the results of each photo
+     * @return the aggregator holding the results
+     */
+    public static ResultAggregator of(List<Result> results) {
+        ResultAggregator aggregator = new ResultAggregator();
+        for (Result result : results) {
+            aggregator.add(result);
+        }
+        return aggregator;
+    }
+
+    /**
+     * Add the first result detail of a photo
+     *
+     * @param result the result of the photo
+     */
+    public void add(Result result) {
+        ResultDetail detail = result.getResults().get(0);
+        add(detail.getColor(), detail.getResult());
+    }
+
+    /**
+     * Add the result of a photo
+     *
+     * @param color the color of the photo, 0 if no valid color was found
+     * @param value the result value, negative if no result was found
+     */
+    public void add(int color, double value) {
+        addColor(color);
+        addValue(value);
+        count++;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the average color, or 0 if any color is 0 or does not closely match the rest
+     *
+     * @return the average color
+     * @throws ArithmeticException if there are no results
+     */
+    public int getAverageColor() {
+        if (hasInvalidColor || hasDissimilarColors) {
+            return 0;
+        }
+        return Color.rgb((int) (red / count), (int) (green / count), (int) (blue / count));
+    }
+
+    /**
+     * Checks if any color does not closely match the rest of the colors
+     *
+     * @return true if the colors are too dissimilar to be averaged
+     */
+    public boolean hasDissimilarColors() {
+        return hasDissimilarColors;
+    }
+
+    /**
+     * Returns the result that appears the most number of times, ignoring negative results
+     *
+     * @return the most frequent result or -1 if there are none
+     */
+    public double getModeResult() {
+        if (counter.size == 0) {
+            return -1;
+        }
+        if (counter.getModeCount() == 1) {
+            return counter.getMode();
+        }
+        return counter.getHashMapMode();
+    }
+
+    /**
+     * Returns the median of the results, ignoring negative results
+     *
+     * @return the median result or -1 if there are none
+     */
+    public double getMedianResult() {
+        double[] valid = new double[count];
+        int length = 0;
+        for (int i = 0; i < count; i++) {
+            if (values[i] >= 0) {
+                valid[length++] = values[i];
+            }
+        }
+        if (length == 0) {
+            return -1;
+        }
+        Arrays.sort(valid, 0, length);
+        int middle = length / 2;
+        return length % 2 == 1 ? valid[middle] : (valid[middle - 1] + valid[middle]) / 2;
+    }
+
+    /**
+     * Checks if any result is invalid or too far from the most frequent result
+     *
+     * @return true if the results cannot be averaged
+     */
+    public boolean hasOutliers() {
+        if (count == 0 || hasNaN || !(minValue > -1)) {
+            return true;
+        }
+        if (counter.size == 0) {
+            return !isCloseTo(-1);
+        }
+
+        // the mode is only needed when results that appear equally often disagree on the outcome
+        boolean anyClose = false;
+        boolean allClose = true;
+        int max = counter.maxCount;
+        for (int i = 0; i < counter.size; i++) {
+            if (counter.counts[i] == max) {
+                boolean close = isCloseTo(counter.keys[i]);
+                anyClose |= close;
+                allClose &= close;
+            }
+        }
+        if (allClose || !anyClose) {
+            return !anyClose;
+        }
+        return !isCloseTo(getModeResult());
+    }
+
+    /**
+     * Returns the average of the results rounded to two decimal places
+     *
+     * @return the average result or -1 if the results have outliers
+     */
+    public double getAverageResult() {
+        if (hasOutliers()) {
+            return -1;
+        }
+        return round(sum / count);
+    }
+
+    private void addColor(int color) {
+        red += Color.red(color);
+        green += Color.green(color);
+        blue += Color.blue(color);
+
+        if (color == 0) {
+            hasInvalidColor = true;
+        }
+        if (hasInvalidColor || hasDissimilarColors || !colors.add(color)) {
+            return;
+        }
+
+        if (isColorDistanceRgb) {
+            minRed = Math.min(minRed, Color.red(color));
+            minGreen = Math.min(minGreen, Color.green(color));
+            minBlue = Math.min(minBlue, Color.blue(color));
+            maxRed = Math.max(maxRed, Color.red(color));
+            maxGreen = Math.max(maxGreen, Color.green(color));
+            maxBlue = Math.max(maxBlue, Color.blue(color));
+
+            int spanRed = maxRed - minRed;
+            int spanGreen = maxGreen - minGreen;
+            int spanBlue = maxBlue - minBlue;
+            if (Math.sqrt(spanRed * spanRed + spanGreen * spanGreen + spanBlue * spanBlue) <= maxColorDistance) {
+                return;
+            }
+            if (Math.max(spanRed, Math.max(spanGreen, spanBlue)) > maxColorDistance) {
+                hasDissimilarColors = true;
+                return;
+            }
+        }
+
+        for (int i = 0; i < colors.size - 1; i++) {
+            if (isTooDissimilar(color, colors.colors[i])) {
+                hasDissimilarColors = true;
+                return;
+            }
+        }
+    }
+
+    /**
+     * The Lab distance is compared both ways as every ordered pair is by getAverageColor
+     */
+    private boolean isTooDissimilar(int color, int other) {
+        if (isColorDistanceRgb) {
+            return Math.sqrt(ColorUtil.getColorDistanceRgbSquared(color, other)) > maxColorDistance;
+        }
+        return ColorUtil.areColorsTooDissimilar(color, other) || ColorUtil.areColorsTooDissimilar(other, color);
+    }
+
+    private void addValue(double value) {
+        if (count == values.length) {
+            values = Arrays.copyOf(values, count * 2);
+        }
+        values[count] = value;
+        sum += value;
+
+        if (Double.isNaN(value)) {
+            hasNaN = true;
+        } else {
+            minValue = Math.min(minValue, value);
+            maxValue = Math.max(maxValue, value);
+        }
+        if (value >= 0) {
+            counter.add(value);
+        }
+    }
+
+    /**
+     * Subtraction is monotonic so the results furthest from the mode are the smallest and largest
+     */
+    private boolean isCloseTo(double mode) {
+        return Math.abs(maxValue - mode) < MAX_RESULT_DIFFERENCE
+                && Math.abs(minValue - mode) < MAX_RESULT_DIFFERENCE;
+    }
+
+    /**
+     * Round half up to two decimal places as BigDecimal does, which is only needed near a half
+     */
+    private static double round(double value) {
+        double scaled = value * 100;
+        double floor = Math.floor(scaled);
+        double fraction = scaled - floor;
+        if (Math.abs(scaled) < MAX_FAST_ROUND && Math.abs(fraction - 0.5) > ROUNDING_MARGIN) {
+            double rounded = fraction < 0.5 ? floor : floor + 1;
+            return rounded == 0 ? 0 : rounded / 100;
+        }
+
+        try {
+            return new BigDecimal(value).setScale(2, RoundingMode.HALF_UP).doubleValue();
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * The distinct colors added, ignoring alpha, in the order first seen
+     */
+    private static final class ColorSet {
+        private static final int EMPTY = -1;
+
+        private int[] slots = newSlots(INITIAL_CAPACITY * 2);
+        private int[] colors = new int[INITIAL_CAPACITY];
+        private int size;
+
+        private static int[] newSlots(int length) {
+            int[] slots = new int[length];
+            Arrays.fill(slots, EMPTY);
+            return slots;
+        }
+
+        /**
+         * @return true if the color was not seen before
+         */
+        boolean add(int color) {
+            int rgb = color & 0xFFFFFF;
+            int mask = slots.length - 1;
+            int slot = (rgb * 0x9E3779B9) >>> 8 & mask;
+            while (slots[slot] != EMPTY) {
+                if ((colors[slots[slot]] & 0xFFFFFF) == rgb) {
+                    return false;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            if (size == colors.length) {
+                colors = Arrays.copyOf(colors, size * 2);
+            }
+            colors[size] = color;
+            slots[slot] = size++;
+            if (size * 2 > slots.length) {
+                rehash(slots.length * 2);
+            }
+            return true;
+        }
+
+        private void rehash(int length) {
+            slots = newSlots(length);
+            int mask = length - 1;
+            for (int i = 0; i < size; i++) {
+                int slot = ((colors[i] & 0xFFFFFF) * 0x9E3779B9) >>> 8 & mask;
+                while (slots[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = i;
+            }
+        }
+    }
+
+    /**
+     * How often each result value appears, in the order first seen
+     * <p>
+     * Values are told apart by their bits, as Double.equals does.
+     */
+    private static final class ValueCounter {
+        private static final int EMPTY = -1;
+
+        private int[] slots = ColorSet.newSlots(INITIAL_CAPACITY * 2);
+        private double[] keys = new double[INITIAL_CAPACITY];
+        private int[] counts = new int[INITIAL_CAPACITY];
+        private int size;
+        private int maxCount;
+
+        private static int hash(double value) {
+            long bits = Double.doubleToLongBits(value);
+            return (int) ((bits ^ (bits >>> 32)) * 0x9E3779B97F4A7C15L >>> 32);
+        }
+
+        void add(double value) {
+            long bits = Double.doubleToLongBits(value);
+            int mask = slots.length - 1;
+            int slot = hash(value) & mask;
+            while (slots[slot] != EMPTY) {
+                int index = slots[slot];
+                if (Double.doubleToLongBits(keys[index]) == bits) {
+                    maxCount = Math.max(maxCount, ++counts[index]);
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+            keys[size] = value;
+            counts[size] = 1;
+            maxCount = Math.max(maxCount, 1);
+            slots[slot] = size++;
+            if (size * 2 > slots.length) {
+                rehash(slots.length * 2);
+            }
+        }
+
+        private void rehash(int length) {
+            slots = ColorSet.newSlots(length);
+            int mask = length - 1;
+            for (int i = 0; i < size; i++) {
+                int slot = hash(keys[i]) & mask;
+                while (slots[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = i;
+            }
+        }
+
+        int getModeCount() {
+            int modes = 0;
+            for (int i = 0; i < size; i++) {
+                if (counts[i] == maxCount) {
+                    modes++;
+                }
+            }
+            return modes;
+        }
+
+        double getMode() {
+            for (int i = 0; i < size; i++) {
+                if (counts[i] == maxCount) {
+                    return keys[i];
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Break a tie as counting in a HashMap does, by its iteration order. Only the order in
+         * which keys are first put shapes the map, so putting each key once gives the same order.
+         */
+        double getHashMapMode() {
+            Map<Double, Integer> map = new HashMap<>();
+            for (int i = 0; i < size; i++) {
+                map.put(keys[i], counts[i]);
+            }
+
+            int max = -1;
+            double mostFrequent = -1;
+            for (Map.Entry<Double, Integer> e : map.entrySet()) {
+                if (e.getValue() > max) {
+                    mostFrequent = e.getKey();
+                    max = e.getValue();
+                }
+            }
+            return mostFrequent;
+        }
+    }
+}
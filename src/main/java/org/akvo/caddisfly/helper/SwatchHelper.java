@@ -17,33 +17,43 @@
 package org.akvo.caddisfly.helper;
 
 import org.akvo.caddisfly.app.CaddisflyApp;
+import org.akvo.caddisfly.model.Calibration;
 import org.akvo.caddisfly.model.ColorCompareInfo;
 import org.akvo.caddisfly.model.ColorInfo;
+import org.akvo.caddisfly.model.Gradient;
 import org.akvo.caddisfly.model.Result;
 import org.akvo.caddisfly.model.ResultDetail;
 import org.akvo.caddisfly.model.Swatch;
+import org.akvo.caddisfly.model.SwatchTable;
+import org.akvo.caddisfly.util.Ciede2000;
 import org.akvo.caddisfly.util.Color;
+import org.akvo.caddisfly.util.ColorKdTree;
 import org.akvo.caddisfly.util.ColorUtil;
-import org.akvo.caddisfly.util.DateUtil;
-import org.akvo.caddisfly.util.FileUtil;
+import org.akvo.caddisfly.util.Metrics;
 
 import javax.naming.Context;
 import java.io.File;
-import java.math.BigDecimal;
-import java.math.RoundingMode;
-import java.text.NumberFormat;
-import java.text.ParseException;
 import java.util.*;
 
 public final class SwatchHelper {
 
+    /**
+     * The gradient size from which the nearest color is looked up in a spatial index
+     */
+    private static final int MIN_INDEXED_GRADIENT_SIZE = 64;
+
+    private static final GradientCache gradientCache = new GradientCache(GradientCache.DEFAULT_CAPACITY);
+
     private SwatchHelper() {
     }
 
-    private static double[] convertDoubles(List<Double> doubles) {
-        double[] ret = new double[doubles.size()];
-        for (int i = 0; i < ret.length; i++) ret[i] = doubles.get(i);
-        return ret;
+    /**
+     * Gets the cache of gradients generated during analysis
+     *
+     * @return the gradient cache
+     */
+    public static GradientCache getGradientCache() {
+        return gradientCache;
     }
 
     /**
@@ -54,28 +64,137 @@ public final class SwatchHelper {
      */
     public static ResultDetail analyzeColor(ColorInfo photoColor, ArrayList<Swatch> swatches,
                                             ColorUtil.ColorModel colorModel) {
+        long start = Metrics.start();
 
         //Find the color that matches the photoColor from the calibrated colorRange
         ColorCompareInfo colorCompareInfo = getNearestColorFromSwatches(
                 photoColor.getColor(), swatches, true);
+        boolean exactMatch = colorCompareInfo.getResult() >= 0;
 
-        //If there are no exact color matches in the swatches then generate a gradient by interpolation
-        if (colorCompareInfo.getResult() < 0) {
+        //If there are no exact color matches in the swatches then use a gradient generated by interpolation
+        if (!exactMatch) {
 
-            ArrayList<Swatch> gradientSwatches = ColorUtil.generateGradient(swatches, colorModel, 0.01);
+            Gradient gradient = gradientCache.get(swatches, colorModel, 0.01);
 
             //Find the color within the generated gradient that matches the photoColor
-            colorCompareInfo = getNearestColorFromSwatches(photoColor.getColor(),
-                    gradientSwatches, false);
+            colorCompareInfo = getNearestColorFromGradient(photoColor.getColor(), gradient, false);
+        }
+
+        if (Metrics.ENABLED) {
+            Metrics.recordAnalysis(start, exactMatch, colorCompareInfo.getResult() > -1);
+        }
+        return createResultDetail(photoColor, colorCompareInfo, colorModel, swatches.size());
+    }
+
+    /**
+     * Analyzes the color against a table of swatches, with the same result as the list of swatches
+     *
+     * @param photoColor The color to compare
+     * @param swatches   The range of colors to compare against
+     * @param colorModel The color model used to generate the gradient
+     */
+    public static ResultDetail analyzeColor(ColorInfo photoColor, SwatchTable swatches,
+                                            ColorUtil.ColorModel colorModel) {
+        long start = Metrics.start();
+
+        ColorCompareInfo colorCompareInfo = getNearestColorFromGradient(
+                photoColor.getColor(), swatches.toGradient(), true);
+        boolean exactMatch = colorCompareInfo.getResult() >= 0;
+
+        if (!exactMatch) {
+            Gradient gradient = gradientCache.get(swatches, colorModel, 0.01);
+            colorCompareInfo = getNearestColorFromGradient(photoColor.getColor(), gradient, false);
+        }
+
+        if (Metrics.ENABLED) {
+            Metrics.recordAnalysis(start, exactMatch, colorCompareInfo.getResult() > -1);
+        }
+
+        return createResultDetail(photoColor, colorCompareInfo, colorModel, swatches.size());
+    }
+
+    /**
+     * Analyzes the color against a calibration whose gradient has already been generated
+     *
+     * @param photoColor The color to compare
+     * @param swatches   The calibrated colors
+     * @param gradient   The gradient generated from the swatches in the color model with an increment of 0.01
+     * @param colorModel The color model the gradient was generated in
+     * @return the result, identical to analyzing against the list of swatches
+     */
+    public static ResultDetail analyzeColor(ColorInfo photoColor, Gradient swatches, Gradient gradient,
+                                            ColorUtil.ColorModel colorModel) {
+        long start = Metrics.start();
+
+        ColorCompareInfo colorCompareInfo = getNearestColorFromGradient(photoColor.getColor(), swatches, true);
+        boolean exactMatch = colorCompareInfo.getResult() >= 0;
+
+        if (!exactMatch) {
+            colorCompareInfo = getNearestColorFromGradient(photoColor.getColor(), gradient, false);
+        }
+
+        if (Metrics.ENABLED) {
+            Metrics.recordAnalysis(start, exactMatch, colorCompareInfo.getResult() > -1);
+        }
+
+        return createResultDetail(photoColor, colorCompareInfo, colorModel, swatches.size());
+    }
+
+    /**
+     * Compiles the calibration into a lookup table of the analysis result for every color
+     *
+     * @param swatches   The range of colors to compare against
+     * @param colorModel The color model used to generate the gradient
+     * @return the compiled calibration
+     */
+    public static CompiledCalibration compileCalibration(ArrayList<Swatch> swatches,
+                                                         ColorUtil.ColorModel colorModel) {
+        return CompiledCalibration.compile(Gradient.fromSwatches(swatches),
+                gradientCache.get(swatches, colorModel, 0.01), colorModel);
+    }
+
+    /**
+     * Compiles a table of swatches into a lookup table of the analysis result for every color
+     *
+     * @param swatches   The range of colors to compare against
+     * @param colorModel The color model used to generate the gradient
+     * @return the compiled calibration
+     */
+    public static CompiledCalibration compileCalibration(SwatchTable swatches,
+                                                         ColorUtil.ColorModel colorModel) {
+        return CompiledCalibration.compile(swatches.toGradient(),
+                gradientCache.get(swatches, colorModel, 0.01), colorModel);
+    }
+
+    /**
+     * Analyzes the color using a compiled calibration and returns a result info
+     *
+     * @param photoColor  The color to compare
+     * @param calibration The compiled calibration
+     */
+    public static ResultDetail analyzeColor(ColorInfo photoColor, CompiledCalibration calibration) {
+        long start = Metrics.start();
+
+        ColorCompareInfo colorCompareInfo = calibration.getNearestColor(photoColor.getColor());
+
+        if (Metrics.ENABLED) {
+            Metrics.COMPILED_LOOKUPS.increment();
+            Metrics.ANALYZE_COLOR.recordSince(start);
         }
 
+        return createResultDetail(photoColor, colorCompareInfo, calibration.getColorModel(),
+                calibration.getSwatchCount());
+    }
+
+    private static ResultDetail createResultDetail(ColorInfo photoColor, ColorCompareInfo colorCompareInfo,
+                                                   ColorUtil.ColorModel colorModel, int calibrationSteps) {
         //set the result
         ResultDetail resultDetail = new ResultDetail(-1, photoColor.getColor());
         if (colorCompareInfo.getResult() > -1) {
             resultDetail.setResult(colorCompareInfo.getResult());
         }
         resultDetail.setColorModel(colorModel);
-        resultDetail.setCalibrationSteps(swatches.size());
+        resultDetail.setCalibrationSteps(calibrationSteps);
         resultDetail.setMatchedColor(colorCompareInfo.getMatchedColor());
         resultDetail.setDistance(colorCompareInfo.getDistance());
 
@@ -91,6 +210,18 @@ public final class SwatchHelper {
      */
     private static ColorCompareInfo getNearestColorFromSwatches(
             int colorToFind, ArrayList<Swatch> swatches, boolean exactMatch) {
+        return getNearestColorFromGradient(colorToFind, Gradient.fromSwatches(swatches), exactMatch);
+    }
+
+    /**
+     * Compares the colorToFind to all colors in the gradient and finds the nearest matching color
+     *
+     * @param colorToFind The colorToFind to compare
+     * @param gradient    The gradient from which to return the nearest colorToFind
+     * @return A parts per million (ppm) value (colorToFind index multiplied by a step unit)
+     */
+    private static ColorCompareInfo getNearestColorFromGradient(
+            int colorToFind, Gradient gradient, boolean exactMatch) {
 
         double distance;
         if (exactMatch) {
@@ -99,14 +230,28 @@ public final class SwatchHelper {
             distance = ColorUtil.getMaxDistance();
         }
 
+        if (gradient.size() >= MIN_INDEXED_GRADIENT_SIZE) {
+            if (ColorUtil.isColorDistanceRgb()) {
+                return getNearestColorFromIndex(colorToFind, gradient, distance);
+            } else {
+                return getNearestColorFromLab(colorToFind, gradient, distance);
+            }
+        }
+        if (Metrics.ENABLED) {
+            Metrics.SCAN_SEARCHES.increment();
+        }
+
         double resultValue = -1;
         int matchedColor = -1;
         double tempDistance;
         double nearestDistance = 999;
         int nearestMatchedColor = -1;
 
-        for (int i = 0; i < swatches.size(); i++) {
-            int tempColor = swatches.get(i).getColor();
+        double[] values = gradient.getValues();
+        int[] colors = gradient.getColors();
+        int scanned = colors.length;
+        for (int i = 0; i < colors.length; i++) {
+            int tempColor = colors[i];
 
             tempDistance = ColorUtil.getColorDistance(tempColor, colorToFind);
             if (nearestDistance > tempDistance) {
@@ -115,16 +260,21 @@ public final class SwatchHelper {
             }
 
             if (tempDistance == 0.0) {
-                resultValue = swatches.get(i).getValue();
-                matchedColor = swatches.get(i).getColor();
+                resultValue = values[i];
+                matchedColor = tempColor;
+                scanned = i + 1;
                 break;
             } else if (tempDistance < distance) {
                 distance = tempDistance;
-                resultValue = swatches.get(i).getValue();
-                matchedColor = swatches.get(i).getColor();
+                resultValue = values[i];
+                matchedColor = tempColor;
             }
         }
 
+        if (Metrics.ENABLED) {
+            Metrics.COLOR_DISTANCES.add(scanned);
+        }
+
         //if no result was found add some diagnostic info
         if (resultValue == -1) {
             distance = nearestDistance;
@@ -133,6 +283,79 @@ public final class SwatchHelper {
         return new ColorCompareInfo(resultValue, colorToFind, matchedColor, distance);
     }
 
+    /**
+     * Finds the nearest matching color using the spatial index of the gradient.
+     * Returns the same match as the linear scan in getNearestColorFromGradient
+     *
+     * @param colorToFind The colorToFind to compare
+     * @param gradient    The gradient from which to return the nearest colorToFind
+     * @param maxDistance The distance within which the nearest color is a match
+     * @return The compare info for the nearest color
+     */
+    private static ColorCompareInfo getNearestColorFromIndex(
+            int colorToFind, Gradient gradient, double maxDistance) {
+
+        if (Metrics.ENABLED) {
+            Metrics.INDEX_SEARCHES.increment();
+        }
+        ColorKdTree colorIndex = gradient.getColorIndex();
+        int index = colorIndex.nearest(colorToFind);
+        int matchedColor = gradient.getColor(index);
+        double distance = ColorUtil.getColorDistance(matchedColor, colorToFind);
+
+        if (distance >= maxDistance) {
+            return new ColorCompareInfo(-1, colorToFind, matchedColor, distance);
+        }
+
+        if (distance == 0.0) {
+            //the scan stops at the exact match reporting the distance of the best match before it
+            distance = maxDistance;
+            int previous = colorIndex.nearest(colorToFind, index);
+            if (previous > -1) {
+                distance = Math.min(distance, ColorUtil.getColorDistance(gradient.getColor(previous), colorToFind));
+            }
+        }
+        return new ColorCompareInfo(gradient.getValue(index), colorToFind, matchedColor, distance);
+    }
+
+    /**
+     * Finds the nearest matching color using the precomputed Lab terms of the gradient.
+     * Returns the same match as the linear scan in getNearestColorFromGradient
+     *
+     * @param colorToFind The colorToFind to compare
+     * @param gradient    The gradient from which to return the nearest colorToFind
+     * @param maxDistance The distance within which the nearest color is a match
+     * @return The compare info for the nearest color
+     */
+    private static ColorCompareInfo getNearestColorFromLab(
+            int colorToFind, Gradient gradient, double maxDistance) {
+
+        if (Metrics.ENABLED) {
+            Metrics.LAB_SEARCHES.increment();
+        }
+        double[] terms = gradient.getLabTerms();
+        double[] query = new double[Ciede2000.STRIDE];
+        Ciede2000.computeTerms(ColorUtil.colorToLab(colorToFind), query, 0);
+
+        int index = Ciede2000.nearest(query, 0, terms, gradient.size());
+        int matchedColor = gradient.getColor(index);
+        double distance = Ciede2000.distance(terms, index * Ciede2000.STRIDE, query, 0);
+
+        if (distance >= maxDistance) {
+            return new ColorCompareInfo(-1, colorToFind, matchedColor, distance);
+        }
+
+        if (distance == 0.0) {
+            //the scan stops at the exact match reporting the distance of the best match before it
+            distance = maxDistance;
+            int previous = Ciede2000.nearest(query, 0, terms, index);
+            if (previous > -1) {
+                distance = Math.min(distance, Ciede2000.distance(terms, previous * Ciede2000.STRIDE, query, 0));
+            }
+        }
+        return new ColorCompareInfo(gradient.getValue(index), colorToFind, matchedColor, distance);
+    }
+
     /**
      * Calculate the slope of the linear trend for a range of colors
      *
@@ -140,6 +363,16 @@ public final class SwatchHelper {
      * @return The slope value
      */
     public static double calculateSlope(ArrayList<Swatch> swatches) {
+        return calculateSlope(SwatchTable.fromSwatches(swatches));
+    }
+
+    /**
+     * Calculate the slope of the linear trend for a table of colors
+     *
+     * @param swatches the range of colors
+     * @return The slope value
+     */
+    public static double calculateSlope(SwatchTable swatches) {
 
         double a = 0, b, c, d;
         double xSum = 0, xSquaredSum = 0, ySum = 0;
@@ -151,14 +384,15 @@ public final class SwatchHelper {
 
         for (int i = 0; i < swatches.size(); i++) {
             //noinspection ResourceType
-            Color.colorToHSV(swatches.get(i).getColor(), colorHSV);
+            Color.colorToHSV(swatches.getColor(i), colorHSV);
             hValue[i] = colorHSV[0];
             if (hValue[i] < 100) {
                 hValue[i] += 360;
             }
-            a += swatches.get(i).getValue() * hValue[i];
-            xSum += swatches.get(i).getValue();
-            xSquaredSum += Math.pow(swatches.get(i).getValue(), 2);
+            double value = swatches.getValue(i);
+            a += value * hValue[i];
+            xSum += value;
+            xSquaredSum += Math.pow(value, 2);
 
             ySum += hValue[i];
         }
@@ -185,206 +419,68 @@ public final class SwatchHelper {
      */
     @SuppressWarnings("BooleanMethodIsAlwaysInverted")
     public static boolean isSwatchListValid(ArrayList<Swatch> swatches) {
-
-        for (Swatch swatch1 : swatches) {
-            if (swatch1.getColor() == Color.TRANSPARENT || swatch1.getColor() == Color.BLACK) {
-                //Calibration is incomplete
-                return false;
-            }
-            for (Swatch swatch2 : swatches) {
-                if (swatch1 != swatch2 && ColorUtil.areColorsSimilar(swatch1.getColor(), swatch2.getColor())) {
-                    //Duplicate color
-                    return false;
-                }
-            }
-        }
-
-        return true;
+        return SwatchValidator.validate(swatches).isValid();
         //return !(calculateSlope(swatches) < 20 || calculateSlope(swatches) > 40);
     }
 
     /**
-     * Returns an average color from a list of results
-     * If any color does not closely match the rest of the colors then it returns 0
+     * Validate a table of colors by looking for missing color and duplicate colors
      *
-     * @param results the list of results
-     * @return the average color
+     * @param swatches the range of colors
+     * @return True if valid otherwise false
      */
-    public static int getAverageColor(ArrayList<Result> results) {
-
-        int red = 0;
-        int green = 0;
-        int blue = 0;
-
-        for (int i = 0; i < results.size(); i++) {
-
-            int color1 = results.get(i).getResults().get(0).getColor();
-
-            //if invalid color return 0
-            if (color1 == 0) {
-                return 0;
-            }
-
-            //check all the colors are mostly similar otherwise return 0
-            for (int j = 0; j < results.size(); j++) {
-                int color2 = results.get(j).getResults().get(0).getColor();
-                if (ColorUtil.areColorsTooDissimilar(color1, color2)) {
-                    return 0;
-                }
-            }
-            red += Color.red(color1);
-            green += Color.green(color1);
-            blue += Color.blue(color1);
-        }
-
-        //return an average color
-        int resultCount = results.size();
-        return Color.rgb(red / resultCount, green / resultCount, blue / resultCount);
+    public static boolean isSwatchListValid(SwatchTable swatches) {
+        return SwatchValidator.validate(swatches).isValid();
     }
 
     /**
-     * Returns the value that appears the most number of times in the array
+     * Returns an average color from a list of results
+     * If any color does not closely match the rest of the colors then it returns 0
      *
-     * @param array the array of values
-     * @return the most frequent value
+     * @param results the list of results
+     * @return the average color
      */
-    private static double mostFrequent(double[] array) {
-        Map<Double, Integer> map = new HashMap<>();
-
-        for (double a : array) {
-            if (a >= 0) {
-                Integer freq = map.get(a);
-                map.put(a, (freq == null) ? 1 : freq + 1);
-            }
-        }
-
-        int max = -1;
-        double mostFrequent = -1;
-
-        for (Map.Entry<Double, Integer> e : map.entrySet()) {
-            if (e.getValue() > max) {
-                mostFrequent = e.getKey();
-                max = e.getValue();
-            }
-        }
-
-        return mostFrequent;
+    public static int getAverageColor(ArrayList<Result> results) {
+        return ResultAggregator.of(results).getAverageColor();
     }
 
     /**
      * Returns the average of a list of values
+     * If any value is not close to the most frequent value then it returns -1
      *
      * @param results       the results
      * @return the average value
      */
     public static double getAverageResult(ArrayList<Result> results) {
-
-        double result = 0;
-
-        ArrayList<Double> resultValues = new ArrayList<>();
-        for (int i = 0; i < results.size(); i++) {
-            resultValues.add(results.get(i).getResults().get(0).getResult());
-        }
-
-        double commonResult = mostFrequent(convertDoubles(resultValues));
-
-        for (int i = 0; i < results.size(); i++) {
-            double value = results.get(i).getResults().get(0).getResult();
-            if (value > -1 && Math.abs(value - commonResult) < 0.21) {
-                result += value;
-            } else {
-                return -1;
-            }
-        }
-
-        try {
-            result = round(result / results.size(), 2);
-        } catch (Exception ex) {
-            result = -1;
-        }
-
-        return result;
-    }
-
-    //Ref: http://stackoverflow.com/questions/2808535/round-a-double-to-2-decimal-places
-    @SuppressWarnings("SameParameterValue")
-    private static double round(double value, int places) {
-        if (places < 0) throw new IllegalArgumentException();
-
-        BigDecimal bd = new BigDecimal(value);
-        bd = bd.setScale(places, RoundingMode.HALF_UP);
-        return bd.doubleValue();
+        return ResultAggregator.of(results).getAverageResult();
     }
 
-
+    /**
+     * Load the swatches of a calibration file
+     *
+     * @param file the calibration file
+     * @return the swatches in the order of the file
+     * @throws Exception if the file does not exist or has no swatches
+     */
     public static ArrayList<Swatch> loadCalibrationFromFile(File file) throws Exception {
-        final ArrayList<Swatch> swatchList = new ArrayList<>();
-
-        ArrayList<String> calibrationDetails = FileUtil.loadFromFile(file, "");
-
-        if (calibrationDetails != null) {
-
-            for (int i = calibrationDetails.size() - 1; i >= 0; i--) {
-                String line = calibrationDetails.get(i);
-                if (!line.contains("=")) {
-                    //String testCode = CaddisflyApp.getApp().getCurrentTestInfo().getCode();
-                    if (line.contains("Calibrated:")) {
-                        Calendar calendar = Calendar.getInstance();
-                        Date date = DateUtil.convertStringToDate(line.substring(line.indexOf(":") + 1),
-                                "yyyy-MM-dd HH:mm");
-                        if (date != null) {
-                            calendar.setTime(date);
-                        }
-                    }
-                    if (line.contains("ReagentExpiry:")) {
-                        Calendar calendar = Calendar.getInstance();
-                        Date date = DateUtil.convertStringToDate(line.substring(line.indexOf(":") + 1),
-                                "yyyy-MM-dd");
-                        if (date != null) {
-                            calendar.setTime(date);
-                        }
-                    }
-
-                    if (line.contains("ReagentBatch:")) {
-                        String batch = line.substring(line.indexOf(":") + 1).trim();
-                    }
-                    calibrationDetails.remove(i);
-                }
-            }
-
-            for (String rgb : calibrationDetails) {
-                String[] values = rgb.split("=");
-                Swatch swatch = new Swatch(stringToDouble(values[0].replace(',','.')),
-                        ColorUtil.getColorFromRgb(values[1].trim()), Color.TRANSPARENT);
-                swatchList.add(swatch);
-            }
-
-            if (swatchList.size() > 0) {
-
-            } else {
-                throw new Exception(file.getAbsolutePath());
-            }
-        }
-        return swatchList;
+        return loadCalibration(file).getSwatches();
     }
 
     /**
-     * Convert a string number into a double value
+     * Load a calibration file along with the calibration details saved in it
      *
-     * @param text the text to be converted to number
-     * @return the double value
+     * @param file the calibration file
+     * @return the calibration
+     * @throws Exception if the file does not exist or has no swatches
      */
-    private static double stringToDouble(String text) {
-
-        text = text.replaceAll(",", ".");
-        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+    public static Calibration loadCalibration(File file) throws Exception {
+        long start = Metrics.start();
         try {
-            return nf.parse(text).doubleValue();
-        } catch (ParseException e) {
-            e.printStackTrace();
-            return 0.0;
+            return new CalibrationParser().parse(file);
+        } finally {
+            if (Metrics.ENABLED) {
+                Metrics.LOAD_CALIBRATION.recordSince(start);
+            }
         }
     }
-
-
-}
\ No newline at end of file
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) Stichting Akvo (Akvo Foundation)
+ *
+ * This file is part of Akvo Caddisfly
+ *
+ * Akvo Caddisfly is free software: you can redistribute it and modify it under the terms of
+ * the GNU Affero General Public License (AGPL) as published by the Free Software Foundation,
+ * either version 3 of the License or any later version.
+ *
+ * Akvo Caddisfly is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License included below for more details.
+ *
+ * The full license text can also be seen at <http://www.gnu.org/licenses/agpl.html>.
+ */
+
+package org.akvo.caddisfly.helper;
+
+import org.akvo.caddisfly.model.Swatch;
+import org.akvo.caddisfly.model.SwatchTable;
+import org.akvo.caddisfly.model.SwatchValidation;
+import org.akvo.caddisfly.util.Ciede2000;
+import org.akvo.caddisfly.util.Color;
+import org.akvo.caddisfly.util.ColorUtil;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Validates calibrated swatches, looking for missing colors, duplicate colors and values out of sequence
+ * <p>
+ * Rather than comparing every swatch with every other, the colors are bucketed in a grid whose
+ * cells are as wide as the distance below which colors are similar, so only the colors in the
+ * same and the neighbouring cells are compared. With the RGB distance the grid is over the
+ * three channels. The CIEDE2000 difference is at least the lightness difference divided by S_L,
+ * which is at most 1.75, so with it the grid is over the lightness alone with cells twice the
+ * similar distance wide. The colors found similar are exactly those of
+ * {@link ColorUtil#areColorsSimilar}.
+ */
+public final class SwatchValidator {
+
+    /**
+     * The RGB channel values per grid cell. Colors at a distance below 6 differ by at most 5 in each channel
+     */
+    private static final int RGB_CELL_SIZE = 6;
+    private static final int RGB_CELLS = 256 / RGB_CELL_SIZE + 1;
+
+    /**
+     * The width of a lightness cell relative to the similar distance, above the largest S_L of 1.75
+     */
+    private static final double LAB_CELL_SCALE = 2;
+
+    private SwatchValidator() {
+    }
+
+    /**
+     * Validate a list of swatches
+     *
+     * @param swatches the swatches in order of value
+     * @return the validation report
+     */
+    public static SwatchValidation validate(List<Swatch> swatches) {
+        return validate(SwatchTable.fromSwatches(swatches));
+    }
+
+    /**
+     * Validate a table of swatches
+     *
+     * @param swatches the swatches in order of value
+     * @return the validation report
+     */
+    public static SwatchValidation validate(SwatchTable swatches) {
+        int size = swatches.size();
+        int[] colors = swatches.getColors();
+        double[] values = swatches.getValues();
+
+        int[] incomplete = new int[size];
+        int incompleteCount = 0;
+        int[] outOfSequence = new int[size];
+        int outOfSequenceCount = 0;
+        for (int i = 0; i < size; i++) {
+            if (colors[i] == Color.TRANSPARENT || colors[i] == Color.BLACK) {
+                incomplete[incompleteCount++] = i;
+            }
+            if (i > 0 && !(values[i] > values[i - 1])) {
+                outOfSequence[outOfSequenceCount++] = i;
+            }
+        }
+
+        long[] pairs = ColorUtil.isColorDistanceRgb()
+                ? findSimilarRgb(colors) : findSimilarLab(colors, ColorUtil.getMinDistance());
+        Arrays.sort(pairs);
+        int[][] duplicatePairs = new int[pairs.length][];
+        for (int i = 0; i < pairs.length; i++) {
+            duplicatePairs[i] = new int[]{(int) (pairs[i] >>> 32), (int) pairs[i]};
+        }
+
+        return new SwatchValidation(size, Arrays.copyOf(incomplete, incompleteCount), duplicatePairs,
+                Arrays.copyOf(outOfSequence, outOfSequenceCount));
+    }
+
+    private static long[] findSimilarRgb(int[] colors) {
+        int[] cells = new int[colors.length];
+        for (int i = 0; i < colors.length; i++) {
+            cells[i] = rgbCell(Color.red(colors[i]) / RGB_CELL_SIZE, Color.green(colors[i]) / RGB_CELL_SIZE,
+                    Color.blue(colors[i]) / RGB_CELL_SIZE);
+        }
+        long[] grid = sortByCell(cells);
+
+        // the neighbouring cells are in nine runs of three cells next to each other in the grid, one
+        // for each neighbouring red and green. A run next to the edge of the color space takes in a
+        // cell that is not a neighbour, which only costs a comparison
+        int[] offsets = new int[9];
+        for (int r = -1, n = 0; r <= 1; r++) {
+            for (int g = -1; g <= 1; g++) {
+                offsets[n++] = rgbCell(r, g, 0);
+            }
+        }
+
+        PairList pairs = new PairList();
+        int[] starts = new int[offsets.length];
+        for (long entry : grid) {
+            int cell = (int) (entry >> 32);
+            int i = (int) entry;
+            for (int n = 0; n < offsets.length; n++) {
+                // the swatches are visited in cell order so each run only moves forward
+                int first = cell + offsets[n] - 1;
+                int k = starts[n];
+                while (k < grid.length && (int) (grid[k] >> 32) < first) {
+                    k++;
+                }
+                starts[n] = k;
+                for (; k < grid.length && (int) (grid[k] >> 32) <= first + 2; k++) {
+                    int j = (int) grid[k];
+                    if (j > i && ColorUtil.areColorsSimilar(colors[i], colors[j])) {
+                        pairs.add(i, j);
+                    }
+                }
+            }
+        }
+        return pairs.toArray();
+    }
+
+    private static long[] findSimilarLab(int[] colors, double minDistance) {
+        double[] terms = Ciede2000.computeTerms(colors);
+        double cellSize = LAB_CELL_SCALE * minDistance;
+
+        int[] cells = new int[colors.length];
+        for (int i = 0; i < colors.length; i++) {
+            cells[i] = (int) Math.floor(terms[i * Ciede2000.STRIDE] / cellSize);
+        }
+        long[] grid = sortByCell(cells);
+
+        PairList pairs = new PairList();
+        int start = 0;
+        for (long entry : grid) {
+            int cell = (int) (entry >> 32);
+            int i = (int) entry;
+            while ((int) (grid[start] >> 32) < cell - 1) {
+                start++;
+            }
+            for (int k = start; k < grid.length && (int) (grid[k] >> 32) <= cell + 1; k++) {
+                int j = (int) grid[k];
+                // the difference is not quite symmetric, as before a pair is similar in either order
+                if (j > i && (Ciede2000.distance(terms, i * Ciede2000.STRIDE, terms, j * Ciede2000.STRIDE)
+                        < minDistance
+                        || Ciede2000.distance(terms, j * Ciede2000.STRIDE, terms, i * Ciede2000.STRIDE)
+                        < minDistance)) {
+                    pairs.add(i, j);
+                }
+            }
+        }
+        return pairs.toArray();
+    }
+
+    private static int rgbCell(int red, int green, int blue) {
+        return (red * RGB_CELLS + green) * RGB_CELLS + blue;
+    }
+
+    /**
+     * Sort the swatch indexes by their cell
+     *
+     * @return the cell in the high and the swatch index in the low 32 bits, in ascending order
+     */
+    private static long[] sortByCell(int[] cells) {
+        long[] grid = new long[cells.length];
+        for (int i = 0; i < cells.length; i++) {
+            grid[i] = ((long) cells[i] << 32) | i;
+        }
+        Arrays.sort(grid);
+        return grid;
+    }
+
+    /**
+     * A growable list of index pairs, each packed into a long with the first index in the high bits
+     */
+    private static final class PairList {
+        private long[] pairs = new long[4];
+        private int count;
+
+        void add(int first, int second) {
+            if (count == pairs.length) {
+                pairs = Arrays.copyOf(pairs, count * 2);
+            }
+            pairs[count++] = ((long) first << 32) | second;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(pairs, count);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) Stichting Akvo (Akvo Foundation)
+ *
+ * This file is part of Akvo Caddisfly
+ *
+ * Akvo Caddisfly is free software: you can redistribute it and modify it under the terms of
+ * the GNU Affero General Public License (AGPL) as published by the Free Software Foundation,
+ * either version 3 of the License or any later version.
+ *
+ * Akvo Caddisfly is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License included below for more details.
+ *
+ * The full license text can also be seen at <http://www.gnu.org/licenses/agpl.html>.
+ */
+
+package org.akvo.caddisfly.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The evaluations of a batch of calibrations against a common reference calibration
+ */
+public class BatchEvaluation {
+    private final ArrayList<Swatch> referenceSwatches;
+    private final List<CalibrationEvaluation> evaluations;
+
+    public BatchEvaluation(ArrayList<Swatch> referenceSwatches, List<CalibrationEvaluation> evaluations) {
+        this.referenceSwatches = referenceSwatches;
+        this.evaluations = Collections.unmodifiableList(evaluations);
+    }
+
+    /**
+     * Gets the calibration the batch was evaluated against
+     *
+     * @return the reference swatches
+     */
+    public ArrayList<Swatch> getReferenceSwatches() {
+        return referenceSwatches;
+    }
+
+    /**
+     * Gets the evaluations in the order the calibrations were given
+     *
+     * @return the evaluations
+     */
+    public List<CalibrationEvaluation> getEvaluations() {
+        return evaluations;
+    }
+}
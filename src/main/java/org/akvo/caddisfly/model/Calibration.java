@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) Stichting Akvo (Akvo Foundation)
+ *
+ * This file is part of Akvo Caddisfly
+ *
+ * Akvo Caddisfly is free software: you can redistribute it and modify it under the terms of
+ * the GNU Affero General Public License (AGPL) as published by the Free Software Foundation,
+ * either version 3 of the License or any later version.
+ *
+ * Akvo Caddisfly is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License included below for more details.
+ *
+ * The full license text can also be seen at <http://www.gnu.org/licenses/agpl.html>.
+ */
+
+package org.akvo.caddisfly.model;
+
+import org.akvo.caddisfly.util.ColorUtil;
+
+import java.util.ArrayList;
+
+/**
+ * A calibration with the details saved along with its swatches
+ */
+public class Calibration {
+
+    /**
+     * The date value of a calibration detail that is not known
+     */
+    public static final long NO_DATE = -1;
+
+    private final ArrayList<Swatch> swatches;
+    private String testCode;
+    private long calibratedDate = NO_DATE;
+    private long reagentExpiry = NO_DATE;
+    private String reagentBatch;
+    private Gradient gradient;
+    private ColorUtil.ColorModel gradientColorModel;
+    private double gradientIncrement;
+
+    public Calibration(ArrayList<Swatch> swatches) {
+        this.swatches = swatches;
+    }
+
+    public ArrayList<Swatch> getSwatches() {
+        return swatches;
+    }
+
+    public String getTestCode() {
+        return testCode;
+    }
+
+    public void setTestCode(String testCode) {
+        this.testCode = testCode;
+    }
+
+    /**
+     * @return the time of calibration in milliseconds or NO_DATE if not known
+     */
+    public long getCalibratedDate() {
+        return calibratedDate;
+    }
+
+    public void setCalibratedDate(long calibratedDate) {
+        this.calibratedDate = calibratedDate;
+    }
+
+    /**
+     * @return the expiry date of the reagent in milliseconds or NO_DATE if not known
+     */
+    public long getReagentExpiry() {
+        return reagentExpiry;
+    }
+
+    public void setReagentExpiry(long reagentExpiry) {
+        this.reagentExpiry = reagentExpiry;
+    }
+
+    public String getReagentBatch() {
+        return reagentBatch;
+    }
+
+    public void setReagentBatch(String reagentBatch) {
+        this.reagentBatch = reagentBatch;
+    }
+
+    /**
+     * @return the gradient generated from the swatches or null if it was not saved with the calibration
+     */
+    public Gradient getGradient() {
+        return gradient;
+    }
+
+    public ColorUtil.ColorModel getGradientColorModel() {
+        return gradientColorModel;
+    }
+
+    public double getGradientIncrement() {
+        return gradientIncrement;
+    }
+
+    /**
+     * Set the gradient generated from the swatches
+     *
+     * @param gradient   the gradient or null to clear it
+     * @param colorModel the color model the gradient was generated in
+     * @param increment  the increment the gradient was generated with
+     */
+    public void setGradient(Gradient gradient, ColorUtil.ColorModel colorModel, double increment) {
+        this.gradient = gradient;
+        this.gradientColorModel = gradient == null ? null : colorModel;
+        this.gradientIncrement = gradient == null ? 0 : increment;
+    }
+}
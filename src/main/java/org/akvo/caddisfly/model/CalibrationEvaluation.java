@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) Stichting Akvo (Akvo Foundation)
+ *
+ * This file is part of Akvo Caddisfly
+ *
+ * Akvo Caddisfly is free software: you can redistribute it and modify it under the terms of
+ * the GNU Affero General Public License (AGPL) as published by the Free Software Foundation,
+ * either version 3 of the License or any later version.
+ *
+ * Akvo Caddisfly is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License included below for more details.
+ *
+ * The full license text can also be seen at <http://www.gnu.org/licenses/agpl.html>.
+ */
+
+package org.akvo.caddisfly.model;
+
+import java.util.ArrayList;
+
+/**
+ * The evaluation of a single calibration against the reference calibration
+ */
+public class CalibrationEvaluation {
+    private final String name;
+    private final ArrayList<Swatch> swatches;
+    private final Gradient gradient;
+    private final ResultDetail[] results;
+    private final double[] expectedResults;
+    private final Exception error;
+
+    public CalibrationEvaluation(String name, ArrayList<Swatch> swatches, Gradient gradient,
+                                 ResultDetail[] results, double[] expectedResults) {
+        this.name = name;
+        this.swatches = swatches;
+        this.gradient = gradient;
+        this.results = results;
+        this.expectedResults = expectedResults;
+        this.error = null;
+    }
+
+    public CalibrationEvaluation(String name, Exception error) {
+        this.name = name;
+        this.swatches = null;
+        this.gradient = null;
+        this.results = new ResultDetail[0];
+        this.expectedResults = new double[0];
+        this.error = error;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public ArrayList<Swatch> getSwatches() {
+        return swatches;
+    }
+
+    public Gradient getGradient() {
+        return gradient;
+    }
+
+    /**
+     * Gets the number of gradient colors that were analyzed against the reference
+     *
+     * @return the number of results
+     */
+    public int getResultCount() {
+        return results.length;
+    }
+
+    public ResultDetail getResult(int index) {
+        return results[index];
+    }
+
+    public double getExpectedResult(int index) {
+        return expectedResults[index];
+    }
+
+    /**
+     * Gets the difference between the analyzed result and the value of the gradient color
+     *
+     * @param index the index of the result
+     * @return the error of the result
+     */
+    public double getVariance(int index) {
+        return results[index].getResult() - expectedResults[index];
+    }
+
+    /**
+     * Gets the exception thrown while loading the calibration
+     *
+     * @return the exception or null if the calibration was evaluated
+     */
+    public Exception getError() {
+        return error;
+    }
+
+    public boolean hasError() {
+        return error != null;
+    }
+}
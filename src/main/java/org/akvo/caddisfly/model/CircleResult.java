@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) Stichting Akvo (Akvo Foundation)
+ *
+ * This file is part of Akvo Caddisfly
+ *
+ * Akvo Caddisfly is free software: you can redistribute it and modify it under the terms of
+ * the GNU Affero General Public License (AGPL) as published by the Free Software Foundation,
+ * either version 3 of the License or any later version.
+ *
+ * Akvo Caddisfly is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License included below for more details.
+ *
+ * The full license text can also be seen at <http://www.gnu.org/licenses/agpl.html>.
+ */
+
+package org.akvo.caddisfly.model;
+
+import java.awt.Rectangle;
+
+/**
+ * A bright round region found in a photo, such as the sample in a vial seen from above
+ */
+public class CircleResult {
+    private final double centerX;
+    private final double centerY;
+    private final int area;
+    private final Rectangle bounds;
+    private final boolean clipped;
+
+    /**
+     * @param centerX the x coordinate of the region's centroid
+     * @param centerY the y coordinate of the region's centroid
+     * @param area    the number of pixels in the region
+     * @param bounds  the bounding box of the region
+     * @param clipped true if the region reaches the edge of the area that was searched
+     */
+    public CircleResult(double centerX, double centerY, int area, Rectangle bounds, boolean clipped) {
+        this.centerX = centerX;
+        this.centerY = centerY;
+        this.area = area;
+        this.bounds = new Rectangle(bounds);
+        this.clipped = clipped;
+    }
+
+    public double getCenterX() {
+        return centerX;
+    }
+
+    public double getCenterY() {
+        return centerY;
+    }
+
+    /**
+     * Gets the column of the pixel at the center
+     */
+    public int getColumn() {
+        return (int) Math.round(centerX);
+    }
+
+    /**
+     * Gets the row of the pixel at the center
+     */
+    public int getRow() {
+        return (int) Math.round(centerY);
+    }
+
+    public int getArea() {
+        return area;
+    }
+
+    public Rectangle getBounds() {
+        return new Rectangle(bounds);
+    }
+
+    /**
+     * Gets the radius of the circle with the same area as the region
+     *
+     * @return the radius in pixels
+     */
+    public double getRadius() {
+        return Math.sqrt(area / Math.PI);
+    }
+
+    /**
+     * Gets how round the region is, as its area divided by the area of the circle that fits its
+     * bounding box. Close to 1 for a circle and lower for other shapes
+     *
+     * @return the circularity
+     */
+    public double getCircularity() {
+        double radius = (bounds.width + bounds.height) / 4.0;
+        return area / (Math.PI * radius * radius);
+    }
+
+    /**
+     * Checks if the region reaches the edge of the area that was searched, in which case it may
+     * extend beyond it and the center and radius only describe the part that was found
+     *
+     * @return true if clipped
+     */
+    public boolean isClipped() {
+        return clipped;
+    }
+}
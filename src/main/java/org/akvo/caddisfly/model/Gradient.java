@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) Stichting Akvo (Akvo Foundation)
+ *
+ * This file is part of Akvo Caddisfly
+ *
+ * Akvo Caddisfly is free software: you can redistribute it and modify it under the terms of
+ * the GNU Affero General Public License (AGPL) as published by the Free Software Foundation,
+ * either version 3 of the License or any later version.
+ *
+ * Akvo Caddisfly is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License included below for more details.
+ *
+ * The full license text can also be seen at <http://www.gnu.org/licenses/agpl.html>.
+ */
+
+package org.akvo.caddisfly.model;
+
+import org.akvo.caddisfly.util.Ciede2000;
+import org.akvo.caddisfly.util.ColorKdTree;
+
+import java.util.ArrayList;
+
+/**
+ * A generated color gradient held as parallel primitive arrays
+ */
+public class Gradient {
+    private final double[] values;
+    private final int[] colors;
+    private volatile ColorKdTree colorIndex;
+    private volatile double[] labTerms;
+
+    public Gradient(double[] values, int[] colors) {
+        if (values.length != colors.length) {
+            throw new IllegalArgumentException("values and colors must be the same length");
+        }
+        this.values = values;
+        this.colors = colors;
+    }
+
+    /**
+     * Copy the values and colors of a list of swatches into a gradient
+     *
+     * @param swatches the swatches
+     * @return the gradient
+     */
+    public static Gradient fromSwatches(ArrayList<Swatch> swatches) {
+        double[] values = new double[swatches.size()];
+        int[] colors = new int[swatches.size()];
+        for (int i = 0; i < values.length; i++) {
+            Swatch swatch = swatches.get(i);
+            values[i] = swatch.getValue();
+            colors[i] = swatch.getColor();
+        }
+        return new Gradient(values, colors);
+    }
+
+    public int size() {
+        return values.length;
+    }
+
+    public double getValue(int index) {
+        return values[index];
+    }
+
+    public int getColor(int index) {
+        return colors[index];
+    }
+
+    /**
+     * The backing values array. Not copied, must not be modified
+     */
+    public double[] getValues() {
+        return values;
+    }
+
+    /**
+     * The backing colors array. Not copied, must not be modified
+     */
+    public int[] getColors() {
+        return colors;
+    }
+
+    /**
+     * Gets the nearest neighbour index over the gradient colors, building it on first use
+     *
+     * @return the color index
+     */
+    public ColorKdTree getColorIndex() {
+        ColorKdTree index = colorIndex;
+        if (index == null) {
+            index = new ColorKdTree(colors);
+            colorIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * Gets the CIEDE2000 terms of the gradient colors, computing them on first use
+     *
+     * @return the terms, {@link Ciede2000#STRIDE} doubles per color
+     */
+    public double[] getLabTerms() {
+        double[] terms = labTerms;
+        if (terms == null) {
+            terms = Ciede2000.computeTerms(colors);
+            labTerms = terms;
+        }
+        return terms;
+    }
+
+    /**
+     * Convert the gradient to a list of swatches
+     *
+     * @return the list of swatches
+     */
+    public ArrayList<Swatch> toSwatches() {
+        ArrayList<Swatch> swatches = new ArrayList<>(values.length);
+        for (int i = 0; i < values.length; i++) {
+            swatches.add(new Swatch(values[i], colors[i], colors[i]));
+        }
+        return swatches;
+    }
+}
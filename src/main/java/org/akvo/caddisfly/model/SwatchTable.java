@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) Stichting Akvo (Akvo Foundation)
+ *
+ * This file is part of Akvo Caddisfly
+ *
+ * Akvo Caddisfly is free software: you can redistribute it and modify it under the terms of
+ * the GNU Affero General Public License (AGPL) as published by the Free Software Foundation,
+ * either version 3 of the License or any later version.
+ *
+ * Akvo Caddisfly is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License included below for more details.
+ *
+ * The full license text can also be seen at <http://www.gnu.org/licenses/agpl.html>.
+ */
+
+package org.akvo.caddisfly.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A range of swatches held as parallel primitive arrays rather than a list of {@link Swatch} objects
+ * <p>
+ * As with a swatch the values and default colors are fixed while the colors and the color
+ * differences can be changed. Not safe for modification by concurrent threads.
+ */
+public final class SwatchTable {
+    private final double[] values;
+    private final int[] colors;
+    private final int[] defaultColors;
+    private final int[] redDifferences;
+    private final int[] greenDifferences;
+    private final int[] blueDifferences;
+    private volatile Gradient gradient;
+
+    public SwatchTable(double[] values, int[] colors, int[] defaultColors) {
+        if (values.length != colors.length || values.length != defaultColors.length) {
+            throw new IllegalArgumentException("values, colors and default colors must be the same length");
+        }
+        this.values = values;
+        this.colors = colors;
+        this.defaultColors = defaultColors;
+        redDifferences = new int[values.length];
+        greenDifferences = new int[values.length];
+        blueDifferences = new int[values.length];
+    }
+
+    /**
+     * Copy a list of swatches into a table
+     *
+     * @param swatches the swatches
+     * @return the table
+     */
+    public static SwatchTable fromSwatches(List<Swatch> swatches) {
+        int size = swatches.size();
+        SwatchTable table = new SwatchTable(new double[size], new int[size], new int[size]);
+        for (int i = 0; i < size; i++) {
+            Swatch swatch = swatches.get(i);
+            table.values[i] = swatch.getValue();
+            table.colors[i] = swatch.getColor();
+            table.defaultColors[i] = swatch.getDefaultColor();
+            table.redDifferences[i] = swatch.getRedDifference();
+            table.greenDifferences[i] = swatch.getGreenDifference();
+            table.blueDifferences[i] = swatch.getBlueDifference();
+        }
+        return table;
+    }
+
+    /**
+     * Convert the table to a list of swatches
+     *
+     * @return the list of swatches
+     */
+    public ArrayList<Swatch> toSwatches() {
+        ArrayList<Swatch> swatches = new ArrayList<>(values.length);
+        for (int i = 0; i < values.length; i++) {
+            Swatch swatch = new Swatch(values[i], colors[i], defaultColors[i]);
+            swatch.setRedDifference(redDifferences[i]);
+            swatch.setGreenDifference(greenDifferences[i]);
+            swatch.setBlueDifference(blueDifferences[i]);
+            swatches.add(swatch);
+        }
+        return swatches;
+    }
+
+    /**
+     * Gets the values and colors of the table as a gradient, copying them on first use
+     * and again after a color is changed
+     *
+     * @return the gradient
+     */
+    public Gradient toGradient() {
+        Gradient result = gradient;
+        if (result == null) {
+            result = new Gradient(values.clone(), colors.clone());
+            gradient = result;
+        }
+        return result;
+    }
+
+    public int size() {
+        return values.length;
+    }
+
+    public double getValue(int index) {
+        return values[index];
+    }
+
+    public int getColor(int index) {
+        return colors[index];
+    }
+
+    public void setColor(int index, int color) {
+        colors[index] = color;
+        gradient = null;
+    }
+
+    public int getDefaultColor(int index) {
+        return defaultColors[index];
+    }
+
+    public int getRedDifference(int index) {
+        return redDifferences[index];
+    }
+
+    public void setRedDifference(int index, int redDifference) {
+        redDifferences[index] = redDifference;
+    }
+
+    public int getGreenDifference(int index) {
+        return greenDifferences[index];
+    }
+
+    public void setGreenDifference(int index, int greenDifference) {
+        greenDifferences[index] = greenDifference;
+    }
+
+    public int getBlueDifference(int index) {
+        return blueDifferences[index];
+    }
+
+    public void setBlueDifference(int index, int blueDifference) {
+        blueDifferences[index] = blueDifference;
+    }
+
+    /**
+     * The backing values array. Not copied, must not be modified
+     */
+    public double[] getValues() {
+        return values;
+    }
+
+    /**
+     * The backing colors array. Not copied, must not be modified, use {@link #setColor}
+     */
+    public int[] getColors() {
+        return colors;
+    }
+}
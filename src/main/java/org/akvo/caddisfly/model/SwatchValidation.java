@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) Stichting Akvo (Akvo Foundation)
+ *
+ * This file is part of Akvo Caddisfly
+ *
+ * Akvo Caddisfly is free software: you can redistribute it and modify it under the terms of
+ * the GNU Affero General Public License (AGPL) as published by the Free Software Foundation,
+ * either version 3 of the License or any later version.
+ *
+ * Akvo Caddisfly is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License included below for more details.
+ *
+ * The full license text can also be seen at <http://www.gnu.org/licenses/agpl.html>.
+ */
+
+package org.akvo.caddisfly.model;
+
+/**
+ * The result of validating a range of swatches, identifying the swatches by their index
+ */
+public final class SwatchValidation {
+    private final int size;
+    private final int[] incomplete;
+    private final int[][] duplicatePairs;
+    private final int[] outOfSequence;
+
+    /**
+     * @param size           the number of swatches validated
+     * @param incomplete     the ascending indexes of the swatches that have not been calibrated
+     * @param duplicatePairs the pairs of indexes of similar swatches, the lower index first and
+     *                       in ascending order
+     * @param outOfSequence  the ascending indexes of the swatches whose value is not greater than
+     *                       the value of the swatch before
+     */
+    public SwatchValidation(int size, int[] incomplete, int[][] duplicatePairs, int[] outOfSequence) {
+        this.size = size;
+        this.incomplete = incomplete;
+        this.duplicatePairs = duplicatePairs;
+        this.outOfSequence = outOfSequence;
+    }
+
+    /**
+     * Checks if the swatches are complete and have no duplicate colors.
+     * The sequence of the values is informational only and does not make the swatches invalid
+     *
+     * @return true if valid
+     */
+    public boolean isValid() {
+        return incomplete.length == 0 && duplicatePairs.length == 0;
+    }
+
+    public boolean isComplete() {
+        return incomplete.length == 0;
+    }
+
+    public boolean hasDuplicates() {
+        return duplicatePairs.length > 0;
+    }
+
+    public boolean isInSequence() {
+        return outOfSequence.length == 0;
+    }
+
+    /**
+     * Gets the number of swatches that were validated
+     *
+     * @return the number of swatches
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the indexes of the swatches that are transparent or black
+     *
+     * @return the ascending indexes
+     */
+    public int[] getIncomplete() {
+        return incomplete.clone();
+    }
+
+    /**
+     * Gets the pairs of swatches whose colors are too similar to tell apart
+     *
+     * @return the pairs of indexes, the lower index first
+     */
+    public int[][] getDuplicatePairs() {
+        int[][] pairs = new int[duplicatePairs.length][];
+        for (int i = 0; i < pairs.length; i++) {
+            pairs[i] = duplicatePairs[i].clone();
+        }
+        return pairs;
+    }
+
+    /**
+     * Gets the indexes of the swatches that have a similar color to another swatch
+     *
+     * @return the ascending indexes
+     */
+    public int[] getDuplicates() {
+        boolean[] duplicate = new boolean[size];
+        int count = 0;
+        for (int[] pair : duplicatePairs) {
+            for (int index : pair) {
+                if (!duplicate[index]) {
+                    duplicate[index] = true;
+                    count++;
+                }
+            }
+        }
+        int[] indexes = new int[count];
+        for (int i = 0, j = 0; i < size; i++) {
+            if (duplicate[i]) {
+                indexes[j++] = i;
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * Gets the indexes of the swatches whose value does not follow on from the swatch before
+     *
+     * @return the ascending indexes
+     */
+    public int[] getOutOfSequence() {
+        return outOfSequence.clone();
+    }
+}
@@ -112,6 +112,15 @@ public class TestInfo {
         return swatches;
     }
 
+    /**
+     * Gets a copy of the sorted swatches as a table
+     *
+     * @return the swatch table
+     */
+    public SwatchTable getSwatchTable() {
+        return SwatchTable.fromSwatches(getSwatches());
+    }
+
     public double getDilutionRequiredLevel() {
         Swatch swatch = swatches.get(swatches.size() - 1);
         return swatch.getValue() - 0.2;
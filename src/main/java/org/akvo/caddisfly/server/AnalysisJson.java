@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) Stichting Akvo (Akvo Foundation)
+ *
+ * This file is part of Akvo Caddisfly
+ *
+ * Akvo Caddisfly is free software: you can redistribute it and modify it under the terms of
+ * the GNU Affero General Public License (AGPL) as published by the Free Software Foundation,
+ * either version 3 of the License or any later version.
+ *
+ * Akvo Caddisfly is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License included below for more details.
+ *
+ * The full license text can also be seen at <http://www.gnu.org/licenses/agpl.html>.
+ */
+
+package org.akvo.caddisfly.server;
+
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.akvo.caddisfly.helper.CalibrationRegistry;
+import org.akvo.caddisfly.helper.SwatchHelper;
+import org.akvo.caddisfly.model.ColorInfo;
+import org.akvo.caddisfly.model.Gradient;
+import org.akvo.caddisfly.model.ResultDetail;
+import org.akvo.caddisfly.model.Swatch;
+import org.akvo.caddisfly.model.SwatchTable;
+import org.akvo.caddisfly.util.Color;
+import org.akvo.caddisfly.util.ColorUtil;
+
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+
+/**
+ * Converts analysis requests and results to and from JSON
+ * <p>
+ * A request holds the calibration and the colors to analyze against it:
+ * <pre>
+ * {"model": "RGB",
+ *  "swatches": [{"value": 0, "color": [255, 87, 181]}, {"value": 2, "color": [245, 185, 122]}],
+ *  "colors": [[250, 140, 150], [248, 170, 131]]}
+ * </pre>
+ * The model is optional and defaults to RGB. A calibration registered beforehand with
+ * <pre>
+ * {"swatches": [{"value": 0, "color": [255, 87, 181]}, {"value": 2, "color": [245, 185, 122]}]}
+ * </pre>
+ * can be referred to instead of sending the swatches, as in {@code "calibration": "<id>"} with
+ * the id returned by the registration. The response lists a result for each color in order:
+ * <pre>
+ * {"results": [{"value": 0.98, "matchedColor": [251, 139, 150], "distance": 1.41, "model": "RGB"}, ...]}
+ * </pre>
+ * A value of -1 means the color did not match the calibration.
+ */
+public final class AnalysisJson {
+
+    /**
+     * The most colors that can be analyzed in one request
+     */
+    public static final int MAX_COLORS = 10000;
+
+    private AnalysisJson() {
+    }
+
+    /**
+     * Analyze the colors of a request
+     *
+     * @param body     the JSON request
+     * @param registry the registry of the calibrations that requests may refer to by id
+     * @return the JSON response
+     * @throws IllegalArgumentException if the request is not valid
+     * @throws NoSuchElementException   if the calibration referred to is not registered
+     */
+    public static String analyze(String body, CalibrationRegistry registry) {
+        try {
+            JsonObject request = new JsonObject(body);
+            ColorUtil.ColorModel colorModel = parseColorModel(request.getString("model"));
+            String id = request.getString("calibration");
+            int[] colors = parseColors(request.getJsonArray("colors"));
+
+            JsonArray results = new JsonArray();
+            if (id == null) {
+                SwatchTable swatches = SwatchTable.fromSwatches(parseSwatches(request.getJsonArray("swatches")));
+                for (int color : colors) {
+                    results.add(toJson(SwatchHelper.analyzeColor(new ColorInfo(color, 0), swatches, colorModel)));
+                }
+            } else {
+                CalibrationRegistry.Entry calibration = registry.get(id);
+                if (calibration == null) {
+                    throw new NoSuchElementException("Unknown calibration: " + id);
+                }
+                Gradient swatches = calibration.getSwatches();
+                Gradient gradient = calibration.getGradient(colorModel);
+                for (int color : colors) {
+                    results.add(toJson(SwatchHelper.analyzeColor(new ColorInfo(color, 0), swatches, gradient,
+                            colorModel)));
+                }
+            }
+            return new JsonObject().put("results", results).encode();
+        } catch (DecodeException | ClassCastException e) {
+            throw new IllegalArgumentException("Malformed request: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Register the calibration of a request
+     *
+     * @param body     the JSON request with the swatches of the calibration
+     * @param registry the registry to add the calibration to
+     * @return the JSON response with the id of the calibration
+     * @throws IllegalArgumentException if the request is not valid
+     */
+    public static String register(String body, CalibrationRegistry registry) {
+        try {
+            JsonObject request = new JsonObject(body);
+            CalibrationRegistry.Entry calibration = registry.register(parseSwatches(request.getJsonArray("swatches")));
+            return new JsonObject()
+                    .put("calibration", calibration.getId())
+                    .put("swatchCount", calibration.getSwatches().size())
+                    .encode();
+        } catch (DecodeException | ClassCastException e) {
+            throw new IllegalArgumentException("Malformed request: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @param name the name of the color model or null for the default
+     * @return the color model
+     */
+    public static ColorUtil.ColorModel parseColorModel(String name) {
+        if (name == null) {
+            return ColorUtil.ColorModel.RGB;
+        }
+        for (ColorUtil.ColorModel colorModel : ColorUtil.ColorModel.values()) {
+            if (colorModel.name().equalsIgnoreCase(name)) {
+                return colorModel;
+            }
+        }
+        throw new IllegalArgumentException("Unknown color model: " + name);
+    }
+
+    /**
+     * @param array the swatches, each with a value and a color
+     * @return the swatches in the order given
+     * @throws IllegalArgumentException if a value is not finite or the gradient between the
+     *                                  swatches would have more than {@link ColorUtil#MAX_GRADIENT_SIZE} colors
+     */
+    public static ArrayList<Swatch> parseSwatches(JsonArray array) {
+        if (array == null || array.size() == 0) {
+            throw new IllegalArgumentException("The calibration has no swatches");
+        }
+        ArrayList<Swatch> swatches = new ArrayList<>(array.size());
+        for (int i = 0; i < array.size(); i++) {
+            JsonObject swatch = array.getJsonObject(i);
+            Double value = swatch == null ? null : swatch.getDouble("value");
+            if (value == null) {
+                throw new IllegalArgumentException("Swatch " + i + " has no value");
+            }
+            if (value.isNaN() || value.isInfinite()) {
+                throw new IllegalArgumentException("Swatch " + i + " has a value that is not a finite number");
+            }
+            swatches.add(new Swatch(value, parseColor(swatch.getJsonArray("color")), Color.TRANSPARENT));
+        }
+        if (ColorUtil.getGradientSize(swatches, CalibrationRegistry.GRADIENT_INCREMENT) > ColorUtil.MAX_GRADIENT_SIZE) {
+            throw new IllegalArgumentException("The swatch values are too far apart, the gradient between them "
+                    + "would have more than " + ColorUtil.MAX_GRADIENT_SIZE + " colors");
+        }
+        return swatches;
+    }
+
+    /**
+     * @param array the colors, each as red, green and blue components
+     * @return the colors in the order given
+     */
+    public static int[] parseColors(JsonArray array) {
+        if (array == null) {
+            throw new IllegalArgumentException("There are no colors to analyze");
+        }
+        if (array.size() > MAX_COLORS) {
+            throw new IllegalArgumentException("At most " + MAX_COLORS + " colors can be analyzed at once");
+        }
+        int[] colors = new int[array.size()];
+        for (int i = 0; i < colors.length; i++) {
+            colors[i] = parseColor(array.getJsonArray(i));
+        }
+        return colors;
+    }
+
+    /**
+     * @param array the red, green and blue components of the color
+     * @return the color
+     */
+    public static int parseColor(JsonArray array) {
+        if (array == null || array.size() != 3) {
+            throw new IllegalArgumentException("A color must have three components");
+        }
+        return Color.rgb(parseComponent(array, 0), parseComponent(array, 1), parseComponent(array, 2));
+    }
+
+    /**
+     * @param color the color
+     * @return the red, green and blue components of the color
+     */
+    public static JsonArray toJson(int color) {
+        return new JsonArray().add(Color.red(color)).add(Color.green(color)).add(Color.blue(color));
+    }
+
+    /**
+     * @param resultDetail the result of an analysis
+     * @return the result as JSON
+     */
+    public static JsonObject toJson(ResultDetail resultDetail) {
+        return new JsonObject()
+                .put("value", resultDetail.getResult())
+                .put("matchedColor", toJson(resultDetail.getMatchedColor()))
+                .put("distance", resultDetail.getDistance())
+                .put("model", resultDetail.getColorModel().name());
+    }
+
+    private static int parseComponent(JsonArray array, int index) {
+        Object value = array.getValue(index);
+        if (!(value instanceof Integer) && !(value instanceof Long)) {
+            throw new IllegalArgumentException("Color components must be whole numbers");
+        }
+        long component = ((Number) value).longValue();
+        if (component < 0 || component > 255) {
+            throw new IllegalArgumentException("Color components must be from 0 to 255");
+        }
+        return (int) component;
+    }
+}
@@ -0,0 +1,461 @@
+/*
+ * Copyright (C) Stichting Akvo (Akvo Foundation)
+ *
+ * This file is part of Akvo Caddisfly
+ *
+ * Akvo Caddisfly is free software: you can redistribute it and modify it under the terms of
+ * the GNU Affero General Public License (AGPL) as published by the Free Software Foundation,
+ * either version 3 of the License or any later version.
+ *
+ * Akvo Caddisfly is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License included below for more details.
+ *
+ * The full license text can also be seen at <http://www.gnu.org/licenses/agpl.html>.
+ */
+
+package org.akvo.caddisfly.server;
+
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.DeliveryOptions;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.eventbus.ReplyException;
+import io.vertx.core.eventbus.ReplyFailure;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonObject;
+import org.akvo.caddisfly.helper.CalibrationRegistry;
+import org.akvo.caddisfly.helper.ReportRenderer;
+import org.akvo.caddisfly.util.LatencyHistogram;
+import org.akvo.caddisfly.util.Metrics;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Serves the analysis API over HTTP along with the calibration report at every other path
+ * <p>
+ * The report is served a page at a time with {@code ?page=n} selecting the page. Each page is
+ * rendered and gzip compressed once and then sent as is to every client that accepts gzip, with
+ * an ETag and Last-Modified time so a client that already has the page is answered with 304.
+ * Clients that do not accept gzip are streamed the page as it is rendered. The report can be
+ * replaced while the server runs, such as when the calibrations change.
+ * <p>
+ * {@code POST /analyze} takes a request in the form described by {@link AnalysisJson} and is
+ * answered by the worker {@link AnalysisVerticle}s, so the event loop only moves bytes. Once
+ * the configured number of requests are being analyzed further requests are turned away with
+ * 503 and a Retry-After header rather than queued without limit, and request bodies are limited
+ * in size.
+ * <p>
+ * {@code POST /calibrations} registers the swatches of a calibration and answers with an id
+ * that later analysis requests can send in place of the swatches, so the calibration and its
+ * gradients are parsed and generated once rather than on every request.
+ * <p>
+ * When the caddisfly.metrics system property is true, {@code GET /metrics} answers with the
+ * {@link Metrics} in the Prometheus text format and the time taken by each request is recorded.
+ * Otherwise the path serves the report like any other.
+ */
+public class AnalysisServer extends AbstractVerticle {
+
+    public static final int DEFAULT_PORT = 8080;
+
+    /**
+     * The most requests analyzed at once before new requests are refused
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 512;
+
+    /**
+     * The largest request body accepted
+     */
+    public static final int MAX_BODY_SIZE = 1024 * 1024;
+
+    /**
+     * The time after which an analysis is abandoned
+     */
+    public static final long ANALYSIS_TIMEOUT = 10000;
+
+    private static final int OK = 200;
+    private static final int NOT_MODIFIED = 304;
+    private static final int NOT_FOUND = 404;
+    private static final int METHOD_NOT_ALLOWED = 405;
+    private static final int REQUEST_TOO_LARGE = 413;
+    private static final int INTERNAL_SERVER_ERROR = 500;
+    private static final int SERVICE_UNAVAILABLE = 503;
+
+    private static final String CONTENT_TYPE_HTML = "text/html";
+    private static final String CONTENT_TYPE_JSON = "application/json";
+
+    private final int port;
+    private final int workerInstances;
+    private final int maxInFlight;
+    private volatile ReportCache report;
+    private final CalibrationRegistry registry;
+    private final DeliveryOptions deliveryOptions = new DeliveryOptions().setSendTimeout(ANALYSIS_TIMEOUT);
+    private int inFlight;
+
+    /**
+     * @param report the report served at the root
+     */
+    public AnalysisServer(ReportRenderer report) {
+        this(DEFAULT_PORT, Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_IN_FLIGHT, report,
+                new CalibrationRegistry());
+    }
+
+    /**
+     * @param port            the port to listen on
+     * @param workerInstances the number of analysis verticles to deploy
+     * @param maxInFlight     the most requests analyzed at once before new requests are refused
+     * @param report          the report served at the root
+     * @param registry        the calibrations registered with the server
+     */
+    public AnalysisServer(int port, int workerInstances, int maxInFlight, ReportRenderer report,
+                          CalibrationRegistry registry) {
+        this.port = port;
+        this.workerInstances = workerInstances;
+        this.maxInFlight = maxInFlight;
+        this.report = new ReportCache(report, null);
+        this.registry = registry;
+    }
+
+    /**
+     * Replace the report, which is compressed again in the background
+     * <p>
+     * Can be called from any thread.
+     *
+     * @param report the new report
+     */
+    public synchronized void setReport(ReportRenderer report) {
+        ReportCache cache = new ReportCache(report, this.report);
+        this.report = cache;
+        if (vertx != null) {
+            prebuild(cache);
+        }
+    }
+
+    private void prebuild(ReportCache cache) {
+        vertx.executeBlocking(future -> {
+            for (int page = 0; page < cache.getPageCount() && cache == report; page++) {
+                cache.build(page);
+            }
+            future.complete();
+        }, false, built -> {
+            if (built.failed()) {
+                built.cause().printStackTrace();
+            }
+        });
+    }
+
+    @Override
+    public void start(Future<Void> startFuture) {
+        prebuild(report);
+
+        // Verticle instances are created here rather than by class name so they share the registry
+        DeploymentOptions options = new DeploymentOptions().setWorker(true);
+        int[] deployed = {0};
+        boolean[] failed = {false};
+        for (int i = 0; i < workerInstances; i++) {
+            vertx.deployVerticle(new AnalysisVerticle(registry), options, deployment -> {
+                if (failed[0]) {
+                    return;
+                }
+                if (deployment.failed()) {
+                    failed[0] = true;
+                    startFuture.fail(deployment.cause());
+                } else if (++deployed[0] == workerInstances) {
+                    listen(startFuture);
+                }
+            });
+        }
+    }
+
+    private void listen(Future<Void> startFuture) {
+        vertx.createHttpServer().requestHandler(this::handle).listen(port, listen -> {
+            if (listen.succeeded()) {
+                startFuture.complete();
+            } else {
+                startFuture.fail(listen.cause());
+            }
+        });
+    }
+
+    private void handle(HttpServerRequest request) {
+        String path = request.path();
+        if ("/analyze".equals(path)) {
+            time(request, Metrics.ANALYZE_REQUESTS);
+            post(request, AnalysisVerticle.ADDRESS, "Use POST to analyze colors");
+        } else if ("/calibrations".equals(path)) {
+            time(request, Metrics.CALIBRATION_REQUESTS);
+            post(request, AnalysisVerticle.REGISTER_ADDRESS, "Use POST to register a calibration");
+        } else if (Metrics.ENABLED && "/metrics".equals(path)) {
+            time(request, Metrics.METRICS_REQUESTS);
+            sendMetrics(request);
+        } else {
+            time(request, Metrics.REPORT_REQUESTS);
+            sendReport(request);
+        }
+    }
+
+    /**
+     * Record the time until the response has been sent. A request whose connection closes first
+     * is not recorded
+     */
+    private static void time(HttpServerRequest request, LatencyHistogram histogram) {
+        if (Metrics.ENABLED) {
+            long start = System.nanoTime();
+            request.response().bodyEndHandler(end -> histogram.recordSince(start));
+        }
+    }
+
+    private static void sendMetrics(HttpServerRequest request) {
+        HttpServerResponse response = request.response();
+        if (request.method() != HttpMethod.GET) {
+            response.putHeader("Allow", "GET");
+            sendError(response, METHOD_NOT_ALLOWED, "Use GET to read the metrics");
+            return;
+        }
+        response.putHeader("Content-Type", MetricsText.CONTENT_TYPE)
+                .putHeader("Cache-Control", "no-cache")
+                .end(MetricsText.render());
+    }
+
+    private void sendReport(HttpServerRequest request) {
+        ReportCache cache = report;
+        int page;
+        try {
+            String pageParam = request.getParam("page");
+            page = pageParam == null ? 0 : Integer.parseInt(pageParam);
+        } catch (NumberFormatException e) {
+            page = -1;
+        }
+        if (page < 0 || page >= cache.getPageCount()) {
+            request.response().setStatusCode(NOT_FOUND).end();
+            return;
+        }
+
+        ReportCache.Page cached = cache.get(page);
+        if (cached != null) {
+            sendReport(request, cache, page, cached);
+            return;
+        }
+        int index = page;
+        vertx.<ReportCache.Page>executeBlocking(future -> future.complete(cache.build(index)), false, built -> {
+            if (built.succeeded()) {
+                sendReport(request, cache, index, built.result());
+            } else {
+                built.cause().printStackTrace();
+                request.response().setStatusCode(INTERNAL_SERVER_ERROR).end();
+            }
+        });
+    }
+
+    private static void sendReport(HttpServerRequest request, ReportCache cache, int index, ReportCache.Page page) {
+        HttpServerResponse response = request.response();
+        boolean gzip = acceptsGzip(request.getHeader("Accept-Encoding"));
+        String etag = "\"" + page.getEtag() + (gzip ? "-gzip\"" : "\"");
+        response.putHeader("ETag", etag)
+                .putHeader("Last-Modified", formatDate(page.getLastModified()))
+                .putHeader("Cache-Control", "no-cache")
+                .putHeader("Vary", "Accept-Encoding");
+
+        if (isNotModified(request, etag, page.getLastModified())) {
+            response.setStatusCode(NOT_MODIFIED).end();
+            return;
+        }
+
+        response.putHeader("Content-Type", CONTENT_TYPE_HTML);
+        if (gzip) {
+            response.putHeader("Content-Encoding", "gzip").end(page.getGzipContent());
+        } else {
+            response.setChunked(true);
+            ReportRenderer.Output output = (bytes, offset, length) ->
+                    response.write(Buffer.buffer(length).appendBytes(bytes, offset, length));
+            sendReport(response, cache.getRenderer().open(index), output);
+        }
+    }
+
+    private static boolean isNotModified(HttpServerRequest request, String etag, long lastModified) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals(etag) || tag.equals("*")) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        String ifModifiedSince = request.getHeader("If-Modified-Since");
+        if (ifModifiedSince != null) {
+            try {
+                return ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME)
+                        .toInstant().toEpochMilli() >= lastModified;
+            } catch (DateTimeParseException ignored) {
+                // An unreadable date is ignored as if it were not sent
+            }
+        }
+        return false;
+    }
+
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim();
+            if (!name.equalsIgnoreCase("gzip") && !name.equals("*")) {
+                continue;
+            }
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(parameter.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static String formatDate(long time) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(
+                ZonedDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneOffset.UTC));
+    }
+
+    /**
+     * Render the page until the response has as much queued as it allows, then continue once
+     * it drains
+     */
+    private static void sendReport(HttpServerResponse response, ReportRenderer.Page page,
+                                   ReportRenderer.Output output) {
+        try {
+            while (!response.writeQueueFull()) {
+                if (!page.renderNext(output)) {
+                    response.end();
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // The output only writes to the response, which does not throw
+            throw new IllegalStateException(e);
+        }
+        response.drainHandler(drained -> sendReport(response, page, output));
+    }
+
+    private void post(HttpServerRequest request, String address, String methodError) {
+        if (request.method() == HttpMethod.POST) {
+            analyze(request, address);
+        } else {
+            request.response().putHeader("Allow", "POST");
+            sendError(request.response(), METHOD_NOT_ALLOWED, methodError);
+        }
+    }
+
+    private void analyze(HttpServerRequest request, String address) {
+        if (inFlight >= maxInFlight) {
+            if (Metrics.ENABLED) {
+                Metrics.REJECTED_REQUESTS.increment();
+            }
+            request.response().putHeader("Retry-After", "1");
+            sendError(request.response(), SERVICE_UNAVAILABLE, "Too many analyses in progress");
+            return;
+        }
+        new Analysis(request, address).start();
+    }
+
+    /**
+     * An analysis request that holds a place in flight from when it is accepted until it is
+     * answered or the connection closes
+     */
+    private final class Analysis {
+        private final HttpServerRequest request;
+        private final HttpServerResponse response;
+        private final String address;
+        private final Buffer body = Buffer.buffer();
+        private boolean finished;
+
+        Analysis(HttpServerRequest request, String address) {
+            this.request = request;
+            this.response = request.response();
+            this.address = address;
+        }
+
+        void start() {
+            inFlight++;
+            response.closeHandler(closed -> finish());
+            request.handler(this::append);
+            request.endHandler(end -> send());
+        }
+
+        private void append(Buffer chunk) {
+            if (finished) {
+                return;
+            }
+            if (body.length() + chunk.length() > MAX_BODY_SIZE) {
+                finish();
+                sendError(response, REQUEST_TOO_LARGE, "The request is larger than " + MAX_BODY_SIZE + " bytes");
+                return;
+            }
+            body.appendBuffer(chunk);
+        }
+
+        private void send() {
+            if (finished) {
+                return;
+            }
+            vertx.eventBus().send(address, body.toString("UTF-8"), deliveryOptions,
+                    (AsyncResult<Message<String>> reply) -> {
+                        if (finished) {
+                            return;
+                        }
+                        finish();
+                        if (reply.succeeded()) {
+                            response.setStatusCode(OK).putHeader("Content-Type", CONTENT_TYPE_JSON)
+                                    .end(reply.result().body());
+                        } else {
+                            sendFailure(response, reply.cause());
+                        }
+                    });
+        }
+
+        private void finish() {
+            if (!finished) {
+                finished = true;
+                inFlight--;
+            }
+        }
+    }
+
+    private static void sendFailure(HttpServerResponse response, Throwable cause) {
+        if (cause instanceof ReplyException) {
+            ReplyException failure = (ReplyException) cause;
+            if (failure.failureType() == ReplyFailure.RECIPIENT_FAILURE) {
+                sendError(response, failure.failureCode(), failure.getMessage());
+                return;
+            }
+        }
+        response.putHeader("Retry-After", "1");
+        sendError(response, SERVICE_UNAVAILABLE, "The analysis could not be completed");
+    }
+
+    private static void sendError(HttpServerResponse response, int statusCode, String message) {
+        response.setStatusCode(statusCode).putHeader("Content-Type", CONTENT_TYPE_JSON)
+                .end(new JsonObject().put("error", message).encode());
+    }
+}
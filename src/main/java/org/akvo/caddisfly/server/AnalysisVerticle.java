@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) Stichting Akvo (Akvo Foundation)
+ *
+ * This file is part of Akvo Caddisfly
+ *
+ * Akvo Caddisfly is free software: you can redistribute it and modify it under the terms of
+ * the GNU Affero General Public License (AGPL) as published by the Free Software Foundation,
+ * either version 3 of the License or any later version.
+ *
+ * Akvo Caddisfly is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License included below for more details.
+ *
+ * The full license text can also be seen at <http://www.gnu.org/licenses/agpl.html>.
+ */
+
+package org.akvo.caddisfly.server;
+
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.eventbus.Message;
+import org.akvo.caddisfly.helper.CalibrationRegistry;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Analyzes the requests sent to it over the event bus
+ * <p>
+ * Deployed as a worker verticle so the analysis never runs on an event loop. Each instance handles
+ * one request at a time; deploy several instances to analyze requests in parallel. The instances
+ * share a {@link CalibrationRegistry} so a calibration registered through any of them can be
+ * referred to in requests handled by the others.
+ */
+public class AnalysisVerticle extends AbstractVerticle {
+
+    /**
+     * The event bus address that takes a JSON request as a string and replies with the JSON response
+     */
+    public static final String ADDRESS = "caddisfly.analysis";
+
+    /**
+     * The event bus address that takes a JSON calibration as a string and replies with its id
+     */
+    public static final String REGISTER_ADDRESS = "caddisfly.calibrations";
+
+    /**
+     * The failure code when the request is not valid
+     */
+    public static final int INVALID_REQUEST = 400;
+
+    /**
+     * The failure code when the analysis failed unexpectedly
+     */
+    public static final int ANALYSIS_FAILED = 500;
+
+    /**
+     * The failure code when the request refers to a calibration that is not registered
+     */
+    public static final int UNKNOWN_CALIBRATION = 404;
+
+    private final CalibrationRegistry registry;
+
+    /**
+     * @param registry the calibrations that requests may refer to by id
+     */
+    public AnalysisVerticle(CalibrationRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public void start() {
+        vertx.eventBus().<String>consumer(ADDRESS, this::analyze);
+        vertx.eventBus().<String>consumer(REGISTER_ADDRESS, this::register);
+    }
+
+    private void analyze(Message<String> message) {
+        String response;
+        try {
+            response = AnalysisJson.analyze(message.body(), registry);
+        } catch (NoSuchElementException e) {
+            message.fail(UNKNOWN_CALIBRATION, e.getMessage());
+            return;
+        } catch (IllegalArgumentException e) {
+            message.fail(INVALID_REQUEST, e.getMessage());
+            return;
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            message.fail(ANALYSIS_FAILED, String.valueOf(e));
+            return;
+        }
+        message.reply(response);
+    }
+
+    private void register(Message<String> message) {
+        String response;
+        try {
+            response = AnalysisJson.register(message.body(), registry);
+        } catch (IllegalArgumentException e) {
+            message.fail(INVALID_REQUEST, e.getMessage());
+            return;
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            message.fail(ANALYSIS_FAILED, String.valueOf(e));
+            return;
+        }
+        message.reply(response);
+    }
+}
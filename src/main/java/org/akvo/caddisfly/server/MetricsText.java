@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) Stichting Akvo (Akvo Foundation)
+ *
+ * This file is part of Akvo Caddisfly
+ *
+ * Akvo Caddisfly is free software: you can redistribute it and modify it under the terms of
+ * the GNU Affero General Public License (AGPL) as published by the Free Software Foundation,
+ * either version 3 of the License or any later version.
+ *
+ * Akvo Caddisfly is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License included below for more details.
+ *
+ * The full license text can also be seen at <http://www.gnu.org/licenses/agpl.html>.
+ */
+
+package org.akvo.caddisfly.server;
+
+import org.akvo.caddisfly.helper.GradientCache;
+import org.akvo.caddisfly.helper.SwatchHelper;
+import org.akvo.caddisfly.util.LatencyHistogram;
+import org.akvo.caddisfly.util.Metrics;
+
+/**
+ * Writes the {@link Metrics} in the Prometheus text exposition format
+ * <p>
+ * Timings are histograms in seconds with the buckets of {@link LatencyHistogram}. The bucket
+ * counts are read one at a time while threads may still be recording, so the count written is
+ * the sum of the buckets as read rather than a separate total that could disagree with them.
+ */
+final class MetricsText {
+
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private MetricsText() {
+    }
+
+    static String render() {
+        StringBuilder sb = new StringBuilder(16 * 1024);
+
+        header(sb, "caddisfly_analyses_total", "counter",
+                "Colors analyzed by how they matched the calibration");
+        sample(sb, "caddisfly_analyses_total", "match", "exact", Metrics.EXACT_MATCHES.sum());
+        sample(sb, "caddisfly_analyses_total", "match", "gradient", Metrics.GRADIENT_MATCHES.sum());
+        sample(sb, "caddisfly_analyses_total", "match", "none", Metrics.NO_MATCHES.sum());
+        sample(sb, "caddisfly_analyses_total", "match", "compiled", Metrics.COMPILED_LOOKUPS.sum());
+
+        header(sb, "caddisfly_nearest_color_searches_total", "counter",
+                "Searches for the nearest color by how the colors were searched");
+        sample(sb, "caddisfly_nearest_color_searches_total", "method", "scan", Metrics.SCAN_SEARCHES.sum());
+        sample(sb, "caddisfly_nearest_color_searches_total", "method", "index", Metrics.INDEX_SEARCHES.sum());
+        sample(sb, "caddisfly_nearest_color_searches_total", "method", "lab", Metrics.LAB_SEARCHES.sum());
+
+        header(sb, "caddisfly_color_distance_evaluations_total", "counter",
+                "Color distances computed by the nearest color searches");
+        sample(sb, "caddisfly_color_distance_evaluations_total", null, null, Metrics.COLOR_DISTANCES.sum());
+
+        GradientCache cache = SwatchHelper.getGradientCache();
+        header(sb, "caddisfly_gradient_cache_requests_total", "counter",
+                "Gradients requested from the cache by whether they were cached");
+        sample(sb, "caddisfly_gradient_cache_requests_total", "result", "hit", cache.getHitCount());
+        sample(sb, "caddisfly_gradient_cache_requests_total", "result", "miss", cache.getMissCount());
+
+        header(sb, "caddisfly_analyze_color_seconds", "histogram", "Time to analyze a color");
+        histogram(sb, "caddisfly_analyze_color_seconds", null, null, Metrics.ANALYZE_COLOR);
+
+        header(sb, "caddisfly_gradient_generation_seconds", "histogram",
+                "Time to generate the gradient between the swatches of a calibration");
+        histogram(sb, "caddisfly_gradient_generation_seconds", null, null, Metrics.GENERATE_GRADIENT);
+
+        header(sb, "caddisfly_calibration_load_seconds", "histogram", "Time to load a calibration file");
+        histogram(sb, "caddisfly_calibration_load_seconds", null, null, Metrics.LOAD_CALIBRATION);
+
+        header(sb, "caddisfly_http_request_seconds", "histogram",
+                "Time from receiving an HTTP request to the end of its response");
+        histogram(sb, "caddisfly_http_request_seconds", "route", "analyze", Metrics.ANALYZE_REQUESTS);
+        histogram(sb, "caddisfly_http_request_seconds", "route", "calibrations", Metrics.CALIBRATION_REQUESTS);
+        histogram(sb, "caddisfly_http_request_seconds", "route", "report", Metrics.REPORT_REQUESTS);
+        histogram(sb, "caddisfly_http_request_seconds", "route", "metrics", Metrics.METRICS_REQUESTS);
+
+        header(sb, "caddisfly_http_rejected_requests_total", "counter",
+                "Analysis requests refused because too many were in progress");
+        sample(sb, "caddisfly_http_rejected_requests_total", null, null, Metrics.REJECTED_REQUESTS.sum());
+
+        return sb.toString();
+    }
+
+    private static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, String label, String labelValue, long value) {
+        sb.append(name);
+        if (label != null) {
+            sb.append('{').append(label).append("=\"").append(labelValue).append("\"}");
+        }
+        sb.append(' ').append(value).append('\n');
+    }
+
+    private static void histogram(StringBuilder sb, String name, String label, String labelValue,
+                                  LatencyHistogram histogram) {
+        String labels = label == null ? "" : label + "=\"" + labelValue + "\",";
+        long cumulative = 0;
+        for (int i = 0; i < histogram.getBucketCount(); i++) {
+            cumulative += histogram.getCount(i);
+            long bound = histogram.getUpperBound(i);
+            sb.append(name).append("_bucket{").append(labels).append("le=\"")
+                    .append(bound == Long.MAX_VALUE ? "+Inf" : Double.toString(bound / NANOS_PER_SECOND))
+                    .append("\"} ").append(cumulative).append('\n');
+        }
+
+        String suffix = label == null ? "" : "{" + label + "=\"" + labelValue + "\"}";
+        sb.append(name).append("_sum").append(suffix).append(' ')
+                .append(histogram.getSum() / NANOS_PER_SECOND).append('\n');
+        sb.append(name).append("_count").append(suffix).append(' ').append(cumulative).append('\n');
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) Stichting Akvo (Akvo Foundation)
+ *
+ * This file is part of Akvo Caddisfly
+ *
+ * Akvo Caddisfly is free software: you can redistribute it and modify it under the terms of
+ * the GNU Affero General Public License (AGPL) as published by the Free Software Foundation,
+ * either version 3 of the License or any later version.
+ *
+ * Akvo Caddisfly is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License included below for more details.
+ *
+ * The full license text can also be seen at <http://www.gnu.org/licenses/agpl.html>.
+ */
+
+package org.akvo.caddisfly.server;
+
+import io.netty.buffer.Unpooled;
+import io.vertx.core.buffer.Buffer;
+import org.akvo.caddisfly.helper.ReportRenderer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The pages of a report compressed once and kept for serving to every request
+ * <p>
+ * Each page is identified by a hash of its content, so when the report is rebuilt the pages
+ * that did not change keep their ETag and Last-Modified time and clients holding them are
+ * still answered with 304. Pages that hold the same evaluations as in the replaced report are
+ * taken over without being rendered again.
+ */
+final class ReportCache {
+
+    /**
+     * The number of bytes of the content hash used in the ETag
+     */
+    private static final int ETAG_BYTES = 16;
+
+    private final ReportRenderer renderer;
+    private final long lastModified;
+    private final Map<Integer, Page> previous;
+    private final ConcurrentHashMap<Integer, Page> pages = new ConcurrentHashMap<>();
+
+    /**
+     * @param renderer the report
+     * @param replaced the cache of the report this one replaces, or null
+     */
+    ReportCache(ReportRenderer renderer, ReportCache replaced) {
+        this.renderer = renderer;
+        // HTTP dates are in whole seconds
+        this.lastModified = System.currentTimeMillis() / 1000 * 1000;
+
+        // Only the validators of changed pages are kept so their content can be collected
+        this.previous = new HashMap<>();
+        if (replaced != null) {
+            for (Map.Entry<Integer, Page> entry : replaced.pages.entrySet()) {
+                Page page = entry.getValue();
+                if (renderer.hasSamePage(entry.getKey(), replaced.renderer)) {
+                    pages.put(entry.getKey(), page);
+                } else {
+                    previous.put(entry.getKey(), new Page(page.etag, page.lastModified, null));
+                }
+            }
+        }
+    }
+
+    ReportRenderer getRenderer() {
+        return renderer;
+    }
+
+    int getPageCount() {
+        return renderer.getPageCount();
+    }
+
+    /**
+     * @param page the index of the page
+     * @return the page or null if it has not been built yet
+     */
+    Page get(int page) {
+        return pages.get(page);
+    }
+
+    /**
+     * Render and compress a page unless it already has been, which blocks other threads building
+     * the same page until it is done
+     *
+     * @param page the index of the page
+     * @return the page
+     */
+    Page build(int page) {
+        return pages.computeIfAbsent(page, this::render);
+    }
+
+    private Page render(int page) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(ReportRenderer.CHUNK_SIZE);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed, ReportRenderer.CHUNK_SIZE)) {
+            renderer.render(page, (bytes, offset, length) -> {
+                digest.update(bytes, offset, length);
+                gzip.write(bytes, offset, length);
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        byte[] hash = digest.digest();
+        StringBuilder etag = new StringBuilder(ETAG_BYTES * 2);
+        for (int i = 0; i < ETAG_BYTES; i++) {
+            etag.append(Character.forDigit((hash[i] >> 4) & 0xF, 16)).append(Character.forDigit(hash[i] & 0xF, 16));
+        }
+
+        Page before = previous.get(page);
+        long modified = before != null && before.etag.equals(etag.toString()) ? before.lastModified : lastModified;
+
+        // Netty releases the buffers it writes, which must not free one that is sent again
+        byte[] bytes = compressed.toByteArray();
+        Buffer content = Buffer.buffer(Unpooled.unreleasableBuffer(
+                Unpooled.directBuffer(bytes.length).writeBytes(bytes)));
+        return new Page(etag.toString(), modified, content);
+    }
+
+    /**
+     * A compressed page with the validators for conditional requests
+     */
+    static final class Page {
+        private final String etag;
+        private final long lastModified;
+        private final Buffer gzipContent;
+
+        Page(String etag, long lastModified, Buffer gzipContent) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.gzipContent = gzipContent;
+        }
+
+        /**
+         * @return the hash of the uncompressed content in hex
+         */
+        String getEtag() {
+            return etag;
+        }
+
+        long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * @return the gzip compressed page, which is shared so must not be modified
+         */
+        Buffer getGzipContent() {
+            return gzipContent;
+        }
+    }
+}
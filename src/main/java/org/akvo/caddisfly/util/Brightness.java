@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) Stichting Akvo (Akvo Foundation)
+ *
+ * This file is part of Akvo Caddisfly
+ *
+ * Akvo Caddisfly is free software: you can redistribute it and modify it under the terms of
+ * the GNU Affero General Public License (AGPL) as published by the Free Software Foundation,
+ * either version 3 of the License or any later version.
+ *
+ * Akvo Caddisfly is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License included below for more details.
+ *
+ * The full license text can also be seen at <http://www.gnu.org/licenses/agpl.html>.
+ */
+
+package org.akvo.caddisfly.util;
+
+/**
+ * The brightness of colors, sqrt(0.241 r^2 + 0.691 g^2 + 0.068 b^2) truncated to an int
+ * <p>
+ * The weighted squares of each channel are looked up from tables holding exactly the products
+ * the formula computes, so the brightness is identical to computing it. Comparing with a
+ * brightness needs no square root: each brightness has the smallest weighted sum whose square
+ * root reaches it, found by stepping down from the square of the brightness while the square
+ * root still rounds up to it.
+ */
+public final class Brightness {
+
+    /**
+     * The highest brightness, of white, as the weights add up to 1
+     */
+    public static final int MAX_BRIGHTNESS = 255;
+
+    private static final double[] RED_SQUARED = new double[256];
+    private static final double[] GREEN_SQUARED = new double[256];
+    private static final double[] BLUE_SQUARED = new double[256];
+
+    /**
+     * The smallest weighted sum with at least the brightness of the index, up to one above the highest
+     */
+    private static final double[] MIN_SUMS = new double[MAX_BRIGHTNESS + 2];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            RED_SQUARED[i] = i * i * .241;
+            GREEN_SQUARED[i] = i * i * .691;
+            BLUE_SQUARED[i] = i * i * .068;
+        }
+        for (int brightness = 0; brightness < MIN_SUMS.length; brightness++) {
+            double sum = (double) brightness * brightness;
+            while (sum > 0 && Math.sqrt(Math.nextDown(sum)) >= brightness) {
+                sum = Math.nextDown(sum);
+            }
+            MIN_SUMS[brightness] = sum;
+        }
+    }
+
+    private Brightness() {
+    }
+
+    private static double getWeightedSum(int color) {
+        return RED_SQUARED[(color >> 16) & 0xFF] + GREEN_SQUARED[(color >> 8) & 0xFF]
+                + BLUE_SQUARED[color & 0xFF];
+    }
+
+    /**
+     * Get the brightness of a color
+     *
+     * @param color the color
+     * @return the brightness from 0 to {@link #MAX_BRIGHTNESS}
+     */
+    public static int get(int color) {
+        return (int) Math.sqrt(getWeightedSum(color));
+    }
+
+    /**
+     * Get the brightness of a range of colors
+     *
+     * @param colors     the colors
+     * @param offset     the index of the first color
+     * @param length     the number of colors
+     * @param brightness receives the brightness of each color
+     * @param index      the index in brightness of the first color's brightness
+     */
+    public static void get(int[] colors, int offset, int length, int[] brightness, int index) {
+        for (int i = 0; i < length; i++) {
+            brightness[index + i] = (int) Math.sqrt(getWeightedSum(colors[offset + i]));
+        }
+    }
+
+    /**
+     * Check if a color is brighter than a brightness, which is get(color) &gt; threshold
+     *
+     * @param color     the color
+     * @param threshold the brightness to compare with
+     * @return true if the color is brighter
+     */
+    public static boolean isBrighter(int color, int threshold) {
+        return getWeightedSum(color) >= getMinSum(threshold + 1);
+    }
+
+    /**
+     * Mark the colors of a range that are brighter than a brightness
+     *
+     * @param colors    the colors
+     * @param offset    the index of the first color
+     * @param length    the number of colors
+     * @param threshold the brightness to compare with
+     * @param bright    receives true for each color that is brighter, false for the others
+     * @param index     the index in bright of the first color's mark
+     * @return the number of colors that are brighter
+     */
+    public static int threshold(int[] colors, int offset, int length, int threshold, boolean[] bright, int index) {
+        double minSum = getMinSum(threshold + 1);
+        int count = 0;
+        for (int i = 0; i < length; i++) {
+            boolean isBright = getWeightedSum(colors[offset + i]) >= minSum;
+            bright[index + i] = isBright;
+            if (isBright) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static double getMinSum(int brightness) {
+        if (brightness <= 0) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        if (brightness > MAX_BRIGHTNESS) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return MIN_SUMS[brightness];
+    }
+}
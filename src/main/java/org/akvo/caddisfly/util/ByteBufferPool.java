@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) Stichting Akvo (Akvo Foundation)
+ *
+ * This file is part of Akvo Caddisfly
+ *
+ * Akvo Caddisfly is free software: you can redistribute it and modify it under the terms of
+ * the GNU Affero General Public License (AGPL) as published by the Free Software Foundation,
+ * either version 3 of the License or any later version.
+ *
+ * Akvo Caddisfly is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License included below for more details.
+ *
+ * The full license text can also be seen at <http://www.gnu.org/licenses/agpl.html>.
+ */
+
+package org.akvo.caddisfly.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed number of direct byte buffers of the same size that are reused
+ * <p>
+ * Buffers are allocated as they are first needed. Once all of them are in use
+ * {@link #acquire()} waits until one is released, which bounds the memory used by readers
+ * that run ahead of the code consuming the buffers.
+ */
+public final class ByteBufferPool {
+
+    private final ArrayBlockingQueue<ByteBuffer> buffers;
+    private final AtomicInteger allocated = new AtomicInteger();
+    private final int bufferCount;
+    private final int bufferSize;
+
+    /**
+     * @param bufferCount the most buffers that can be in use at once
+     * @param bufferSize  the capacity of each buffer in bytes
+     */
+    public ByteBufferPool(int bufferCount, int bufferSize) {
+        if (bufferCount <= 0 || bufferSize <= 0) {
+            throw new IllegalArgumentException("Buffer count and size must be positive");
+        }
+        this.bufferCount = bufferCount;
+        this.bufferSize = bufferSize;
+        buffers = new ArrayBlockingQueue<>(bufferCount);
+    }
+
+    /**
+     * Take a cleared buffer from the pool, waiting if all the buffers are in use
+     *
+     * @return the buffer
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public ByteBuffer acquire() throws InterruptedException {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            int count;
+            while ((count = allocated.get()) < bufferCount) {
+                if (allocated.compareAndSet(count, count + 1)) {
+                    return ByteBuffer.allocateDirect(bufferSize);
+                }
+            }
+            buffer = buffers.take();
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Return a buffer taken from this pool
+     *
+     * @param buffer the buffer
+     */
+    public void release(ByteBuffer buffer) {
+        buffers.offer(buffer);
+    }
+
+    public int getBufferCount() {
+        return bufferCount;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+}
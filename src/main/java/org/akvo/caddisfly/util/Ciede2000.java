@@ -0,0 +1,376 @@
+/*
+ *  Copyright (C) Stichting Akvo (Akvo Foundation)
+ *
+ *  This file is part of Akvo Caddisfly
+ *
+ *  Akvo Caddisfly is free software: you can redistribute it and modify it under the terms of
+ *  the GNU Affero General Public License (AGPL) as published by the Free Software Foundation,
+ *  either version 3 of the License or any later version.
+ *
+ *  Akvo Caddisfly is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *  See the GNU Affero General Public License included below for more details.
+ *
+ *  The full license text can also be seen at <http://www.gnu.org/licenses/agpl.html>.
+ */
+
+package org.akvo.caddisfly.util;
+
+import org.akvo.caddisfly.model.LabColor;
+
+/**
+ * CIEDE2000 color difference on colors whose per color terms have been computed up front
+ * <p>
+ * The terms of a color are stored as {@link #STRIDE} consecutive doubles: L, a, b and the
+ * chroma C*ab. Powers are multiplication chains, hues are handled as unit vectors so the hue
+ * difference needs no trigonometry, and the four cosines of the hue weighting are derived
+ * from the mean hue vector. The mean hue angle for the blue region rotation term comes from
+ * a pure Java arc tangent.
+ */
+public final class Ciede2000 {
+
+    /**
+     * The number of doubles per color in a terms array
+     */
+    public static final int STRIDE = 4;
+
+    /**
+     * The square of the largest lightness weighting S_L (1.747 for L between 0 and 100), rounded up
+     */
+    private static final double MAX_LIGHTNESS_WEIGHT_SQUARED = 1.75 * 1.75;
+
+    /**
+     * A lower bound of 1 - |R_T| / 2, as |R_T| is at most 2 * sin(60)
+     */
+    private static final double MIN_ROTATION_FACTOR = 0.13;
+
+    private static final double POW_25_7 = 6103515625.0; // 25^7
+    private static final double TWO_PI = 2 * Math.PI;
+    private static final double COS_30 = Math.cos(Math.PI / 6);
+    private static final double SIN_30 = Math.sin(Math.PI / 6);
+    private static final double COS_6 = Math.cos(Math.PI / 30);
+    private static final double SIN_6 = Math.sin(Math.PI / 30);
+    private static final double COS_63 = Math.cos(63 * Math.PI / 180);
+    private static final double SIN_63 = Math.sin(63 * Math.PI / 180);
+    private static final double RAD_30 = 30 * Math.PI / 180;
+    private static final double DEGREES = 180 / Math.PI;
+
+    private static final double[] ATAN_HI = {
+            4.63647609000806093515e-01, // atan(0.5)hi
+            7.85398163397448278999e-01, // atan(1.0)hi
+            9.82793723247329054082e-01, // atan(1.5)hi
+            1.57079632679489655800e+00  // atan(inf)hi
+    };
+    private static final double[] ATAN_LO = {
+            2.26987774529616870924e-17, // atan(0.5)lo
+            3.06161699786838301793e-17, // atan(1.0)lo
+            1.39033110312309984516e-17, // atan(1.5)lo
+            6.12323399573676603587e-17  // atan(inf)lo
+    };
+    private static final double[] AT = {
+            3.33333333333329318027e-01,
+            -1.99999999998764832476e-01,
+            1.42857142725034663711e-01,
+            -1.11111104054623557880e-01,
+            9.09088713343650656196e-02,
+            -7.69187620504482999495e-02,
+            6.66107313738753120669e-02,
+            -5.83357013379057348645e-02,
+            4.97687799461593236017e-02,
+            -3.65315727442169155270e-02,
+            1.62858201153657823623e-02
+    };
+
+    private Ciede2000() {
+    }
+
+    /**
+     * Compute the terms of a Lab color
+     *
+     * @param color  the Lab color
+     * @param terms  the array to write the terms to
+     * @param offset the index in the array of the first term
+     */
+    public static void computeTerms(LabColor color, double[] terms, int offset) {
+        computeTerms(color.L, color.a, color.b, terms, offset);
+    }
+
+    /**
+     * Compute the terms of a Lab color
+     *
+     * @param l      the lightness
+     * @param a      the a component
+     * @param b      the b component
+     * @param terms  the array to write the terms to
+     * @param offset the index in the array of the first term
+     */
+    public static void computeTerms(double l, double a, double b, double[] terms, int offset) {
+        terms[offset] = l;
+        terms[offset + 1] = a;
+        terms[offset + 2] = b;
+        terms[offset + 3] = Math.sqrt(a * a + b * b);
+    }
+
+    /**
+     * Compute the terms of a list of colors
+     *
+     * @param colors the int colors
+     * @return the terms, {@link #STRIDE} doubles per color
+     */
+    public static double[] computeTerms(int[] colors) {
+        double[] terms = new double[colors.length * STRIDE];
+        for (int i = 0, offset = 0; i < colors.length; i++, offset += STRIDE) {
+            ColorUtil.colorToLab(colors[i], terms, offset);
+            computeTerms(terms[offset], terms[offset + 1], terms[offset + 2], terms, offset);
+        }
+        return terms;
+    }
+
+    /**
+     * Computes the CIEDE2000 difference between two colors
+     *
+     * @param terms1  the terms holding the first color
+     * @param offset1 the index of the first color's terms
+     * @param terms2  the terms holding the second color
+     * @param offset2 the index of the second color's terms
+     * @return the color difference
+     */
+    public static double distance(double[] terms1, int offset1, double[] terms2, int offset2) {
+        // adapted from Sharma et al's MATLAB implementation at
+        //  http://www.ece.rochester.edu/~gsharma/ciede2000/
+        double l1 = terms1[offset1], a1 = terms1[offset1 + 1], b1 = terms1[offset1 + 2];
+        double l2 = terms2[offset2], a2 = terms2[offset2 + 1], b2 = terms2[offset2 + 2];
+
+        double cab = 0.5 * (terms1[offset1 + 3] + terms2[offset2 + 3]);
+        double cab7 = pow7(cab);
+        double g = 0.5 * (1 - Math.sqrt(cab7 / (cab7 + POW_25_7)));
+        double ap1 = (1 + g) * a1;
+        double ap2 = (1 + g) * a2;
+        double cp1 = Math.sqrt(ap1 * ap1 + b1 * b1);
+        double cp2 = Math.sqrt(ap2 * ap2 + b2 * b2);
+        double cpp = cp1 * cp2;
+
+        double dL = l2 - l1;
+        double dC = cp2 - cp1;
+        double dH;
+        double cosHp;
+        double sinHp;
+
+        if (cpp == 0) {
+            // one of the colors has no hue, the mean hue is the hue of the other color
+            dH = 0;
+            double hp = Math.atan2(b1, ap1) + Math.atan2(b2, ap2);
+            cosHp = Math.cos(hp);
+            sinHp = Math.sin(hp);
+        } else {
+            // work with the hue angles as unit vectors, the hue difference dhp is in [-pi, pi]
+            double cross = ap1 * b2 - b1 * ap2;
+            double dot = ap1 * ap2 + b1 * b2;
+            double sign = cross < 0 ? -1 : 1;
+
+            // cpp - dot and cpp + dot, the smaller one through cpp^2 = dot^2 + cross^2 to avoid cancellation
+            double minus;
+            double plus;
+            if (dot > 0) {
+                plus = cpp + dot;
+                minus = cross * cross / plus;
+            } else {
+                minus = cpp - dot;
+                plus = cross * cross / minus;
+            }
+
+            // dH = 2 * sqrt(cpp) * sin(dhp / 2)
+            dH = sign * Math.sqrt(2 * minus);
+
+            // the mean hue is the hue of the first color rotated by dhp / 2
+            double cosHalf = Math.sqrt(plus / (2 * cpp));
+            double sinHalf = sign * Math.sqrt(minus / (2 * cpp));
+            double cos1 = ap1 / cp1;
+            double sin1 = b1 / cp1;
+            cosHp = cos1 * cosHalf - sin1 * sinHalf;
+            sinHp = sin1 * cosHalf + cos1 * sinHalf;
+        }
+
+        double lp = 0.5 * (l1 + l2);
+        double cp = 0.5 * (cp1 + cp2);
+
+        // ensure the mean hue is between 0 and 2pi
+        double hp = hueAngle(sinHp, cosHp);
+
+        // cos(hp - 30), cos(2hp), cos(3hp + 6) and cos(4hp - 63) from the multiple angle identities
+        double cos1 = cosHp;
+        double sin1 = sinHp;
+        double cos2 = 2 * cos1 * cos1 - 1;
+        double sin2 = 2 * sin1 * cos1;
+        double cos3 = cos1 * (2 * cos2 - 1);
+        double sin3 = sin1 * (2 * cos2 + 1);
+        double cos4 = 2 * cos2 * cos2 - 1;
+        double sin4 = 2 * sin2 * cos2;
+
+        double t = 1 - 0.17 * (cos1 * COS_30 + sin1 * SIN_30)
+                + 0.24 * cos2
+                + 0.32 * (cos3 * COS_6 - sin3 * SIN_6)
+                - 0.20 * (cos4 * COS_63 + sin4 * SIN_63);
+
+        double lpm502 = (lp - 50) * (lp - 50);
+        double sl = 1 + 0.015 * lpm502 / Math.sqrt(20 + lpm502);
+        double sc = 1 + 0.045 * cp;
+        double sh = 1 + 0.015 * cp * t;
+        double ex = (DEGREES * hp - 275) / 25;
+        double deltaThetaRad = RAD_30 * Math.exp(-(ex * ex));
+        double cp7 = pow7(cp);
+        double rc = 2 * Math.sqrt(cp7 / (cp7 + POW_25_7));
+        double rt = -Math.sin(2 * deltaThetaRad) * rc;
+
+        dL = dL / sl;
+        dC = dC / sc;
+        dH = dH / sh;
+
+        return Math.sqrt(dL * dL + dC * dC + dH * dH + rt * dC * dH);
+    }
+
+    /**
+     * A lower bound of the squared CIEDE2000 difference that is cheap to compute
+     * <p>
+     * The chroma and hue differences are at least the a, b difference (the a axis is only ever
+     * stretched) divided by S_C, which bounds S_H from above and is at most 1 + 0.045 * 1.5 * the
+     * mean chroma. The rotation term can take away at most 1 - MIN_ROTATION_FACTOR of them.
+     */
+    private static double lowerBoundSquared(double[] terms1, int offset1, double[] terms2, int offset2) {
+        double dL = terms2[offset2] - terms1[offset1];
+        double da = terms2[offset2 + 1] - terms1[offset1 + 1];
+        double db = terms2[offset2 + 2] - terms1[offset1 + 2];
+        double sc = 1 + 0.0675 * 0.5 * (terms1[offset1 + 3] + terms2[offset2 + 3]);
+
+        return dL * dL / MAX_LIGHTNESS_WEIGHT_SQUARED + MIN_ROTATION_FACTOR * (da * da + db * db) / (sc * sc);
+    }
+
+    /**
+     * Find the color nearest to a color, returning the lowest index when several are equally near
+     * <p>
+     * The color nearest in the Euclidean Lab distance is measured first. Its CIEDE2000 difference
+     * then rejects the colors whose lower bound is already further away without computing their
+     * full difference.
+     *
+     * @param query       the terms holding the color to find
+     * @param queryOffset the index of the color's terms
+     * @param terms       the terms of the colors to search
+     * @param limit       only colors at an index lower than this are considered
+     * @return the index of the nearest color or -1 if there are no colors to search
+     */
+    public static int nearest(double[] query, int queryOffset, double[] terms, int limit) {
+        int count = Math.min(limit, terms.length / STRIDE);
+        if (count <= 0) {
+            return -1;
+        }
+
+        double l = query[queryOffset];
+        double a = query[queryOffset + 1];
+        double b = query[queryOffset + 2];
+
+        int seed = 0;
+        double seedDistance = Double.MAX_VALUE;
+        for (int i = 0, offset = 0; i < count; i++, offset += STRIDE) {
+            double dL = terms[offset] - l;
+            double da = terms[offset + 1] - a;
+            double db = terms[offset + 2] - b;
+            double distance = dL * dL + da * da + db * db;
+            if (distance < seedDistance) {
+                seedDistance = distance;
+                seed = i;
+            }
+        }
+
+        double bound = distance(terms, seed * STRIDE, query, queryOffset);
+        double boundSquared = bound * bound;
+
+        int nearest = -1;
+        double nearestDistance = Double.MAX_VALUE;
+        int evaluated = 1;
+        for (int i = 0, offset = 0; i < count; i++, offset += STRIDE) {
+            if (lowerBoundSquared(terms, offset, query, queryOffset) > boundSquared) {
+                continue;
+            }
+            evaluated++;
+
+            double distance = distance(terms, offset, query, queryOffset);
+            if (distance < nearestDistance) {
+                nearestDistance = distance;
+                nearest = i;
+                if (distance < bound) {
+                    bound = distance;
+                    boundSquared = distance * distance;
+                }
+            }
+        }
+        if (Metrics.ENABLED) {
+            Metrics.COLOR_DISTANCES.add(evaluated);
+        }
+        return nearest;
+    }
+
+    /**
+     * The angle of a hue vector in the range 0 to 2pi
+     */
+    private static double hueAngle(double y, double x) {
+        double angle;
+        if (x > 0) {
+            angle = atan(y / x);
+        } else if (x < 0) {
+            angle = atan(y / x) + Math.PI;
+        } else {
+            angle = y < 0 ? -0.5 * Math.PI : 0.5 * Math.PI;
+        }
+        return angle < 0 ? angle + TWO_PI : angle;
+    }
+
+    /**
+     * Arc tangent ported from fdlibm s_atan.c, accurate to within one ulp. Math.atan and
+     * Math.atan2 go through a native call which costs more than the rest of the difference
+     */
+    private static double atan(double x) {
+        boolean negative = x < 0;
+        double ax = Math.abs(x);
+        int id;
+
+        if (ax >= 7.378697629483821e19) { // 2^66
+            return negative ? -ATAN_HI[3] - ATAN_LO[3] : ATAN_HI[3] + ATAN_LO[3];
+        }
+        if (ax < 0.4375) {
+            if (ax < 1.862645149230957e-9) { // 2^-29
+                return x;
+            }
+            id = -1;
+            ax = x;
+        } else if (ax < 1.1875) {
+            if (ax < 0.6875) {
+                id = 0;
+                ax = (2.0 * ax - 1.0) / (2.0 + ax);
+            } else {
+                id = 1;
+                ax = (ax - 1.0) / (ax + 1.0);
+            }
+        } else if (ax < 2.4375) {
+            id = 2;
+            ax = (ax - 1.5) / (1.0 + 1.5 * ax);
+        } else {
+            id = 3;
+            ax = -1.0 / ax;
+        }
+
+        double z = ax * ax;
+        double w = z * z;
+        double s1 = z * (AT[0] + w * (AT[2] + w * (AT[4] + w * (AT[6] + w * (AT[8] + w * AT[10])))));
+        double s2 = w * (AT[1] + w * (AT[3] + w * (AT[5] + w * (AT[7] + w * AT[9]))));
+        if (id < 0) {
+            return ax - ax * (s1 + s2);
+        }
+        z = ATAN_HI[id] - ((ax * (s1 + s2) - ATAN_LO[id]) - ax);
+        return negative ? -z : z;
+    }
+
+    private static double pow7(double x) {
+        double x2 = x * x;
+        return x2 * x2 * x2 * x;
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) Stichting Akvo (Akvo Foundation)
+ *
+ * This file is part of Akvo Caddisfly
+ *
+ * Akvo Caddisfly is free software: you can redistribute it and modify it under the terms of
+ * the GNU Affero General Public License (AGPL) as published by the Free Software Foundation,
+ * either version 3 of the License or any later version.
+ *
+ * Akvo Caddisfly is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License included below for more details.
+ *
+ * The full license text can also be seen at <http://www.gnu.org/licenses/agpl.html>.
+ */
+
+package org.akvo.caddisfly.util;
+
+import org.akvo.caddisfly.model.CircleResult;
+
+import java.awt.BasicStroke;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Finds the bright circle around a point of a photo
+ * <p>
+ * The pixels brighter than the threshold are found with integer arithmetic in one pass over the
+ * searched area and kept as runs along each row. Runs that touch a run in the row above are joined
+ * into regions. The region at the starting point, or the largest region if the starting point is
+ * dark, is the circle. Its center is the centroid of its pixels and its radius that of a circle of
+ * the same area, all measured from the runs so the cost beyond reading the pixels is per run
+ * rather than per pixel.
+ */
+public final class CircleDetector {
+
+    private static final int OVERLAY_COLOR = 0xFF00FF;
+
+    private CircleDetector() {
+    }
+
+    /**
+     * Find the circle in the whole image
+     *
+     * @param pixels        the image
+     * @param minBrightness the brightness a pixel must exceed to be part of the circle
+     * @return the largest bright region, null if there are no bright pixels
+     */
+    public static CircleResult detect(PixelReader pixels, int minBrightness) {
+        return detect(pixels, new Rectangle(pixels.getMinX(), pixels.getMinY(),
+                pixels.getWidth(), pixels.getHeight()), null, minBrightness);
+    }
+
+    /**
+     * Find the circle at a point, searching the square around it that a circle of the radius centered
+     * on the point would fit in
+     *
+     * @param pixels the image
+     * @param row    the row of the point
+     * @param col    the column of the point
+     * @param r      the largest radius of the circle
+     * @return the bright region at the point, or the largest one around it if the point is dark,
+     * null if there are no bright pixels around the point
+     */
+    public static CircleResult detect(PixelReader pixels, int row, int col, int r) {
+        return detect(pixels, row, col, r, ColorUtil.minBrightness);
+    }
+
+    /**
+     * Find the circle at a point, searching the square around it that a circle of the radius centered
+     * on the point would fit in
+     *
+     * @param pixels        the image
+     * @param row           the row of the point
+     * @param col           the column of the point
+     * @param r             the largest radius of the circle
+     * @param minBrightness the brightness a pixel must exceed to be part of the circle
+     * @return the bright region at the point, or the largest one around it if the point is dark,
+     * null if there are no bright pixels around the point
+     */
+    public static CircleResult detect(PixelReader pixels, int row, int col, int r, int minBrightness) {
+        Rectangle region = new Rectangle(col - r, row - r, 2 * r + 1, 2 * r + 1).intersection(
+                new Rectangle(pixels.getMinX(), pixels.getMinY(), pixels.getWidth(), pixels.getHeight()));
+        if (region.isEmpty()) {
+            return null;
+        }
+        return detect(pixels, region, new Point(col, row), minBrightness);
+    }
+
+    private static CircleResult detect(PixelReader pixels, Rectangle region, Point start, int minBrightness) {
+        Runs runs = findRuns(pixels, region, minBrightness);
+        int count = runs.count;
+        if (count == 0) {
+            return null;
+        }
+
+        // join the runs that touch a run of the row above into regions
+        int[] parent = new int[count];
+        for (int i = 0; i < count; i++) {
+            parent[i] = i;
+        }
+        for (int y = 1; y < region.height; y++) {
+            int above = runs.rowStarts[y - 1];
+            int run = runs.rowStarts[y];
+            while (above < runs.rowStarts[y] && run < runs.rowStarts[y + 1]) {
+                if (runs.starts[above] <= runs.ends[run] && runs.starts[run] <= runs.ends[above]) {
+                    union(parent, above, run);
+                }
+                // move on from the run that ends first, it can not touch any further run
+                if (runs.ends[above] < runs.ends[run]) {
+                    above++;
+                } else {
+                    run++;
+                }
+            }
+        }
+
+        int[] areas = new int[count];
+        for (int i = 0; i < count; i++) {
+            areas[find(parent, i)] += runs.ends[i] - runs.starts[i] + 1;
+        }
+
+        int root = -1;
+        if (start != null && region.contains(start)) {
+            int y = start.y - region.y;
+            int x = start.x - region.x;
+            for (int i = runs.rowStarts[y]; i < runs.rowStarts[y + 1]; i++) {
+                if (runs.starts[i] <= x && x <= runs.ends[i]) {
+                    root = find(parent, i);
+                }
+            }
+        }
+        if (root < 0) {
+            // the largest region, the one reached first when several are as large
+            for (int i = 0; i < count; i++) {
+                int candidate = find(parent, i);
+                if (root < 0 || areas[candidate] > areas[root]) {
+                    root = candidate;
+                }
+            }
+        }
+
+        long sumX = 0;
+        long sumY = 0;
+        int left = region.width;
+        int top = region.height;
+        int right = -1;
+        int bottom = -1;
+        for (int y = 0; y < region.height; y++) {
+            for (int i = runs.rowStarts[y]; i < runs.rowStarts[y + 1]; i++) {
+                if (find(parent, i) == root) {
+                    int first = runs.starts[i];
+                    int last = runs.ends[i];
+                    int length = last - first + 1;
+                    sumX += (long) (first + last) * length / 2;
+                    sumY += (long) y * length;
+                    left = Math.min(left, first);
+                    right = Math.max(right, last);
+                    top = Math.min(top, y);
+                    bottom = y;
+                }
+            }
+        }
+
+        int area = areas[root];
+        boolean clipped = left == 0 || top == 0 || right == region.width - 1 || bottom == region.height - 1;
+        return new CircleResult(region.x + (double) sumX / area, region.y + (double) sumY / area, area,
+                new Rectangle(region.x + left, region.y + top, right - left + 1, bottom - top + 1), clipped);
+    }
+
+    /**
+     * Find the runs of pixels brighter than the threshold in each row of the region
+     */
+    private static Runs findRuns(PixelReader pixels, Rectangle region, int minBrightness) {
+        Runs runs = new Runs(region.height);
+        int[] row = new int[region.width];
+        boolean[] bright = new boolean[region.width];
+        for (int y = 0; y < region.height; y++) {
+            runs.rowStarts[y] = runs.count;
+            pixels.getPixels(region.x, region.y + y, 1, 0, row.length, row, 0);
+            Brightness.threshold(row, 0, row.length, minBrightness, bright, 0);
+            int first = -1;
+            for (int x = 0; x < row.length; x++) {
+                if (bright[x]) {
+                    if (first < 0) {
+                        first = x;
+                    }
+                } else if (first >= 0) {
+                    runs.add(first, x - 1);
+                    first = -1;
+                }
+            }
+            if (first >= 0) {
+                runs.add(first, row.length - 1);
+            }
+        }
+        runs.rowStarts[region.height] = runs.count;
+        return runs;
+    }
+
+    private static int find(int[] parent, int run) {
+        while (parent[run] != run) {
+            parent[run] = parent[parent[run]];
+            run = parent[run];
+        }
+        return run;
+    }
+
+    private static void union(int[] parent, int run1, int run2) {
+        int root1 = find(parent, run1);
+        int root2 = find(parent, run2);
+        // the lower run is the root so a region is named after the run reached first
+        if (root1 < root2) {
+            parent[root2] = root1;
+        } else if (root2 < root1) {
+            parent[root1] = root2;
+        }
+    }
+
+    /**
+     * The runs of bright pixels in row order, each from its start to its end column inclusive
+     */
+    private static final class Runs {
+        private final int[] rowStarts;
+        private int[] starts = new int[64];
+        private int[] ends = new int[64];
+        private int count;
+
+        Runs(int height) {
+            rowStarts = new int[height + 1];
+        }
+
+        void add(int start, int end) {
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+            }
+            starts[count] = start;
+            ends[count] = end;
+            count++;
+        }
+    }
+
+    /**
+     * Draw the found circle over a copy of the searched area of the photo, to check the detection
+     *
+     * @param pixels the image
+     * @param circle the circle found in the image
+     * @param region the area to draw
+     * @return the picture of the area with the circle's outline and center marked
+     */
+    public static BufferedImage drawOverlay(PixelReader pixels, CircleResult circle, Rectangle region) {
+        BufferedImage image = new BufferedImage(region.width, region.height, BufferedImage.TYPE_INT_RGB);
+        int[] row = new int[region.width];
+        for (int y = 0; y < region.height; y++) {
+            pixels.getPixels(region.x, region.y + y, 1, 0, row.length, row, 0);
+            image.setRGB(0, y, row.length, 1, row, 0, row.length);
+        }
+
+        Graphics2D graphics = image.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            graphics.setColor(new java.awt.Color(OVERLAY_COLOR));
+            graphics.setStroke(new BasicStroke(2));
+            double x = circle.getCenterX() - region.x;
+            double y = circle.getCenterY() - region.y;
+            double radius = circle.getRadius();
+            graphics.draw(new Ellipse2D.Double(x - radius, y - radius, 2 * radius, 2 * radius));
+            graphics.draw(new Line2D.Double(x - 5, y, x + 5, y));
+            graphics.draw(new Line2D.Double(x, y - 5, x, y + 5));
+        } finally {
+            graphics.dispose();
+        }
+        return image;
+    }
+}
@@ -30,20 +30,65 @@ public class Color extends java.awt.Color {
         super(r, g, b, a);
     }
 
+    public static int alpha(int color) {
+        return color >>> 24;
+    }
+
     public static int red(int color) {
-        return new Color(color).getRed();
+        return (color >> 16) & 0xFF;
     }
 
     public static int blue(int color) {
-        return new Color(color).getBlue();
+        return color & 0xFF;
     }
 
     public static int green(int color) {
-        return new Color(color).getGreen();
+        return (color >> 8) & 0xFF;
     }
 
     public static int rgb(int r, int g, int b) {
-        return new Color(r, g, b).getRGB();
+        return argb(255, r, g, b);
+    }
+
+    /**
+     * Pack the color components into an int color
+     *
+     * @param a the alpha component (0-255)
+     * @param r the red component (0-255)
+     * @param g the green component (0-255)
+     * @param b the blue component (0-255)
+     * @return the packed ARGB color
+     */
+    public static int argb(int a, int r, int g, int b) {
+        if (((a | r | g | b) & ~0xFF) != 0) {
+            throw new IllegalArgumentException("Color parameter outside of expected range:"
+                    + outOfRange(a, " Alpha") + outOfRange(r, " Red")
+                    + outOfRange(g, " Green") + outOfRange(b, " Blue"));
+        }
+        return (a << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    private static String outOfRange(int component, String name) {
+        return (component & ~0xFF) != 0 ? name : "";
+    }
+
+    /**
+     * Unpack the channels of a range of colors into separate arrays
+     *
+     * @param colors the packed colors
+     * @param offset the index of the first color to unpack
+     * @param length the number of colors to unpack
+     * @param red    receives the red components starting at index 0
+     * @param green  receives the green components starting at index 0
+     * @param blue   receives the blue components starting at index 0
+     */
+    public static void unpack(int[] colors, int offset, int length, int[] red, int[] green, int[] blue) {
+        for (int i = 0; i < length; i++) {
+            int color = colors[offset + i];
+            red[i] = (color >> 16) & 0xFF;
+            green[i] = (color >> 8) & 0xFF;
+            blue[i] = color & 0xFF;
+        }
     }
 
     public static void RGBToHSV(int red, int green, int blue, float[] hsvColor) {
@@ -0,0 +1,245 @@
+/*
+ *  Copyright (C) Stichting Akvo (Akvo Foundation)
+ *
+ *  This file is part of Akvo Caddisfly
+ *
+ *  Akvo Caddisfly is free software: you can redistribute it and modify it under the terms of
+ *  the GNU Affero General Public License (AGPL) as published by the Free Software Foundation,
+ *  either version 3 of the License or any later version.
+ *
+ *  Akvo Caddisfly is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *  See the GNU Affero General Public License included below for more details.
+ *
+ *  The full license text can also be seen at <http://www.gnu.org/licenses/agpl.html>.
+ */
+
+package org.akvo.caddisfly.util;
+
+import java.util.Arrays;
+
+/**
+ * A k-d tree over a list of colors for nearest neighbour lookup by Euclidean RGB distance
+ * <p>
+ * The tree is stored implicitly in arrays: the node for the range [lo, hi) sits at the middle
+ * index with the lower half of the range as its left subtree and the upper half as its right.
+ * Ties are resolved to the lowest index in the original list so the result is the same as a
+ * linear scan that keeps the first nearest color.
+ */
+public final class ColorKdTree {
+
+    private final int[] indexes;
+    private final int[][] channels;
+    private final byte[] axes;
+
+    /**
+     * Build the tree
+     *
+     * @param colors the colors to index, a lookup returns an index into this array
+     */
+    public ColorKdTree(int[] colors) {
+        // gradients repeat colors a lot, only the first occurrence of each color can be a match
+        long[] keys = new long[colors.length];
+        for (int i = 0; i < colors.length; i++) {
+            keys[i] = ((long) (colors[i] & 0xFFFFFF) << 32) | i;
+        }
+        Arrays.sort(keys);
+
+        int size = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (i == 0 || (keys[i] >>> 32) != (keys[i - 1] >>> 32)) {
+                keys[size++] = keys[i];
+            }
+        }
+
+        indexes = new int[size];
+        channels = new int[3][size];
+        axes = new byte[size];
+
+        for (int i = 0; i < size; i++) {
+            int color = (int) (keys[i] >>> 32);
+            indexes[i] = (int) keys[i];
+            channels[0][i] = Color.red(color);
+            channels[1][i] = Color.green(color);
+            channels[2][i] = Color.blue(color);
+        }
+
+        build(0, size);
+    }
+
+    /**
+     * The number of distinct colors in the tree
+     *
+     * @return the number of distinct colors
+     */
+    public int size() {
+        return indexes.length;
+    }
+
+    /**
+     * Find the color nearest to the given color
+     *
+     * @param color the color to find
+     * @return the index of the nearest color or -1 if the tree is empty
+     */
+    public int nearest(int color) {
+        return nearest(color, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Find the color nearest to the given color among the colors before the limit index
+     *
+     * @param color the color to find
+     * @param limit only colors at an index lower than this are considered
+     * @return the index of the nearest color or -1 if there is no color before the limit
+     */
+    public int nearest(int color, int limit) {
+        if (indexes.length == 0 || limit <= 0) {
+            return -1;
+        }
+        Search search = new Search(Color.red(color), Color.green(color), Color.blue(color), limit);
+        search(search, 0, indexes.length);
+        if (Metrics.ENABLED) {
+            Metrics.COLOR_DISTANCES.add(search.visited);
+        }
+        return search.index;
+    }
+
+    private void build(int lo, int hi) {
+        while (hi - lo > 1) {
+            int axis = widestAxis(lo, hi);
+            int mid = (lo + hi) >>> 1;
+            select(channels[axis], lo, hi - 1, mid);
+            axes[mid] = (byte) axis;
+
+            // recurse into the smaller half, loop on the larger one
+            if (mid - lo < hi - mid - 1) {
+                build(lo, mid);
+                lo = mid + 1;
+            } else {
+                build(mid + 1, hi);
+                hi = mid;
+            }
+        }
+    }
+
+    private int widestAxis(int lo, int hi) {
+        int axis = 0;
+        int widest = -1;
+        for (int a = 0; a < 3; a++) {
+            int[] channel = channels[a];
+            int min = 255;
+            int max = 0;
+            for (int i = lo; i < hi; i++) {
+                min = Math.min(min, channel[i]);
+                max = Math.max(max, channel[i]);
+            }
+            if (max - min > widest) {
+                widest = max - min;
+                axis = a;
+            }
+        }
+        return axis;
+    }
+
+    /**
+     * Partially sort the range so that the element at k has no greater values to its left
+     * and no smaller values to its right along the given channel
+     */
+    private void select(int[] channel, int left, int right, int k) {
+        while (right > left) {
+            int pivot = channel[(left + right) >>> 1];
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (channel[i] < pivot) {
+                    i++;
+                }
+                while (channel[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(i, j);
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void swap(int i, int j) {
+        int t = indexes[i];
+        indexes[i] = indexes[j];
+        indexes[j] = t;
+        for (int[] channel : channels) {
+            t = channel[i];
+            channel[i] = channel[j];
+            channel[j] = t;
+        }
+    }
+
+    private void search(Search search, int lo, int hi) {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+
+            int dr = search.red - channels[0][mid];
+            int dg = search.green - channels[1][mid];
+            int db = search.blue - channels[2][mid];
+            int distance = dr * dr + dg * dg + db * db;
+            if (Metrics.ENABLED) {
+                search.visited++;
+            }
+            if (indexes[mid] < search.limit && (distance < search.distance
+                    || (distance == search.distance && indexes[mid] < search.index))) {
+                search.distance = distance;
+                search.index = indexes[mid];
+            }
+
+            if (hi - lo == 1) {
+                return;
+            }
+
+            int axis = axes[mid];
+            int diff = (axis == 0 ? dr : axis == 1 ? dg : db);
+
+            // visit the near side first, the far side only if it can hold an equal or closer color
+            if (diff <= 0) {
+                search(search, lo, mid);
+                if (diff * diff > search.distance) {
+                    return;
+                }
+                lo = mid + 1;
+            } else {
+                search(search, mid + 1, hi);
+                if (diff * diff > search.distance) {
+                    return;
+                }
+                hi = mid;
+            }
+        }
+    }
+
+    private static final class Search {
+        final int red;
+        final int green;
+        final int blue;
+        final int limit;
+        int distance = Integer.MAX_VALUE;
+        int index = -1;
+        int visited;
+
+        Search(int red, int green, int blue, int limit) {
+            this.red = red;
+            this.green = green;
+            this.blue = blue;
+            this.limit = limit;
+        }
+    }
+}
@@ -16,14 +16,14 @@
 
 package org.akvo.caddisfly.util;
 
-import org.akvo.caddisfly.model.HsvColor;
+import org.akvo.caddisfly.model.Gradient;
 import org.akvo.caddisfly.model.LabColor;
 import org.akvo.caddisfly.model.Swatch;
-import org.akvo.caddisfly.model.XyzColor;
+import org.akvo.caddisfly.model.SwatchTable;
 
 import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferByte;
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Set of utility functions for color calculations and analysis
@@ -33,6 +33,16 @@ public final class ColorUtil {
      * The default color model used for analysis
      */
     public static final ColorModel DEFAULT_COLOR_MODEL = ColorModel.RGB;
+
+    /**
+     * The number of colors in an HSV gradient, whatever the increment
+     */
+    public static final int HSV_GRADIENT_STEPS = 200;
+
+    /**
+     * The most colors a gradient may have when generated from swatches sent by a client
+     */
+    public static final int MAX_GRADIENT_SIZE = 100000;
     /**
      * The maximum color distance before the color is considered out of range
      */
@@ -46,6 +56,17 @@ public final class ColorUtil {
     private static final double t3 = 0.008856452; // t1 * t1 * t1;
     private static final int MAX_COLOR_DISTANCE_LAB = 4;
 
+    /**
+     * The linear light value of each 8 bit sRGB channel value
+     */
+    private static final double[] LINEAR_RGB = new double[256];
+
+    static {
+        for (int i = 0; i < LINEAR_RGB.length; i++) {
+            LINEAR_RGB[i] = rgb_xyz(i);
+        }
+    }
+
     /**
      * The minimum color distance at which the colors are considered equivalent
      */
@@ -83,57 +104,30 @@ public final class ColorUtil {
         }
     }
 
-    private static int[][] convertTo2DWithoutUsingGetRGB(BufferedImage image) {
-
-        final byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
-        final int width = image.getWidth();
-        final int height = image.getHeight();
-        final boolean hasAlphaChannel = image.getAlphaRaster() != null;
-
-        int[][] result = new int[height][width];
-        if (hasAlphaChannel) {
-            final int pixelLength = 4;
-            for (int pixel = 0, row = 0, col = 0; pixel < pixels.length; pixel += pixelLength) {
-                int argb = 0;
-                argb += (((int) pixels[pixel] & 0xff) << 24); // alpha
-                argb += ((int) pixels[pixel + 1] & 0xff); // blue
-                argb += (((int) pixels[pixel + 2] & 0xff) << 8); // green
-                argb += (((int) pixels[pixel + 3] & 0xff) << 16); // red
-                result[row][col] = argb;
-                col++;
-                if (col == width) {
-                    col = 0;
-                    row++;
-                }
-            }
-        } else {
-            final int pixelLength = 3;
-            for (int pixel = 0, row = 0, col = 0; pixel < pixels.length; pixel += pixelLength) {
-                int argb = 0;
-                argb += -16777216; // 255 alpha
-                argb += ((int) pixels[pixel] & 0xff); // blue
-                argb += (((int) pixels[pixel + 1] & 0xff) << 8); // green
-                argb += (((int) pixels[pixel + 2] & 0xff) << 16); // red
-                result[row][col] = argb;
-                col++;
-                if (col == width) {
-                    col = 0;
-                    row++;
-                }
-            }
+    /**
+     * The distance above which the colors sampled from a test are too dissimilar
+     *
+     * @return the distance used by areColorsTooDissimilar
+     */
+    public static double getMaxSamplingDistance() {
+        switch (DEFAULT_COLOR_MODEL) {
+            case RGB:
+                return MAX_SAMPLING_COLOR_DISTANCE_RGB;
+            case LAB:
+                return MAX_SAMPLING_COLOR_DISTANCE_LAB;
+            default:
+                return MIN_COLOR_DISTANCE_RGB;
         }
-
-        return result;
     }
 
     static int minBrightness = 75;
-    public static int getRowCenter(int row, int col, int r, int[][] imageArray) {
+    public static int getRowCenter(int row, int col, int r, PixelReader pixels) {
 
         int topLength = 0;
         int bottomLength = 0;
 
         for (int i = row - 1; i >= row - r; i--) {
-            int pixel = imageArray[i][col];
+            int pixel = pixels.getPixel(col, i);
             int brightness = getBrightness(pixel);
             if (brightness > minBrightness) {
                 topLength++;
@@ -143,7 +137,7 @@ public final class ColorUtil {
         }
 
         for (int i = row; i < row + r; i++) {
-            int pixel = imageArray[i][col];
+            int pixel = pixels.getPixel(col, i);
             int brightness = getBrightness(pixel);
             if (brightness > minBrightness) {
                 bottomLength++;
@@ -167,12 +161,12 @@ public final class ColorUtil {
         return row;
     }
 
-    private static int getColumnCenter(int row, int col, int r, int[][] imageArray) {
+    private static int getColumnCenter(int row, int col, int r, PixelReader pixels) {
         int leftLength = 0;
         int rightLength = 0;
 
         for (int i = col - 1; i >= col - r; i--) {
-            int pixel = imageArray[row][i];
+            int pixel = pixels.getPixel(i, row);
             int brightness = getBrightness(pixel);
             if (brightness > minBrightness) {
                 leftLength++;
@@ -182,7 +176,7 @@ public final class ColorUtil {
         }
 
         for (int i = col; i < col + r; i++) {
-            int pixel = imageArray[row][i];
+            int pixel = pixels.getPixel(i, row);
             int brightness = getBrightness(pixel);
             if (brightness > minBrightness) {
                 rightLength++;
@@ -200,21 +194,33 @@ public final class ColorUtil {
         return col;
     }
 
-
+    /**
+     * Walks rays from the point to find the center of the circle, listing the pixels walked in sb
+     *
+     * @deprecated the walk costs the radius times the refinements, use {@link CircleDetector#detect}
+     */
+    @Deprecated
     public static boolean isCenterOfCircle(int row, int col, int r, BufferedImage image, StringBuilder sb) {
-        int[][] imageArray = convertTo2DWithoutUsingGetRGB(image);
+        return isCenterOfCircle(row, col, r, new PixelReader(image), sb);
+    }
+
+    /**
+     * @deprecated use {@link CircleDetector#detect}
+     */
+    @Deprecated
+    public static boolean isCenterOfCircle(int row, int col, int r, PixelReader pixels, StringBuilder sb) {
 
         for (int i = 0; i < 5; i++) {
-            row = getRowCenter(row, col, r, imageArray);
+            row = getRowCenter(row, col, r, pixels);
             if (row == -1){
                 return false;
             }
-            col = getColumnCenter(row, col, r, imageArray);
+            col = getColumnCenter(row, col, r, pixels);
         }
 
         StringBuilder sb1 = new StringBuilder();
         for (int i = row - 1; i >= row - r; i--) {
-            int pixel = imageArray[i][col];
+            int pixel = pixels.getPixel(col, i);
             int brightness = getBrightness(pixel);
             if (brightness > 100) {
                 sb1.insert(0, String.format("<li style=\"background-color:rgb(%s)\">%s  &nbsp;&nbsp;&nbsp;  B: %s</li>",
@@ -229,7 +235,7 @@ public final class ColorUtil {
         sb1.append("<li>" + "1" + "</li>");
 
         for (int i = row; i < row + r; i++) {
-            int pixel = imageArray[i][col];
+            int pixel = pixels.getPixel(col, i);
             int brightness = getBrightness(pixel);
             if (brightness > 100) {
                 sb1.append(String.format("<li style=\"background-color:rgb(%s)\">%s  &nbsp;&nbsp;&nbsp;  B: %s</li>",
@@ -241,7 +247,7 @@ public final class ColorUtil {
             }
         }
 
-        int color = imageArray[row][col];
+        int color = pixels.getPixel(col, row);
 
         sb1.append(String.format("<li style=\"background-color:rgb(%s)\">Result: %s  &nbsp;&nbsp;&nbsp;  B: %s</li>",
                 getColorHexString(color),
@@ -255,16 +261,17 @@ public final class ColorUtil {
 
 
     public static boolean isCenterOfCircle1(int row, int col, int r, BufferedImage image, StringBuilder sb) {
+        return isCenterOfCircle1(row, col, r, new PixelReader(image), sb);
+    }
 
-        //byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+    public static boolean isCenterOfCircle1(int row, int col, int r, PixelReader pixels, StringBuilder sb) {
 
-        int[][] imageArray = convertTo2DWithoutUsingGetRGB(image);
         int topLength = 0;
         int bottomLength = 0;
 
         StringBuilder sb1 = new StringBuilder();
         for (int i = row - 1; i >= row - r; i--) {
-            int pixel = imageArray[i][col];
+            int pixel = pixels.getPixel(col, i);
             int brightness = getBrightness(pixel);
             if (brightness > 100) {
                 topLength++;
@@ -280,7 +287,7 @@ public final class ColorUtil {
         sb1.append("<li>" + topLength + "</li>");
 
         for (int i = row; i < row + r; i++) {
-            int pixel = imageArray[i][col];
+            int pixel = pixels.getPixel(col, i);
             int brightness = getBrightness(pixel);
             if (brightness > 100) {
                 bottomLength++;
@@ -301,10 +308,10 @@ public final class ColorUtil {
 
         if (center > topLength) {
             row = row + (center - topLength);
-            color = imageArray[row + (center - topLength)][col];
+            color = pixels.getPixel(col, row + (center - topLength));
         } else {
             row = row - (topLength - center);
-            color = imageArray[row - (topLength - center)][col];
+            color = pixels.getPixel(col, row - (topLength - center));
         }
 
         sb1.append(String.format("<li style=\"background-color:rgb(%s)\">%s  &nbsp;&nbsp;&nbsp;  B: %s</li>",
@@ -319,7 +326,7 @@ public final class ColorUtil {
         StringBuilder sb2 = new StringBuilder();
 
         for (int i = col - 1; i >= col - r; i--) {
-            int pixel = imageArray[row][i];
+            int pixel = pixels.getPixel(i, row);
             int brightness = getBrightness(pixel);
             if (brightness > 100) {
                 leftLength++;
@@ -335,7 +342,7 @@ public final class ColorUtil {
         sb2.append("<li>" + leftLength + "</li>");
 
         for (int i = col; i < col + r; i++) {
-            int pixel = imageArray[row][i];
+            int pixel = pixels.getPixel(i, row);
             int brightness = getBrightness(pixel);
             if (brightness > 100) {
                 rightLength++;
@@ -353,9 +360,9 @@ public final class ColorUtil {
 
         center = (leftLength + rightLength) / 2;
         if (center > leftLength) {
-            color = imageArray[row + (center - leftLength)][col];
+            color = pixels.getPixel(col, row + (center - leftLength));
         } else {
-            color = imageArray[row - (leftLength - center)][col];
+            color = pixels.getPixel(col, row - (leftLength - center));
         }
 
         sb2.append(String.format("<li style=\"background-color:rgb(%s)\">%s  &nbsp;&nbsp;&nbsp;  B: %s</li>",
@@ -366,10 +373,10 @@ public final class ColorUtil {
         sb.append(sb2);
 
         //getPixels gets the color of the current pixel.
-//        if (imageArray[row][col] == imageArray[row + r][col]
-//                || imageArray[row][col] == imageArray[row - r][col]
-//                || imageArray[row][col] == imageArray[row][col + r]
-//                || imageArray[row][col] == imageArray[row][col - r]) {
+//        if (pixels.getPixel(col, row) == pixels.getPixel(col, row + r)
+//                || pixels.getPixel(col, row) == pixels.getPixel(col, row - r)
+//                || pixels.getPixel(col, row) == pixels.getPixel(col + r, row)
+//                || pixels.getPixel(col, row) == pixels.getPixel(col - r, row)) {
 //            return true;
 //        } else {
 //            return false;
@@ -381,73 +388,6 @@ public final class ColorUtil {
         return String.format("%d,  %d,  %d", Color.red(color), Color.green(color), Color.blue(color));
     }
 
-//    /**
-//     * Get the most common color from the bitmap
-//     *
-//     * @param bitmap       The bitmap from which to extract the color
-//     * @param sampleLength The max length of the image to traverse
-//     * @return The extracted color information
-//     */
-//    public static ColorInfo getColorFromBitmap(BitMap bitmap,
-//                                               @SuppressWarnings("SameParameterValue") int sampleLength) {
-//        int highestCount = 0;
-//        int commonColor = -1;
-//        int counter;
-//
-//        int goodPixelCount = 0;
-//        int totalPixels = 0;
-//        double quality = 0;
-//        int colorsFound;
-//
-//        try {
-//
-//            SparseIntArray m = new SparseIntArray();
-//
-//            for (int i = 0; i < Math.min(bitmap.getWidth(), sampleLength); i++) {
-//
-//                for (int j = 0; j < Math.min(bitmap.getHeight(), sampleLength); j++) {
-//
-//                    int color = bitmap.getPixel(i, j);
-//
-//                    if (color != Color.TRANSPARENT) {
-//                        totalPixels++;
-//
-//                        counter = m.get(color);
-//                        counter++;
-//                        m.put(color, counter);
-//
-//                        if (counter > highestCount) {
-//                            commonColor = color;
-//                            highestCount = counter;
-//                        }
-//                    }
-//                }
-//            }
-//
-//            // check the quality of the photo
-//            colorsFound = m.size();
-//            int goodColors = 0;
-//
-//            for (int i = 0; i < colorsFound; i++) {
-//                if (areColorsSimilar(commonColor, m.keyAt(i))) {
-//                    goodColors++;
-//                    goodPixelCount += m.valueAt(i);
-//                }
-//            }
-//
-//            double quality1 = ((double) goodPixelCount / totalPixels) * 100d;
-//            double quality2 = ((double) (colorsFound - goodColors) / colorsFound) * 100d;
-//            quality = Math.min(quality1, (100 - quality2));
-//
-//            m.clear();
-//
-//        } catch (Exception e) {
-//            e.printStackTrace();
-//        }
-//
-//        return new ColorInfo(commonColor, quality);
-//    }
-
     /**
      * Get the brightness of a given color
      *
@@ -455,14 +395,7 @@ public final class ColorUtil {
      * @return The brightness value
      */
     public static int getBrightness(int color) {
-        int r = Color.red(color);
-        int g = Color.green(color);
-        int b = Color.blue(color);
-
-        return (int) Math.sqrt(r * r * .241 +
-                        g * g * .691 +
-                        b * b * .068
-        );
+        return Brightness.get(color);
     }
 
     /**
@@ -481,6 +414,23 @@ public final class ColorUtil {
         return true;
     }
 
+    /**
+     * Validate the color by looking for missing color in a table of swatches
+     *
+     * @param swatches the range of colors
+     * @return True if calibration is complete
+     */
+    public static boolean isCalibrationComplete(SwatchTable swatches) {
+        for (int i = 0; i < swatches.size(); i++) {
+            int color = swatches.getColor(i);
+            if (color == 0 || color == Color.BLACK) {
+                //Calibration is incomplete
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Computes the Euclidean distance between the two colors
      *
@@ -502,6 +452,15 @@ public final class ColorUtil {
         }
     }
 
+    /**
+     * Checks if getColorDistance is the Euclidean distance in RGB space
+     *
+     * @return true if the distance can be searched with an RGB spatial index
+     */
+    public static boolean isColorDistanceRgb() {
+        return DEFAULT_COLOR_MODEL != ColorModel.LAB;
+    }
+
     /**
      * Computes the Euclidean distance between the two colors
      *
@@ -510,13 +469,22 @@ public final class ColorUtil {
      * @return the distance between the two colors
      */
     private static double getColorDistanceRgb(int color1, int color2) {
-        double r, g, b;
+        return Math.sqrt(getColorDistanceRgbSquared(color1, color2));
+    }
 
-        r = Math.pow(Color.red(color2) - Color.red(color1), 2.0);
-        g = Math.pow(Color.green(color2) - Color.green(color1), 2.0);
-        b = Math.pow(Color.blue(color2) - Color.blue(color1), 2.0);
+    /**
+     * Computes the squared Euclidean distance between the two colors
+     *
+     * @param color1 the first color
+     * @param color2 the color to compare with
+     * @return the squared distance between the two colors
+     */
+    public static int getColorDistanceRgbSquared(int color1, int color2) {
+        int r = ((color2 >> 16) & 0xFF) - ((color1 >> 16) & 0xFF);
+        int g = ((color2 >> 8) & 0xFF) - ((color1 >> 8) & 0xFF);
+        int b = (color2 & 0xFF) - (color1 & 0xFF);
 
-        return Math.sqrt(b + g + r);
+        return r * r + g * g + b * b;
     }
 
     public static boolean areColorsTooDissimilar(int color1, int color2) {
@@ -559,67 +527,134 @@ public final class ColorUtil {
     @SuppressWarnings("SameParameterValue")
     public static ArrayList<Swatch> generateGradient(
             ArrayList<Swatch> swatches, ColorModel colorModel, double increment) {
+        return createGradient(swatches, colorModel, increment).toSwatches();
+    }
 
-        if (colorModel == ColorModel.HSV) {
-            return getGradientHsvColor(swatches, 200);
-        }
-
-        ArrayList<Swatch> list = new ArrayList<>();
-
+    /**
+     * Count the colors that {@link #createGradient} would generate between the swatches in RGB or
+     * LAB, without generating them. The HSV gradient always has {@link #HSV_GRADIENT_STEPS} colors
+     *
+     * @param swatches  the calibrated swatches in order of value
+     * @param increment the value step between the gradient colors
+     * @return the number of colors or Long.MAX_VALUE if the values are not finite or too far apart
+     */
+    public static long getGradientSize(List<Swatch> swatches, double increment) {
+        double size = 1;
         for (int i = 0; i < swatches.size() - 1; i++) {
-
-            int startColor = swatches.get(i).getColor();
-            int endColor = swatches.get(i + 1).getColor();
-            double startValue = swatches.get(i).getValue();
-            int steps = (int) ((swatches.get(i + 1).getValue() - startValue) / increment);
-
-            for (int j = 0; j < steps; j++) {
-                int color = 0;
-                switch (colorModel) {
-                    case RGB:
-                        color = ColorUtil.getGradientColor(startColor, endColor, steps, j);
-                        break;
-                    case LAB:
-                        color = ColorUtil.labToColor(ColorUtil.getGradientLabColor(colorToLab(startColor),
-                                colorToLab(endColor), steps, j));
-                }
-
-                list.add(new Swatch(startValue + (j * increment), color, color));
+            double steps = (swatches.get(i + 1).getValue() - swatches.get(i).getValue()) / increment;
+            if (Double.isNaN(steps)) {
+                return Long.MAX_VALUE;
             }
+            size += Math.max(0, Math.floor(steps));
         }
-        list.add(new Swatch(swatches.get(swatches.size() - 1).getValue(),
-                swatches.get(swatches.size() - 1).getColor(),
-                swatches.get(swatches.size() - 1).getColor()));
-
-        return list;
+        return size < Long.MAX_VALUE ? (long) size : Long.MAX_VALUE;
     }
 
     /**
-     * Get the color that lies in between two colors
+     * Generate the gradient between the swatches straight into the arrays of a {@link Gradient}
+     * <p>
+     * The values and colors are exactly those of {@link #generateGradient}, which is built on this,
+     * but no swatch, LAB color or array is created per step and each swatch is converted to LAB
+     * once rather than at every step. The HSV gradient ignores the increment and always has
+     * {@link #HSV_GRADIENT_STEPS} steps of 0.01.
      *
-     * @param startColor The first color
-     * @param endColor   The last color
-     * @param n          Number of steps between the two colors
-     * @param i          The index at which the color is to be calculated
-     * @return The newly generated color
+     * @param swatches   the calibrated swatches in order of value
+     * @param colorModel the color model to interpolate in
+     * @param increment  the value step between the gradient colors
+     * @return the gradient
      */
-    private static int getGradientColor(int startColor, int endColor, int n, int i) {
-        return Color.rgb(interpolate(Color.red(startColor), Color.red(endColor), n, i),
-                interpolate(Color.green(startColor), Color.green(endColor), n, i),
-                interpolate(Color.blue(startColor), Color.blue(endColor), n, i));
+    public static Gradient createGradient(List<Swatch> swatches, ColorModel colorModel, double increment) {
+        int count = swatches.size();
+        double[] swatchValues = new double[count];
+        int[] swatchColors = new int[count];
+        for (int i = 0; i < count; i++) {
+            swatchValues[i] = swatches.get(i).getValue();
+            swatchColors[i] = swatches.get(i).getColor();
+        }
+        return createGradient(swatchValues, swatchColors, colorModel, increment);
     }
 
     /**
-     * Get the color component that lies between the two color component points
+     * Generate the gradient between the swatches of a table, identical to the gradient of the
+     * same swatches held in a list
      *
-     * @param start The first color component value
-     * @param end   The last color component value
-     * @param n     Number of steps between the two colors
-     * @param i     The index at which the color is to be calculated
-     * @return The calculated color component
+     * @param swatches   the calibrated swatches in order of value
+     * @param colorModel the color model to interpolate in
+     * @param increment  the value step between the gradient colors
+     * @return the gradient
      */
-    private static int interpolate(int start, int end, int n, int i) {
-        return (int) ((float) start + ((((float) end - (float) start) / n) * i));
+    public static Gradient createGradient(SwatchTable swatches, ColorModel colorModel, double increment) {
+        return createGradient(swatches.getValues(), swatches.getColors(), colorModel, increment);
+    }
+
+    private static Gradient createGradient(double[] swatchValues, int[] swatchColors,
+                                           ColorModel colorModel, double increment) {
+        long start = Metrics.start();
+        Gradient gradient = buildGradient(swatchValues, swatchColors, colorModel, increment);
+        if (Metrics.ENABLED) {
+            Metrics.GENERATE_GRADIENT.recordSince(start);
+        }
+        return gradient;
+    }
+
+    private static Gradient buildGradient(double[] swatchValues, int[] swatchColors,
+                                          ColorModel colorModel, double increment) {
+
+        if (colorModel == ColorModel.HSV) {
+            return createHsvGradient(swatchValues, swatchColors, HSV_GRADIENT_STEPS);
+        }
+
+        int count = swatchValues.length;
+
+        // An empty calibration fails here as it always has
+        double lastValue = swatchValues[count - 1];
+        int lastColor = swatchColors[count - 1];
+
+        int[] steps = new int[count - 1];
+        int size = 1;
+        for (int i = 0; i < count - 1; i++) {
+            steps[i] = (int) ((swatchValues[i + 1] - swatchValues[i]) / increment);
+            size += Math.max(0, steps[i]);
+        }
+
+        double[] values = new double[size];
+        int[] colors = new int[size];
+        double[] lab = new double[6];
+        int index = 0;
+        for (int i = 0; i < count - 1; i++) {
+            int n = steps[i];
+            double startValue = swatchValues[i];
+            int startColor = swatchColors[i];
+            int endColor = swatchColors[i + 1];
+
+            switch (colorModel) {
+                case RGB:
+                    float red = Color.red(startColor);
+                    float green = Color.green(startColor);
+                    float blue = Color.blue(startColor);
+                    float redStep = ((float) Color.red(endColor) - red) / n;
+                    float greenStep = ((float) Color.green(endColor) - green) / n;
+                    float blueStep = ((float) Color.blue(endColor) - blue) / n;
+                    for (int j = 0; j < n; j++, index++) {
+                        values[index] = startValue + (j * increment);
+                        colors[index] = Color.rgb((int) (red + redStep * j), (int) (green + greenStep * j),
+                                (int) (blue + blueStep * j));
+                    }
+                    break;
+                case LAB:
+                    colorToLab(startColor, lab, 0);
+                    colorToLab(endColor, lab, 3);
+                    for (int j = 0; j < n; j++, index++) {
+                        values[index] = startValue + (j * increment);
+                        colors[index] = getGradientLabColor(lab, n, j);
+                    }
+                    break;
+            }
+        }
+        values[index] = lastValue;
+        colors[index] = lastColor;
+
+        return new Gradient(values, colors);
     }
 
     /**
@@ -650,29 +685,53 @@ public final class ColorUtil {
      * @return The lab color
      */
     public static LabColor colorToLab(int color) {
-        return rgbToLab(Color.red(color), Color.green(color), Color.blue(color));
+        double[] lab = new double[3];
+        colorToLab(color, lab, 0);
+        return new LabColor(lab[0], lab[1], lab[2]);
+    }
+
+    /**
+     * Convert int color to Lab color without allocating
+     * <p>
+     * The sRGB channels are linearised through a lookup table and the cube root is computed by
+     * cbrt. Over all 16.7M colors L is within 1.5E-14 and a, b within 1.2E-13 of the Math.pow
+     * based conversion this replaced.
+     *
+     * @param color  The color to convert
+     * @param lab    The array receiving L, a and b
+     * @param offset The index in the array to write L to
+     */
+    public static void colorToLab(int color, double[] lab, int offset) {
+        double r = LINEAR_RGB[(color >> 16) & 0xFF];
+        double g = LINEAR_RGB[(color >> 8) & 0xFF];
+        double b = LINEAR_RGB[color & 0xFF];
+        double x = xyz_lab((0.4124564 * r + 0.3575761 * g + 0.1804375 * b) / Xn);
+        double y = xyz_lab((0.2126729 * r + 0.7151522 * g + 0.0721750 * b) / Yn);
+        double z = xyz_lab((0.0193339 * r + 0.1191920 * g + 0.9503041 * b) / Zn);
+        lab[offset] = 116 * y - 16;
+        lab[offset + 1] = 500 * (x - y);
+        lab[offset + 2] = 200 * (y - z);
     }
 
     //http://stackoverflow.com/questions/27090107/color-gradient-algorithm-in-lab-color-space
-    private static LabColor getGradientLabColor(LabColor c1, LabColor c2, int n, int index) {
+    private static int getGradientLabColor(double[] lab, int n, int index) {
         double alpha = (double) index / (n - 1);  // 0.0 <= alpha <= 1.0
-        double L = (1 - alpha) * c1.L + alpha * c2.L;
-        double a = (1 - alpha) * c1.a + alpha * c2.a;
-        double b = (1 - alpha) * c1.b + alpha * c2.b;
-        return new LabColor(L, a, b);
+        double L = (1 - alpha) * lab[0] + alpha * lab[3];
+        double a = (1 - alpha) * lab[1] + alpha * lab[4];
+        double b = (1 - alpha) * lab[2] + alpha * lab[5];
+        return labToColor(L, a, b);
     }
 
     /**
      * Convert LAB color to int Color
      *
-     * @param color the LAB color
+     * @param l the L component
+     * @param a the a component
+     * @param b the b component
      * @return int color value
      */
-    private static int labToColor(LabColor color) {
-        double a, b, g, l, r, x, y, z;
-        l = color.L;
-        a = color.a;
-        b = color.b;
+    private static int labToColor(double l, double a, double b) {
+        double g, r, x, y, z;
         y = (l + 16) / 116;
         x = y + a / 500;
         z = y - b / 200;
@@ -700,11 +759,6 @@ public final class ColorUtil {
         return Math.round(255 * (r <= 0.00304 ? 12.92 * r : 1.055 * Math.pow(r, 1 / 2.4) - 0.055));
     }
 
-    private static LabColor rgbToLab(double r, double g, double b) {
-        XyzColor xyzColor = rgbToXyz(r, g, b);
-        return new LabColor(116 * xyzColor.y - 16, 500 * (xyzColor.x - xyzColor.y), 200 * (xyzColor.y - xyzColor.z));
-    }
-
     private static double rgb_xyz(double r) {
         if ((r /= 255) <= 0.04045) {
             return (r / 12.92);
@@ -715,53 +769,73 @@ public final class ColorUtil {
 
     private static double xyz_lab(double t) {
         if (t > t3) {
-            return Math.pow(t, 1.0 / 3.0);
+            return cbrt(t);
         } else {
             return t / t2 + t0;
         }
     }
 
-    private static XyzColor rgbToXyz(double r, double g, double b) {
-        double x, y, z;
-        r = rgb_xyz(r);
-        g = rgb_xyz(g);
-        b = rgb_xyz(b);
-        x = xyz_lab((0.4124564 * r + 0.3575761 * g + 0.1804375 * b) / Xn);
-        y = xyz_lab((0.2126729 * r + 0.7151522 * g + 0.0721750 * b) / Yn);
-        z = xyz_lab((0.0193339 * r + 0.1191920 * g + 0.9503041 * b) / Zn);
-        return new XyzColor(x, y, z);
+    /**
+     * Cube root of a positive number from a bit level estimate refined by Halley's method.
+     * Within an ulp of Math.cbrt without the native call
+     *
+     * @param x the positive number
+     * @return the cube root
+     */
+    static double cbrt(double x) {
+        // dividing the exponent by three gives an estimate within a few percent
+        double y = Double.longBitsToDouble(Double.doubleToRawLongBits(x) / 3 + 0x2A9F7893782DA1CEL);
+
+        // each step roughly triples the number of correct digits
+        double y3 = y * y * y;
+        y = y * (y3 + 2 * x) / (2 * y3 + x);
+        y3 = y * y * y;
+        y = y * (y3 + 2 * x) / (2 * y3 + x);
+
+        // a final Newton step on the residual rounds less than another Halley step
+        double y2 = y * y;
+        return y - (y2 * y - x) / (3 * y2);
     }
 
     // create gradient from yellow to red to black with 100 steps
     //var gradient = hsvGradient(100, [{h:0.14, s:0.5, b:1}, {h:0, s:1, b:1}, {h:0, s:1, b:0}]);
     // http://stackoverflow.com/questions/2593832/how-to-interpolate-hue-values-in-hsv-colour-space
     @SuppressWarnings("SameParameterValue")
-    private static ArrayList<Swatch> getGradientHsvColor(ArrayList<Swatch> colors, int steps) {
-        int parts = colors.size() - 1;
-        ArrayList<Swatch> gradient = new ArrayList<>();
-        int gradientIndex = 0;
+    private static Gradient createHsvGradient(double[] swatchValues, int[] swatchColors, int steps) {
+        int parts = swatchValues.length - 1;
         double increment = 0.01;
         double partSteps = Math.floor(steps / parts);
         double remainder = steps - (partSteps * parts);
+
+        int size = 0;
         for (int col = 0; col < parts; col++) {
+            double stepsOfPart = col == parts - 1 ? partSteps + remainder : partSteps;
+            size += (int) Math.max(0, Math.ceil(stepsOfPart));
+        }
+        double[] values = new double[size];
+        int[] gradientColors = new int[size];
+        int gradientIndex = 0;
 
-            double startValue = colors.get(col).getValue();
+        float[] hsvColor = new float[3];
+        for (int col = 0; col < parts; col++) {
 
-            float[] hsvColor = new float[3];
+            double startValue = swatchValues[col];
 
-            Color.RGBToHSV(Color.red(colors.get(col).getColor()),
-                    Color.green(colors.get(col).getColor()),
-                    Color.blue(colors.get(col).getColor()), hsvColor);
-            HsvColor c1 = new HsvColor(hsvColor[0], hsvColor[1], hsvColor[2]);
+            int color1 = swatchColors[col];
+            Color.RGBToHSV(Color.red(color1), Color.green(color1), Color.blue(color1), hsvColor);
+            double h1 = hsvColor[0];
+            double s1 = hsvColor[1];
+            double v1 = hsvColor[2];
 
-            Color.RGBToHSV(Color.red(colors.get(col + 1).getColor()),
-                    Color.green(colors.get(col + 1).getColor()),
-                    Color.blue(colors.get(col + 1).getColor()), hsvColor);
-            HsvColor c2 = new HsvColor(hsvColor[0], hsvColor[1], hsvColor[2]);
+            int color2 = swatchColors[col + 1];
+            Color.RGBToHSV(Color.red(color2), Color.green(color2), Color.blue(color2), hsvColor);
+            double h2 = hsvColor[0];
+            double s2 = hsvColor[1];
+            double v2 = hsvColor[2];
 
             // determine clockwise and counter-clockwise distance between hues
-            double distCCW = (c1.h >= c2.h) ? c1.h - c2.h : 1 + c1.h - c2.h;
-            double distCW = (c1.h >= c2.h) ? 1 + c2.h - c1.h : c2.h - c1.h;
+            double distCCW = (h1 >= h2) ? h1 - h2 : 1 + h1 - h2;
+            double distCW = (h1 >= h2) ? 1 + h2 - h1 : h2 - h1;
 
             // ensure we get the right number of steps by adding remainder to final part
             if (col == parts - 1) partSteps += remainder;
@@ -770,99 +844,32 @@ public final class ColorUtil {
             for (int step = 0; step < partSteps; step++) {
                 double p = step / partSteps;
                 // interpolate h, s, b
-                float h = (float) ((distCW <= distCCW) ? c1.h + (distCW * p) : c1.h - (distCCW * p));
+                float h = (float) ((distCW <= distCCW) ? h1 + (distCW * p) : h1 - (distCCW * p));
                 if (h < 0) h = 1 + h;
                 if (h > 1) h = h - 1;
-                float s = (float) ((1 - p) * c1.s + p * c2.s);
-                float v = (float) ((1 - p) * c1.v + p * c2.v);
-
-                hsvColor[0] = h;
-                hsvColor[1] = s;
-                hsvColor[2] = v;
-                // add to gradient array
-                gradient.add(gradientIndex, new Swatch(startValue + (step * increment),
-                        Color.HSVToColor(hsvColor), Color.HSVToColor(hsvColor)));
+                float s = (float) ((1 - p) * s1 + p * s2);
+                float v = (float) ((1 - p) * v1 + p * v2);
 
+                values[gradientIndex] = startValue + (step * increment);
+                gradientColors[gradientIndex] = Color.HSBtoRGB(h, s, v);
                 gradientIndex++;
             }
         }
-        return gradient;
+        return new Gradient(values, gradientColors);
     }
 
-    //https://github.com/StanfordHCI/c3/blob/master/java/src/edu/stanford/vis/color/LAB.java
+    /**
+     * Computes the CIEDE2000 difference between the two colors
+     *
+     * @param x the first color
+     * @param y the color to compare with
+     * @return the distance between the two colors
+     */
     public static double getColorDistanceLab(LabColor x, LabColor y) {
-        // adapted from Sharma et al's MATLAB implementation at
-        //  http://www.ece.rochester.edu/~gsharma/ciede2000/
-
-        // parametric factors, use defaults
-        double kl = 1, kc = 1, kh = 1;
-
-        // compute terms
-        double pi = Math.PI,
-                L1 = x.L, a1 = x.a, b1 = x.b, Cab1 = Math.sqrt(a1 * a1 + b1 * b1),
-                L2 = y.L, a2 = y.a, b2 = y.b, Cab2 = Math.sqrt(a2 * a2 + b2 * b2),
-                Cab = 0.5 * (Cab1 + Cab2),
-                G = 0.5 * (1 - Math.sqrt(Math.pow(Cab, 7) / (Math.pow(Cab, 7) + Math.pow(25, 7)))),
-                ap1 = (1 + G) * a1,
-                ap2 = (1 + G) * a2,
-                Cp1 = Math.sqrt(ap1 * ap1 + b1 * b1),
-                Cp2 = Math.sqrt(ap2 * ap2 + b2 * b2),
-                Cpp = Cp1 * Cp2;
-
-        // ensure hue is between 0 and 2pi
-        double hp1 = Math.atan2(b1, ap1);
-        if (hp1 < 0) hp1 += 2 * pi;
-        double hp2 = Math.atan2(b2, ap2);
-        if (hp2 < 0) hp2 += 2 * pi;
-
-        double dL = L2 - L1,
-                dC = Cp2 - Cp1,
-                dhp = hp2 - hp1;
-
-        if (dhp > +pi) dhp -= 2 * pi;
-        if (dhp < -pi) dhp += 2 * pi;
-        if (Cpp == 0) dhp = 0;
-
-        // Note that the defining equations actually need
-        // signed Hue and chroma differences which is different
-        // from prior color difference formulae
-        double dH = 2 * Math.sqrt(Cpp) * Math.sin(dhp / 2);
-
-        // Weighting functions
-        double Lp = 0.5 * (L1 + L2),
-                Cp = 0.5 * (Cp1 + Cp2);
-
-        // Average Hue Computation
-        // This is equivalent to that in the paper but simpler programmatically.
-        // Average hue is computed in radians and converted to degrees where needed
-        double hp = 0.5 * (hp1 + hp2);
-        // Identify positions for which abs hue diff exceeds 180 degrees
-        if (Math.abs(hp1 - hp2) > pi) hp -= pi;
-        if (hp < 0) hp += 2 * pi;
-
-        // Check if one of the chroma values is zero, in which case set
-        // mean hue to the sum which is equivalent to other value
-        if (Cpp == 0) hp = hp1 + hp2;
-
-        double Lpm502 = (Lp - 50) * (Lp - 50),
-                Sl = 1 + 0.015 * Lpm502 / Math.sqrt(20 + Lpm502),
-                Sc = 1 + 0.045 * Cp,
-                T = 1 - 0.17 * Math.cos(hp - pi / 6)
-                        + 0.24 * Math.cos(2 * hp)
-                        + 0.32 * Math.cos(3 * hp + pi / 30)
-                        - 0.20 * Math.cos(4 * hp - 63 * pi / 180),
-                Sh = 1 + 0.015 * Cp * T,
-                ex = (180 / pi * hp - 275) / 25,
-                deltaThetaRad = (30 * pi / 180) * Math.exp(-1 * (ex * ex)),
-                Rc = 2 * Math.sqrt(Math.pow(Cp, 7) / (Math.pow(Cp, 7) + Math.pow(25, 7))),
-                RT = -1 * Math.sin(2 * deltaThetaRad) * Rc;
-
-        dL = dL / (kl * Sl);
-        dC = dC / (kc * Sc);
-        dH = dH / (kh * Sh);
-
-        // The CIE 00 color difference
-        return Math.sqrt(dL * dL + dC * dC + dH * dH + RT * dC * dH);
+        double[] terms = new double[2 * Ciede2000.STRIDE];
+        Ciede2000.computeTerms(x, terms, 0);
+        Ciede2000.computeTerms(y, terms, Ciede2000.STRIDE);
+        return Ciede2000.distance(terms, 0, terms, Ciede2000.STRIDE);
     }
 
     /**
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) Stichting Akvo (Akvo Foundation)
+ *
+ * This file is part of Akvo Caddisfly
+ *
+ * Akvo Caddisfly is free software: you can redistribute it and modify it under the terms of
+ * the GNU Affero General Public License (AGPL) as published by the Free Software Foundation,
+ * either version 3 of the License or any later version.
+ *
+ * Akvo Caddisfly is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License included below for more details.
+ *
+ * The full license text can also be seen at <http://www.gnu.org/licenses/agpl.html>.
+ */
+
+package org.akvo.caddisfly.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a directory and its subdirectories for files being created, changed or deleted
+ * <p>
+ * Changes usually come in bursts, such as when a set of calibrations is copied in, so the
+ * listener is called with all the paths that changed once the directory has been quiet for a
+ * while rather than for every change. The listener runs on the thread of the watcher.
+ */
+public final class DirectoryWatcher implements Closeable {
+
+    /**
+     * The time without changes after which the listener is called
+     */
+    public static final long DEFAULT_QUIET_PERIOD = 500;
+
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> directories = new HashMap<>();
+    private final long quietPeriod;
+    private final Listener listener;
+    private final Thread thread;
+
+    /**
+     * @param directory   the directory to watch
+     * @param quietPeriod the milliseconds without changes after which the listener is called
+     * @param listener    called after the directory has changed
+     * @throws IOException if the directory could not be watched
+     */
+    public DirectoryWatcher(Path directory, long quietPeriod, Listener listener) throws IOException {
+        this.quietPeriod = quietPeriod;
+        this.listener = listener;
+        watchService = directory.getFileSystem().newWatchService();
+        register(directory);
+        thread = new Thread(this::watch, "DirectoryWatcher " + directory);
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Receives the changes to the watched directory
+     */
+    public interface Listener {
+
+        /**
+         * @param paths the files and directories that were created, changed or deleted, or null
+         *              if changes were lost and the whole directory may have changed
+         */
+        void onChanged(Set<Path> paths);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Set<Path> changed = new LinkedHashSet<>();
+                boolean overflow = false;
+                do {
+                    overflow |= processEvents(key, changed);
+                    key = watchService.poll(quietPeriod, TimeUnit.MILLISECONDS);
+                } while (key != null);
+
+                try {
+                    listener.onChanged(overflow ? null : changed);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ignored) {
+            // The watcher was closed
+        }
+    }
+
+    /**
+     * @return true if events were lost
+     */
+    private boolean processEvents(WatchKey key, Set<Path> changed) {
+        boolean overflow = false;
+        Path directory = directories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflow = true;
+                continue;
+            }
+            if (directory == null) {
+                continue;
+            }
+            Path child = directory.resolve((Path) event.context());
+            changed.add(child);
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+                    && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                try {
+                    register(child);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        if (!key.reset()) {
+            directories.remove(key);
+        }
+        return overflow;
+    }
+
+    private void register(Path start) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                directories.put(dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
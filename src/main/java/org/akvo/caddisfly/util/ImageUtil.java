@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) Stichting Akvo (Akvo Foundation)
+ *
+ * This file is part of Akvo Caddisfly
+ *
+ * Akvo Caddisfly is free software: you can redistribute it and modify it under the terms of
+ * the GNU Affero General Public License (AGPL) as published by the Free Software Foundation,
+ * either version 3 of the License or any later version.
+ *
+ * Akvo Caddisfly is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License included below for more details.
+ *
+ * The full license text can also be seen at <http://www.gnu.org/licenses/agpl.html>.
+ */
+
+package org.akvo.caddisfly.util;
+
+import org.akvo.caddisfly.model.ColorInfo;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Utility functions for reading test photos and sampling their colors
+ */
+public final class ImageUtil {
+
+    private ImageUtil() {
+    }
+
+    /**
+     * Decode only a region of an image file, so a small sample of a large photo is read without
+     * holding the whole photo in memory
+     *
+     * @param file   the image file
+     * @param region the region to decode, in the coordinates of the whole image
+     * @return a reader of the region's pixels, addressed in the coordinates of the whole image
+     * @throws IOException              if the file could not be read or is not a supported image
+     * @throws IllegalArgumentException if the region does not overlap the image
+     */
+    public static PixelReader readRegion(File file, Rectangle region) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            if (input == null) {
+                throw new IOException("Could not open " + file);
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw new IOException("Unsupported image format: " + file);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                Rectangle bounds = region.intersection(new Rectangle(reader.getWidth(0), reader.getHeight(0)));
+                if (bounds.isEmpty()) {
+                    throw new IllegalArgumentException("Region " + region + " is outside of the image");
+                }
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(bounds);
+                BufferedImage image = reader.read(0, param);
+                return new PixelReader(image, bounds.x, bounds.y);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Get the most common color from the top left of the image
+     * <p>
+     * The quality is the lower of the percentage of pixels that are similar to the most common
+     * color and the percentage of the different colors that are similar to it.
+     *
+     * @param pixels       The pixels from which to extract the color
+     * @param sampleLength The max length of the image to traverse
+     * @return The extracted color information, the color is -1 if all pixels are transparent
+     */
+    public static ColorInfo getColorFromImage(PixelReader pixels, int sampleLength) {
+        int highestCount = 0;
+        int commonColor = -1;
+        int totalPixels = 0;
+
+        ColorCounter counter = new ColorCounter();
+        int[] column = new int[Math.min(pixels.getHeight(), sampleLength)];
+
+        // columns first as on the device, which decides between equally common colors
+        for (int i = 0; i < Math.min(pixels.getWidth(), sampleLength); i++) {
+            pixels.getPixels(pixels.getMinX() + i, pixels.getMinY(), 0, 1, column.length, column, 0);
+            for (int color : column) {
+                if (color != Color.TRANSPARENT) {
+                    totalPixels++;
+                    int count = counter.increment(color);
+                    if (count > highestCount) {
+                        commonColor = color;
+                        highestCount = count;
+                    }
+                }
+            }
+        }
+
+        if (totalPixels == 0) {
+            return new ColorInfo(commonColor, 0);
+        }
+
+        // check the quality of the photo
+        int colorsFound = counter.size();
+        int goodColors = 0;
+        int goodPixelCount = 0;
+        for (int i = 0; i < colorsFound; i++) {
+            if (ColorUtil.areColorsSimilar(commonColor, counter.getColor(i))) {
+                goodColors++;
+                goodPixelCount += counter.getCount(i);
+            }
+        }
+
+        double quality1 = ((double) goodPixelCount / totalPixels) * 100d;
+        double quality2 = ((double) (colorsFound - goodColors) / colorsFound) * 100d;
+        return new ColorInfo(commonColor, Math.min(quality1, (100 - quality2)));
+    }
+
+    /**
+     * Get the average color of a region of the image, ignoring transparent pixels
+     * <p>
+     * The quality is the percentage of pixels that are similar to the average color.
+     *
+     * @param pixels The pixels from which to extract the color
+     * @param region The region to average, in the coordinates of the pixels
+     * @return The extracted color information, the color is -1 if all pixels are transparent
+     */
+    public static ColorInfo getAverageColor(PixelReader pixels, Rectangle region) {
+        int[] row = new int[region.width];
+        long red = 0;
+        long green = 0;
+        long blue = 0;
+        int totalPixels = 0;
+        for (int y = region.y; y < region.y + region.height; y++) {
+            pixels.getPixels(region.x, y, 1, 0, row.length, row, 0);
+            for (int color : row) {
+                if (color != Color.TRANSPARENT) {
+                    red += Color.red(color);
+                    green += Color.green(color);
+                    blue += Color.blue(color);
+                    totalPixels++;
+                }
+            }
+        }
+
+        if (totalPixels == 0) {
+            return new ColorInfo(-1, 0);
+        }
+
+        int average = Color.rgb(divideRounded(red, totalPixels), divideRounded(green, totalPixels),
+                divideRounded(blue, totalPixels));
+
+        int goodPixelCount = 0;
+        for (int y = region.y; y < region.y + region.height; y++) {
+            pixels.getPixels(region.x, y, 1, 0, row.length, row, 0);
+            for (int color : row) {
+                if (color != Color.TRANSPARENT && ColorUtil.areColorsSimilar(average, color)) {
+                    goodPixelCount++;
+                }
+            }
+        }
+
+        return new ColorInfo(average, ((double) goodPixelCount / totalPixels) * 100d);
+    }
+
+    private static int divideRounded(long total, int count) {
+        return (int) ((total + count / 2) / count);
+    }
+
+    /**
+     * Counts the occurrences of colors in an open addressing hash table, remembering the order
+     * in which the colors were first seen. Transparent is not counted as it marks an empty slot
+     */
+    private static final class ColorCounter {
+        private int[] keys = new int[64];
+        private int[] slots = new int[64];
+        private int[] colors = new int[16];
+        private int[] counts = new int[16];
+        private int size;
+
+        int increment(int color) {
+            int mask = keys.length - 1;
+            int slot = mix(color) & mask;
+            while (keys[slot] != Color.TRANSPARENT) {
+                if (keys[slot] == color) {
+                    return ++counts[slots[slot]];
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            if (size == colors.length) {
+                colors = Arrays.copyOf(colors, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+            colors[size] = color;
+            counts[size] = 1;
+            keys[slot] = color;
+            slots[slot] = size;
+            size++;
+            if (size * 2 > keys.length) {
+                rehash();
+            }
+            return 1;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int getColor(int index) {
+            return colors[index];
+        }
+
+        int getCount(int index) {
+            return counts[index];
+        }
+
+        private void rehash() {
+            keys = new int[keys.length * 2];
+            slots = new int[keys.length];
+            int mask = keys.length - 1;
+            for (int i = 0; i < size; i++) {
+                int slot = mix(colors[i]) & mask;
+                while (keys[slot] != Color.TRANSPARENT) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = colors[i];
+                slots[slot] = i;
+            }
+        }
+
+        private static int mix(int color) {
+            int h = color * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ *  Copyright (C) Stichting Akvo (Akvo Foundation)
+ *
+ *  This file is part of Akvo Caddisfly
+ *
+ *  Akvo Caddisfly is free software: you can redistribute it and modify it under the terms of
+ *  the GNU Affero General Public License (AGPL) as published by the Free Software Foundation,
+ *  either version 3 of the License or any later version.
+ *
+ *  Akvo Caddisfly is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *  See the GNU Affero General Public License included below for more details.
+ *
+ *  The full license text can also be seen at <http://www.gnu.org/licenses/agpl.html>.
+ */
+
+package org.akvo.caddisfly.util;
+
+import org.akvo.caddisfly.model.LabColor;
+
+import java.util.stream.IntStream;
+
+/**
+ * The Lab value of every 24 bit color, for bulk conversion of arbitrary colors
+ * <p>
+ * Values are stored as floats taking 192MB of heap. They are within 4E-6 of
+ * {@link ColorUtil#colorToLab(int, double[], int)}, so use the table where that precision
+ * is enough and the same colors are converted many times over.
+ */
+public final class LabTable {
+
+    private static final int SIZE = 1 << 24;
+
+    private final float[] table;
+
+    private LabTable(float[] table) {
+        this.table = table;
+    }
+
+    /**
+     * Build the table
+     *
+     * @return the Lab table
+     */
+    public static LabTable build() {
+        final float[] table = new float[SIZE * 3];
+        IntStream.range(0, 256).parallel().forEach(red -> {
+            double[] lab = new double[3];
+            for (int rgb = red << 16, end = rgb + 0x10000; rgb < end; rgb++) {
+                ColorUtil.colorToLab(rgb, lab, 0);
+                table[rgb * 3] = (float) lab[0];
+                table[rgb * 3 + 1] = (float) lab[1];
+                table[rgb * 3 + 2] = (float) lab[2];
+            }
+        });
+        return new LabTable(table);
+    }
+
+    /**
+     * Look up the Lab color of an int color
+     *
+     * @param color  The color to convert
+     * @param lab    The array receiving L, a and b
+     * @param offset The index in the array to write L to
+     */
+    public void colorToLab(int color, double[] lab, int offset) {
+        int index = (color & 0xFFFFFF) * 3;
+        lab[offset] = table[index];
+        lab[offset + 1] = table[index + 1];
+        lab[offset + 2] = table[index + 2];
+    }
+
+    /**
+     * Look up the Lab color of an int color
+     *
+     * @param color The color to convert
+     * @return The lab color
+     */
+    public LabColor colorToLab(int color) {
+        int index = (color & 0xFFFFFF) * 3;
+        return new LabColor(table[index], table[index + 1], table[index + 2]);
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) Stichting Akvo (Akvo Foundation)
+ *
+ * This file is part of Akvo Caddisfly
+ *
+ * Akvo Caddisfly is free software: you can redistribute it and modify it under the terms of
+ * the GNU Affero General Public License (AGPL) as published by the Free Software Foundation,
+ * either version 3 of the License or any later version.
+ *
+ * Akvo Caddisfly is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License included below for more details.
+ *
+ * The full license text can also be seen at <http://www.gnu.org/licenses/agpl.html>.
+ */
+
+package org.akvo.caddisfly.util;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations that many threads can record into without locking
+ * <p>
+ * As in an HDR histogram the buckets grow with the durations they hold: each power of two from
+ * 1 microsecond up to about 34 seconds is split into two buckets, so a duration is known to
+ * within 50% whatever its size. Shorter durations share the first bucket and longer ones the
+ * last. Each bucket is a {@link LongAdder}, so threads recording at once update separate cells.
+ */
+public final class LatencyHistogram {
+
+    /**
+     * The first bucket holds durations shorter than 2^10 ns, about 1 microsecond
+     */
+    private static final int MIN_SHIFT = 10;
+
+    /**
+     * The last bucket holds durations of 2^35 ns, about 34 seconds, or more
+     */
+    private static final int MAX_SHIFT = 35;
+
+    private static final int BUCKET_COUNT = (MAX_SHIFT - MIN_SHIFT) * 2 + 2;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKET_COUNT];
+    private final LongAdder sum = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Record a duration
+     *
+     * @param nanos the duration in nanoseconds, negative durations are counted as 0
+     */
+    public void record(long nanos) {
+        long duration = Math.max(0, nanos);
+        buckets[getBucket(duration)].increment();
+        sum.add(duration);
+    }
+
+    /**
+     * Record the time since a start time
+     *
+     * @param startNanos the start time from {@link System#nanoTime()}
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    private static int getBucket(long nanos) {
+        if (nanos < 1L << MIN_SHIFT) {
+            return 0;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(nanos);
+        if (shift >= MAX_SHIFT) {
+            return BUCKET_COUNT - 1;
+        }
+        // the bit below the highest tells which half of the power of two the duration is in
+        return 1 + (shift - MIN_SHIFT) * 2 + (int) ((nanos >>> (shift - 1)) & 1);
+    }
+
+    public int getBucketCount() {
+        return BUCKET_COUNT;
+    }
+
+    /**
+     * Get the duration that the durations counted in a bucket are shorter than
+     *
+     * @param bucket the index of the bucket
+     * @return the upper bound in nanoseconds or Long.MAX_VALUE for the last bucket
+     */
+    public long getUpperBound(int bucket) {
+        if (bucket == BUCKET_COUNT - 1) {
+            return Long.MAX_VALUE;
+        }
+        if (bucket == 0) {
+            return 1L << MIN_SHIFT;
+        }
+        int shift = MIN_SHIFT + (bucket - 1) / 2;
+        return (bucket - 1) % 2 == 0 ? 3L << (shift - 1) : 1L << (shift + 1);
+    }
+
+    /**
+     * Get the number of durations counted in a bucket
+     *
+     * @param bucket the index of the bucket
+     * @return the count
+     */
+    public long getCount(int bucket) {
+        return buckets[bucket].sum();
+    }
+
+    /**
+     * Get the number of durations recorded. While threads are recording this may differ from
+     * the sum of the bucket counts read before or after it
+     *
+     * @return the count
+     */
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * @return the total of the durations recorded in nanoseconds
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+}
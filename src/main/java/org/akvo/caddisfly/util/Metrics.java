@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) Stichting Akvo (Akvo Foundation)
+ *
+ * This file is part of Akvo Caddisfly
+ *
+ * Akvo Caddisfly is free software: you can redistribute it and modify it under the terms of
+ * the GNU Affero General Public License (AGPL) as published by the Free Software Foundation,
+ * either version 3 of the License or any later version.
+ *
+ * Akvo Caddisfly is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License included below for more details.
+ *
+ * The full license text can also be seen at <http://www.gnu.org/licenses/agpl.html>.
+ */
+
+package org.akvo.caddisfly.util;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The counters and timings of the analysis, recorded when the caddisfly.metrics system property
+ * is true
+ * <p>
+ * The property is read once into a constant, so when it is not set the JIT removes the checks
+ * around the instrumentation along with the instrumentation itself. The counters are
+ * {@link LongAdder}s and the timings {@link LatencyHistogram}s so threads never wait on each
+ * other to record.
+ */
+public final class Metrics {
+
+    /**
+     * Whether the metrics are recorded
+     */
+    public static final boolean ENABLED = Boolean.getBoolean("caddisfly.metrics");
+
+    /**
+     * Analyses where the color matched a calibrated swatch
+     */
+    public static final LongAdder EXACT_MATCHES = new LongAdder();
+
+    /**
+     * Analyses where the color only matched the gradient between the swatches
+     */
+    public static final LongAdder GRADIENT_MATCHES = new LongAdder();
+
+    /**
+     * Analyses where the color matched neither the swatches nor the gradient
+     */
+    public static final LongAdder NO_MATCHES = new LongAdder();
+
+    /**
+     * Analyses answered by a compiled calibration
+     */
+    public static final LongAdder COMPILED_LOOKUPS = new LongAdder();
+
+    /**
+     * Searches for the nearest color by scanning every color, through the RGB index, or through
+     * the Lab terms
+     */
+    public static final LongAdder SCAN_SEARCHES = new LongAdder();
+    public static final LongAdder INDEX_SEARCHES = new LongAdder();
+    public static final LongAdder LAB_SEARCHES = new LongAdder();
+
+    /**
+     * The color distances computed by the nearest color searches
+     */
+    public static final LongAdder COLOR_DISTANCES = new LongAdder();
+
+    /**
+     * Requests refused because too many analyses were in progress
+     */
+    public static final LongAdder REJECTED_REQUESTS = new LongAdder();
+
+    public static final LatencyHistogram ANALYZE_COLOR = new LatencyHistogram();
+    public static final LatencyHistogram GENERATE_GRADIENT = new LatencyHistogram();
+    public static final LatencyHistogram LOAD_CALIBRATION = new LatencyHistogram();
+
+    public static final LatencyHistogram ANALYZE_REQUESTS = new LatencyHistogram();
+    public static final LatencyHistogram CALIBRATION_REQUESTS = new LatencyHistogram();
+    public static final LatencyHistogram REPORT_REQUESTS = new LatencyHistogram();
+    public static final LatencyHistogram METRICS_REQUESTS = new LatencyHistogram();
+
+    private Metrics() {
+    }
+
+    /**
+     * Get the start time of an operation to be timed
+     *
+     * @return the time from {@link System#nanoTime()} or 0 when the metrics are not recorded
+     */
+    public static long start() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Record an analysis against swatches
+     *
+     * @param startNanos the time the analysis started
+     * @param exactMatch true if the color matched a calibrated swatch
+     * @param matched    true if the color matched at all
+     */
+    public static void recordAnalysis(long startNanos, boolean exactMatch, boolean matched) {
+        if (exactMatch) {
+            EXACT_MATCHES.increment();
+        } else if (matched) {
+            GRADIENT_MATCHES.increment();
+        } else {
+            NO_MATCHES.increment();
+        }
+        ANALYZE_COLOR.recordSince(startNanos);
+    }
+}
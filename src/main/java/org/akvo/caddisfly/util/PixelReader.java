@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) Stichting Akvo (Akvo Foundation)
+ *
+ * This file is part of Akvo Caddisfly
+ *
+ * Akvo Caddisfly is free software: you can redistribute it and modify it under the terms of
+ * the GNU Affero General Public License (AGPL) as published by the Free Software Foundation,
+ * either version 3 of the License or any later version.
+ *
+ * Akvo Caddisfly is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License included below for more details.
+ *
+ * The full license text can also be seen at <http://www.gnu.org/licenses/agpl.html>.
+ */
+
+package org.akvo.caddisfly.util;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Reads the ARGB colors of an image's pixels straight from its raster, without copying the image
+ * <p>
+ * Images of 8 bit sRGB samples that are interleaved in a byte buffer, such as decoded JPEG and PNG
+ * photos, or packed in an int buffer are read from the buffer by their pixel and scanline
+ * strides. Any other image is read through {@link BufferedImage#getRGB(int, int)}. Either way the
+ * colors are those getRGB returns. The reader can be positioned so that an image decoded from a
+ * region of a larger image is addressed in the coordinates of the larger image.
+ */
+public final class PixelReader {
+
+    private enum Layout {BYTE, INT, OTHER}
+
+    private final BufferedImage image;
+    private final int minX;
+    private final int minY;
+    private final int width;
+    private final int height;
+    private final Layout layout;
+
+    private final byte[] bytes;
+    private final int[] ints;
+    private final int offset;
+    private final int pixelStride;
+    private final int scanlineStride;
+    private final int[] bandOffsets;
+    private final int[] bitMasks;
+    private final int[] bitOffsets;
+    private final boolean hasAlpha;
+
+    public PixelReader(BufferedImage image) {
+        this(image, 0, 0);
+    }
+
+    /**
+     * @param image the image to read
+     * @param minX  the x coordinate of the image's top left pixel
+     * @param minY  the y coordinate of the image's top left pixel
+     */
+    public PixelReader(BufferedImage image, int minX, int minY) {
+        this.image = image;
+        this.minX = minX;
+        this.minY = minY;
+        width = image.getWidth();
+        height = image.getHeight();
+
+        WritableRaster raster = image.getRaster();
+        SampleModel sampleModel = raster.getSampleModel();
+        DataBuffer dataBuffer = raster.getDataBuffer();
+        ColorModel colorModel = image.getColorModel();
+        int bands = sampleModel.getNumBands();
+        boolean isRgb = colorModel.getColorSpace().isCS_sRGB() && !colorModel.isAlphaPremultiplied()
+                && (bands == 3 || bands == 4) && dataBuffer.getNumBanks() == 1;
+
+        // the position of the image's top left pixel in the sample model
+        int x = -raster.getSampleModelTranslateX();
+        int y = -raster.getSampleModelTranslateY();
+
+        if (isRgb && colorModel instanceof ComponentColorModel && hasEightBitSamples(sampleModel)
+                && sampleModel instanceof PixelInterleavedSampleModel && dataBuffer instanceof DataBufferByte) {
+            PixelInterleavedSampleModel interleaved = (PixelInterleavedSampleModel) sampleModel;
+            layout = Layout.BYTE;
+            bytes = ((DataBufferByte) dataBuffer).getData();
+            ints = null;
+            pixelStride = interleaved.getPixelStride();
+            scanlineStride = interleaved.getScanlineStride();
+            bandOffsets = interleaved.getBandOffsets();
+            bitMasks = null;
+            bitOffsets = null;
+        } else if (isRgb && colorModel instanceof DirectColorModel && hasEightBitSamples(sampleModel)
+                && sampleModel instanceof SinglePixelPackedSampleModel && dataBuffer instanceof DataBufferInt) {
+            SinglePixelPackedSampleModel packed = (SinglePixelPackedSampleModel) sampleModel;
+            layout = Layout.INT;
+            bytes = null;
+            ints = ((DataBufferInt) dataBuffer).getData();
+            pixelStride = 1;
+            scanlineStride = packed.getScanlineStride();
+            bandOffsets = null;
+            bitMasks = packed.getBitMasks();
+            bitOffsets = packed.getBitOffsets();
+        } else {
+            layout = Layout.OTHER;
+            bytes = null;
+            ints = null;
+            pixelStride = 0;
+            scanlineStride = 0;
+            bandOffsets = null;
+            bitMasks = null;
+            bitOffsets = null;
+        }
+        offset = dataBuffer.getOffset() + y * scanlineStride + x * pixelStride;
+        hasAlpha = bands == 4;
+    }
+
+    private static boolean hasEightBitSamples(SampleModel sampleModel) {
+        for (int size : sampleModel.getSampleSize()) {
+            if (size != 8) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getMinX() {
+        return minX;
+    }
+
+    public int getMinY() {
+        return minY;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Gets the color of a pixel
+     *
+     * @param x the x coordinate of the pixel
+     * @param y the y coordinate of the pixel
+     * @return the ARGB color
+     * @throws ArrayIndexOutOfBoundsException if the pixel is outside of the image
+     */
+    public int getPixel(int x, int y) {
+        int column = x - minX;
+        int row = y - minY;
+        if (column < 0 || column >= width || row < 0 || row >= height) {
+            throw new ArrayIndexOutOfBoundsException("Pixel outside of the image: " + x + ", " + y);
+        }
+        return read(column, row);
+    }
+
+    /**
+     * Gets the colors of a line of pixels taking steps of dx, dy from the first pixel
+     *
+     * @param x      the x coordinate of the first pixel
+     * @param y      the y coordinate of the first pixel
+     * @param dx     the x step between the pixels
+     * @param dy     the y step between the pixels
+     * @param count  the number of pixels
+     * @param colors receives the ARGB colors
+     * @param index  the index in colors of the first pixel's color
+     * @throws ArrayIndexOutOfBoundsException if any pixel is outside of the image
+     */
+    public void getPixels(int x, int y, int dx, int dy, int count, int[] colors, int index) {
+        if (count <= 0) {
+            return;
+        }
+        // the line is straight so it is inside the image if its ends are
+        getPixel(x + (count - 1) * dx, y + (count - 1) * dy);
+        getPixel(x, y);
+        for (int i = 0, column = x - minX, row = y - minY; i < count; i++, column += dx, row += dy) {
+            colors[index + i] = read(column, row);
+        }
+    }
+
+    private int read(int column, int row) {
+        switch (layout) {
+            case BYTE: {
+                int pixel = offset + row * scanlineStride + column * pixelStride;
+                int alpha = hasAlpha ? bytes[pixel + bandOffsets[3]] & 0xFF : 0xFF;
+                return (alpha << 24)
+                        | ((bytes[pixel + bandOffsets[0]] & 0xFF) << 16)
+                        | ((bytes[pixel + bandOffsets[1]] & 0xFF) << 8)
+                        | (bytes[pixel + bandOffsets[2]] & 0xFF);
+            }
+            case INT: {
+                int pixel = ints[offset + row * scanlineStride + column];
+                int alpha = hasAlpha ? (pixel & bitMasks[3]) >>> bitOffsets[3] : 0xFF;
+                return (alpha << 24)
+                        | (((pixel & bitMasks[0]) >>> bitOffsets[0]) << 16)
+                        | (((pixel & bitMasks[1]) >>> bitOffsets[1]) << 8)
+                        | ((pixel & bitMasks[2]) >>> bitOffsets[2]);
+            }
+            default:
+                return image.getRGB(column, row);
+        }
+    }
+}